@@ -4,6 +4,7 @@ import io.github.toomanylimits.wasmj.compiling.helpers.BytecodeHelper;
 import io.github.toomanylimits.wasmj.compiling.helpers.Names;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.data.SimpleData;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.data.SimpleElem;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncRefCount;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.table.TableGet;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.table.TableGrow;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.table.TableSet;
@@ -13,6 +14,7 @@ import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.members.SimpleTable;
 import io.github.toomanylimits.wasmj.parsing.module.Data;
+import io.github.toomanylimits.wasmj.runtime.ExternrefFreeSlots;
 import io.github.toomanylimits.wasmj.runtime.ExternrefTableAccessor;
 import io.github.toomanylimits.wasmj.runtime.reflect.JavaModuleData;
 import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
@@ -38,8 +40,9 @@ public class Compiler {
     // The next free local available in the init function.
     public static final int INIT_FUNCTION_LIMITER_LOCAL = 0;
     public static final int INIT_FUNCTION_MAP_LOCAL = 1;
-    public static final int INIT_FUNCTION_SIMPLE_MODULE_LOCAL = 2;
-    public static final int INIT_FUNCTION_NEXT_LOCAL = 3;
+    public static final int INIT_FUNCTION_DATAS_LOCAL = 2;
+    public static final int INIT_FUNCTION_INIT_SEGMENTS_LOCAL = 3;
+    public static final int INIT_FUNCTION_NEXT_LOCAL = 4;
     public static final int WASM_PAGE_SIZE = 65536;
 
     /**
@@ -51,28 +54,34 @@ public class Compiler {
         classWriter = new CheckClassAdapter(classWriter);
 
         String className = Names.className(module.moduleName);
-        classWriter.visit(Opcodes.V17, Opcodes.ACC_PUBLIC, className, null, Type.getInternalName(Object.class), null);
+        classWriter.visit(Opcodes.V17, Opcodes.ACC_PUBLIC, className, null, Type.getInternalName(Object.class), new String[] {Type.getInternalName(ExternrefTableAccessor.class)});
 
         // Create callback set
         HashSet<ClassGenCallback> classGenCallbacks = new HashSet<>();
         // Create necessary functions
-        byte[] tableAccessorImplWriter = createExternRefTableAccessor(module, classGenCallbacks);
         MethodVisitor initFunction = beginInitMethod(classWriter, module.instance.instanceJavaModules, module.moduleName);
+        // The static initializer creates the memory and tables which never change size, so they can be static final
+        MethodVisitor classInit = classWriter.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+        classInit.visitCode();
+        implementExternrefTableAccessor(module, classWriter, initFunction, classGenCallbacks);
 
         // Emit the members
         for (SimpleFunction f : module.functions) f.emitFunction(module, classWriter, initFunction, classGenCallbacks);
         for (SimpleGlobal g : module.globals) g.emitGlobal(module, classWriter, initFunction, classGenCallbacks);
-        for (SimpleTable t : module.tables) t.emitTable(module, classWriter, initFunction, classGenCallbacks);
-        module.memory.emitMemory(module, classWriter, initFunction, classGenCallbacks);
+        for (SimpleTable t : module.tables) t.emitTable(module, classWriter, classInit, initFunction, classGenCallbacks);
+        module.memory.emitMemory(module, classWriter, classInit, initFunction, classGenCallbacks);
 
         // Emit datas and elements
         for (SimpleData d : module.datas) d.emitData(module, classWriter, initFunction, classGenCallbacks);
         for (SimpleElem e : module.elems) e.emitElem(module, classWriter, initFunction, classGenCallbacks);
 
-        // End init function
+        // End init function and static initializer
         initFunction.visitInsn(Opcodes.RETURN);
         initFunction.visitMaxs(0, 0);
         initFunction.visitEnd();
+        classInit.visitInsn(Opcodes.RETURN);
+        classInit.visitMaxs(0, 0);
+        classInit.visitEnd();
 
         // Process the callbacks
         ArrayList<ClassGenCallback> allCallbacks = new ArrayList<>(classGenCallbacks);
@@ -94,23 +103,26 @@ public class Compiler {
         while (!(classWriter instanceof ClassWriter writer))
             classWriter = classWriter.getDelegate();
 
-        // Return the generated classes, keyed by name
-        return Map.of(
-                Names.className(module.moduleName), writer.toByteArray(),
-                Names.externrefTableAccessorImplClassName(module.moduleName), tableAccessorImplWriter
-        );
+        // Return the generated classes, keyed by name. The module class is the only one.
+        return Map.of(Names.className(module.moduleName), writer.toByteArray());
     }
 
     /**
      * The init method accepts an InstanceLimiter as the first parameter,
-     * and a Map<String, JavaModuleData<?>> as its second parameter.
-     * The InstanceLimiter will be used to fill the limiter field, and the
-     * map will be used to fill all the global fields.
+     * a Map<String, JavaModuleData<?>> as its second parameter, the
+     * bytes of each data segment as its third, and whether to initialize
+     * the active data and elem segments as its fourth.
+     * The InstanceLimiter will be used to fill the limiter field, the
+     * map will be used to fill all the global fields, and the bytes will
+     * be used to fill the data fields. The init method doesn't get the
+     * SimpleModule, so nothing from compiling is kept alive by the class.
+     * The segments aren't initialized when the module's state is about to
+     * be restored from an InstanceImage, which overwrites it anyway.
      */
     private static MethodVisitor beginInitMethod(ClassVisitor writer, Map<String, JavaModuleData<?>> javaModules, String moduleName) {
         // Create the MethodVisitor
         int access = Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC;
-        String descriptor = "(" + Type.getDescriptor(InstanceLimiter.class) + Type.getDescriptor(Map.class) + Type.getDescriptor(SimpleModule.class) + ")V";
+        String descriptor = "(" + Type.getDescriptor(InstanceLimiter.class) + Type.getDescriptor(Map.class) + Type.getDescriptor(byte[][].class) + "Z)V";
         MethodVisitor init = writer.visitMethod(access, Names.initMethodName(), descriptor, null, null);
 
         // Create the limiter field and fill it in
@@ -124,11 +136,11 @@ public class Compiler {
         BytecodeHelper.createDefaultObject(init, ArrayList.class);
         init.visitFieldInsn(Opcodes.PUTSTATIC, Names.className(moduleName), Names.exportedFunctionsFieldName(), Type.getDescriptor(List.class)); // []
 
-        // Creeate and fill in the externref accessor field
+        // Create and fill in the externref accessor field. The module class is its own accessor impl.
         writer.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC, Names.externrefTableAccessorFieldName(), Type.getDescriptor(ExternrefTableAccessor.class), null, null);
-        init.visitTypeInsn(Opcodes.NEW, Names.externrefTableAccessorImplClassName(moduleName)); // [uninit accessor impl]
+        init.visitTypeInsn(Opcodes.NEW, Names.className(moduleName)); // [uninit accessor impl]
         init.visitInsn(Opcodes.DUP); // [uninit accessor impl, uninit accessor impl]
-        init.visitMethodInsn(Opcodes.INVOKESPECIAL, Names.externrefTableAccessorImplClassName(moduleName), "<init>", "()V", false); // [init accessor impl]
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, Names.className(moduleName), "<init>", "()V", false); // [init accessor impl]
         init.visitFieldInsn(Opcodes.PUTSTATIC, Names.className(moduleName), Names.externrefTableAccessorFieldName(), Type.getDescriptor(ExternrefTableAccessor.class)); // []
 
         // Create the global instance fields and fill them in
@@ -152,17 +164,15 @@ public class Compiler {
     }
 
     /**
-     * Create the externref table accessor class and return its bytes.
-     * Returns the ClassWriter for the accessor implementation.
+     * Implement ExternrefTableAccessor in the module class. The module class is
+     * never instantiated otherwise, so the single instance made by the init
+     * method is the accessor, and its methods call the static methods which
+     * are emitted here too, along with the free slot list used by store().
+     * Keeping it all in one class means a module is always a single class.
      */
-    private static byte[] createExternRefTableAccessor(SimpleModule module, Set<ClassGenCallback> classGenCallbacks) {
-        // Create the new class:
-        ClassWriter accessorImpl = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-        String accessorImplName = Names.externrefTableAccessorImplClassName(module.moduleName);
-        accessorImpl.visit(Opcodes.V17, Opcodes.ACC_PUBLIC, accessorImplName, null, Type.getInternalName(Object.class), new String[] {Type.getInternalName(ExternrefTableAccessor.class)} );
-
-        // Give it a basic default constructor:
-        MethodVisitor constructor = accessorImpl.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+    private static void implementExternrefTableAccessor(SimpleModule module, ClassVisitor classWriter, MethodVisitor init, Set<ClassGenCallback> classGenCallbacks) {
+        // Give it a basic private constructor:
+        MethodVisitor constructor = classWriter.visitMethod(Opcodes.ACC_PRIVATE, "<init>", "()V", null, null);
         constructor.visitCode();
         constructor.visitVarInsn(Opcodes.ALOAD, 0);
         constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(Object.class), "<init>", "()V", false);
@@ -170,89 +180,173 @@ public class Compiler {
         constructor.visitMaxs(0, 0);
         constructor.visitEnd();
 
-        // Implement the methods.
+        // Implement the methods. Each one calls the matching static method.
         int index = module.getExternrefTableIndex();
+        for (java.lang.reflect.Method method : ExternrefTableAccessor.class.getMethods()) {
+            String descriptor = Type.getMethodDescriptor(method);
+            MethodVisitor visitor = classWriter.visitMethod(Opcodes.ACC_PUBLIC, method.getName(), descriptor, null, null);
+            visitor.visitCode();
+            if (index == -1)
+                BytecodeHelper.throwRuntimeError(visitor, "No externref table provided! Unable to " + method.getName() + "()!");
+            else {
+                int local = 1;
+                for (Type param : Type.getArgumentTypes(descriptor)) {
+                    visitor.visitVarInsn(param.getOpcode(Opcodes.ILOAD), local); // [params...]
+                    local += param.getSize();
+                }
+                visitor.visitMethodInsn(Opcodes.INVOKESTATIC, Names.className(module.moduleName), Names.externrefAccessorMethodName(method.getName()), descriptor, false); // [result?]
+                visitor.visitInsn(Type.getReturnType(descriptor).getOpcode(Opcodes.IRETURN));
+            }
+            visitor.visitMaxs(0, 0);
+            visitor.visitEnd();
+        }
+
+        // If there's a table, emit the static side
+        if (index != -1)
+            emitExternrefAccessorMethods(module, classWriter, init, index, classGenCallbacks);
+    }
+
+    /**
+     * Emit the free slot list field and the static methods which implement
+     * the accessor, into the module class.
+     */
+    private static void emitExternrefAccessorMethods(SimpleModule module, ClassVisitor classWriter, MethodVisitor init, int index, Set<ClassGenCallback> classGenCallbacks) {
+        String className = Names.className(module.moduleName);
+        String refDesc = Type.getDescriptor(RefCountable.class);
+        String slotsDesc = Type.getDescriptor(ExternrefFreeSlots.class);
+        int access = Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC;
+
+        // Create the free slots field, and fill it in. This happens before the tables and elements are initialized.
+        classWriter.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC, Names.externrefFreeSlotsFieldName(), slotsDesc, null, null);
+        BytecodeHelper.createDefaultObject(init, ExternrefFreeSlots.class); // [slots]
+        init.visitFieldInsn(Opcodes.PUTSTATIC, className, Names.externrefFreeSlotsFieldName(), slotsDesc); // []
 
-        // get():
-        MethodVisitor getter = accessorImpl.visitMethod(Opcodes.ACC_PUBLIC, "get", "(I)" + Type.getDescriptor(RefCountable.class), null, null);
+        // get(index) -> value
+        MethodVisitor getter = classWriter.visitMethod(access, Names.externrefAccessorMethodName("get"), "(I)" + refDesc, null, null);
         getter.visitCode();
-        if (index == -1)
-            BytecodeHelper.throwRuntimeError(getter, "No externref table provided! Unable to get() value!");
-        else {
-            CompilingSimpleInstructionVisitor compilingVisitor = new CompilingSimpleInstructionVisitor(module, getter, 2, classGenCallbacks);
-            getter.visitVarInsn(Opcodes.ILOAD, 1); // [index]
-            compilingVisitor.visitIntrinsic(new TableGet(index)); // [table[index]], ref count was incremented
-            getter.visitInsn(Opcodes.ARETURN);
-        }
+        CompilingSimpleInstructionVisitor getterVisitor = new CompilingSimpleInstructionVisitor(module, getter, 1, classGenCallbacks);
+        getter.visitVarInsn(Opcodes.ILOAD, 0); // [index]
+        getterVisitor.visitIntrinsic(new TableGet(index)); // [table[index]], ref count was incremented
+        getter.visitInsn(Opcodes.ARETURN);
         getter.visitMaxs(0, 0);
         getter.visitEnd();
 
-        // set():
-        MethodVisitor setter = accessorImpl.visitMethod(Opcodes.ACC_PUBLIC, "set", "(I" + Type.getDescriptor(RefCountable.class) + ")V", null, null);
+        // set(index, value)
+        MethodVisitor setter = classWriter.visitMethod(access, Names.externrefAccessorMethodName("set"), "(I" + refDesc + ")V", null, null);
         setter.visitCode();
-        if (index == -1)
-            BytecodeHelper.throwRuntimeError(setter, "No externref table provided! Unable to set() value!");
-        else {
-            CompilingSimpleInstructionVisitor compilingVisitor = new CompilingSimpleInstructionVisitor(module, setter, 3, classGenCallbacks);
-            setter.visitVarInsn(Opcodes.ILOAD, 1); // [index]
-            setter.visitVarInsn(Opcodes.ALOAD, 2); // [index, value]
-            compilingVisitor.visitIntrinsic(new TableSet(index)); // [], value was set, ref count of previous item was decremented
-            setter.visitInsn(Opcodes.RETURN);
-        }
+        CompilingSimpleInstructionVisitor setterVisitor = new CompilingSimpleInstructionVisitor(module, setter, 2, classGenCallbacks);
+        setter.visitVarInsn(Opcodes.ILOAD, 0); // [index]
+        setter.visitVarInsn(Opcodes.ALOAD, 1); // [index, value]
+        emitCountJavaRef(module, setter, setterVisitor); // [index, value], value is counted as if it came from the wasm stack
+        setterVisitor.visitIntrinsic(new TableSet(index)); // [], value was set, ref count of previous item was decremented
+        setter.visitInsn(Opcodes.RETURN);
         setter.visitMaxs(0, 0);
         setter.visitEnd();
 
-        // store():
-        MethodVisitor store = accessorImpl.visitMethod(Opcodes.ACC_PUBLIC, "store", "(" + Type.getDescriptor(RefCountable.class) + ")I", null, null);
+        // store(value) -> index
+        MethodVisitor store = classWriter.visitMethod(access, Names.externrefAccessorMethodName("store"), "(" + refDesc + ")I", null, null);
         store.visitCode();
-        if (index == -1)
-            BytecodeHelper.throwRuntimeError(store, "No externref table provided! Unable to store() value!");
-        else {
-            // Get the array and look for a null element.
-            module.tables[index].getTable(module, store); // [table]
-            store.visitInsn(Opcodes.DUP); // [table, table]
-            String asListDescriptor = Type.getMethodDescriptor(Type.getType(List.class), Type.getType(Object[].class));
-            store.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(Arrays.class), "asList", asListDescriptor, false); // [table, Arrays.asList(table)]
-            store.visitInsn(Opcodes.ACONST_NULL); // [table, Arrays.asList(table), null]
-            String indexOfDescriptor = Type.getMethodDescriptor(Type.getType(int.class), Type.getType(Object.class));
-            store.visitMethodInsn(Opcodes.INVOKEINTERFACE, Type.getInternalName(List.class), "indexOf", indexOfDescriptor, true); // [table, Arrays.asList(table).indexOf(null)]
-
-            // If -1, no element was found, so grow the array.
-            store.visitInsn(Opcodes.DUP); // [table, index, index]
-            store.visitInsn(Opcodes.ICONST_M1); // [table, index, index, -1]
-            BytecodeHelper.writeIfElse(store, Opcodes.IF_ICMPEQ, ifFound -> {
-                // [table, index]
-                // Count up instructions if necessary
-                if (module.instance.limiter.countsInstructions) {
-                    ifFound.visitInsn(Opcodes.DUP); // [index, index]
-                    ifFound.visitFieldInsn(Opcodes.GETSTATIC, Names.className(module.moduleName), Names.limiterFieldName(), Type.getDescriptor(InstanceLimiter.class)); // [index, index, limiter]
-                    ifFound.visitInsn(Opcodes.SWAP); // [index, limiter, index]
-                    ifFound.visitInsn(Opcodes.I2L); // [index, limiter, (long) index]
-                    ifFound.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(InstanceLimiter.class), "incInstructions", "(J)V", false); // [index]
-                }
-                // Return the found index
-                ifFound.visitInsn(Opcodes.IRETURN);
-            }, ifNotFound -> {
-                // Double the table size + 1, and return a new index
-                CompilingSimpleInstructionVisitor compilingVisitor = new CompilingSimpleInstructionVisitor(module, ifNotFound, 2, classGenCallbacks);
-                // [table, -1]
-                ifNotFound.visitInsn(Opcodes.POP); // [table]
-                ifNotFound.visitInsn(Opcodes.ARRAYLENGTH); // [table.length]
-                ifNotFound.visitInsn(Opcodes.ICONST_1); // [table.length, 1]
-                ifNotFound.visitInsn(Opcodes.IADD); // [table.length + 1]
-                ifNotFound.visitInsn(Opcodes.ACONST_NULL); // [table.length + 1, null]
-                ifNotFound.visitInsn(Opcodes.SWAP); // [null, table.length + 1]
-                compilingVisitor.visitIntrinsic(new TableGrow(index)); // [oldTable.length]
-                // The oldTable.length, conveniently enough, is now the first non-null index, so return it.
-                ifNotFound.visitInsn(Opcodes.IRETURN);
-            });
-        }
+        CompilingSimpleInstructionVisitor storeVisitor = new CompilingSimpleInstructionVisitor(module, store, 2, classGenCallbacks);
+        // Take a free slot
+        emitTakeFreeSlot(module, store, index); // [slot or -1]
+        store.visitInsn(Opcodes.DUP); // [slot, slot]
+        Label found = new Label();
+        store.visitJumpInsn(Opcodes.IFGE, found); // [slot]
+        // There were none, so double the table size + 1, and take one of the new slots
+        store.visitInsn(Opcodes.POP); // []
+        store.visitInsn(Opcodes.ACONST_NULL); // [null]
+        module.tables[index].getTable(module, store); // [null, table]
+        store.visitInsn(Opcodes.ARRAYLENGTH); // [null, table.length]
+        store.visitInsn(Opcodes.ICONST_1); // [null, table.length, 1]
+        store.visitInsn(Opcodes.IADD); // [null, table.length + 1]
+        storeVisitor.visitIntrinsic(new TableGrow(index)); // [oldTable.length], new slots were released
+        store.visitInsn(Opcodes.POP); // []
+        emitTakeFreeSlot(module, store, index); // [slot]
+        store.visitLabel(found);
+        // Set the slot and return it
+        store.visitVarInsn(Opcodes.ISTORE, 1); // []
+        store.visitVarInsn(Opcodes.ILOAD, 1); // [slot]
+        store.visitVarInsn(Opcodes.ALOAD, 0); // [slot, value]
+        emitCountJavaRef(module, store, storeVisitor); // [slot, value], value is counted as if it came from the wasm stack
+        storeVisitor.visitIntrinsic(new TableSet(index)); // []
+        store.visitVarInsn(Opcodes.ILOAD, 1); // [slot]
+        store.visitInsn(Opcodes.IRETURN);
         store.visitMaxs(0, 0);
         store.visitEnd();
 
-        // Methods are implemented, end the accessor impl.
-        accessorImpl.visitEnd();
-        return accessorImpl.toByteArray();
+        // storeAll(values) -> first index
+        String refArrayDesc = Type.getDescriptor(RefCountable[].class);
+        String limiterDesc = Type.getDescriptor(InstanceLimiter.class);
+        String slotsName = Type.getInternalName(ExternrefFreeSlots.class);
+        MethodVisitor storeAll = classWriter.visitMethod(access, Names.externrefAccessorMethodName("storeAll"), "(" + refArrayDesc + ")I", null, null);
+        storeAll.visitCode();
+        CompilingSimpleInstructionVisitor storeAllVisitor = new CompilingSimpleInstructionVisitor(module, storeAll, 2, classGenCallbacks);
+        // Find the start of the range, reusing the nulls at the end of the table
+        module.tables[index].getTable(module, storeAll); // [table]
+        storeAll.visitVarInsn(Opcodes.ALOAD, 0); // [table, values]
+        storeAll.visitInsn(Opcodes.ARRAYLENGTH); // [table, values.length]
+        storeAll.visitFieldInsn(Opcodes.GETSTATIC, className, Names.limiterFieldName(), limiterDesc); // [table, values.length, limiter]
+        storeAll.visitMethodInsn(Opcodes.INVOKESTATIC, slotsName, "freeTail", "(" + refArrayDesc + "I" + limiterDesc + ")I", false); // [start]
+        storeAll.visitVarInsn(Opcodes.ISTORE, 1); // []
+        // Grow the table once, by however many slots are missing
+        storeAll.visitVarInsn(Opcodes.ILOAD, 1); // [start]
+        storeAll.visitVarInsn(Opcodes.ALOAD, 0); // [start, values]
+        storeAll.visitInsn(Opcodes.ARRAYLENGTH); // [start, values.length]
+        storeAll.visitInsn(Opcodes.IADD); // [end]
+        module.tables[index].getTable(module, storeAll); // [end, table]
+        storeAll.visitInsn(Opcodes.ARRAYLENGTH); // [end, table.length]
+        storeAll.visitInsn(Opcodes.ISUB); // [missing]
+        storeAll.visitInsn(Opcodes.DUP); // [missing, missing]
+        BytecodeHelper.writeIfElse(storeAll, Opcodes.IFLE, ifMissing -> {
+            // [missing]
+            ifMissing.visitInsn(Opcodes.ACONST_NULL); // [missing, null]
+            ifMissing.visitInsn(Opcodes.SWAP); // [null, missing]
+            storeAllVisitor.visitIntrinsic(new TableGrow(index)); // [oldTable.length]
+            ifMissing.visitInsn(Opcodes.POP); // []
+        }, ifNotMissing -> {
+            ifNotMissing.visitInsn(Opcodes.POP); // []
+        });
+        // Copy the values in, counting them
+        module.tables[index].getTable(module, storeAll); // [table]
+        storeAll.visitVarInsn(Opcodes.ILOAD, 1); // [table, start]
+        storeAll.visitVarInsn(Opcodes.ALOAD, 0); // [table, start, values]
+        storeAll.visitFieldInsn(Opcodes.GETSTATIC, className, Names.limiterFieldName(), limiterDesc); // [table, start, values, limiter]
+        storeAll.visitMethodInsn(Opcodes.INVOKESTATIC, slotsName, "storeRange", "(" + refArrayDesc + "I" + refArrayDesc + limiterDesc + ")V", false); // []
+        storeAll.visitVarInsn(Opcodes.ILOAD, 1); // [start]
+        storeAll.visitInsn(Opcodes.IRETURN);
+        storeAll.visitMaxs(0, 0);
+        storeAll.visitEnd();
+
+        // getRange(start, length) -> values
+        MethodVisitor getRange = classWriter.visitMethod(access, Names.externrefAccessorMethodName("getRange"), "(II)" + refArrayDesc, null, null);
+        getRange.visitCode();
+        module.tables[index].getTable(module, getRange); // [table]
+        getRange.visitVarInsn(Opcodes.ILOAD, 0); // [table, start]
+        getRange.visitVarInsn(Opcodes.ILOAD, 1); // [table, start, length]
+        getRange.visitFieldInsn(Opcodes.GETSTATIC, className, Names.limiterFieldName(), limiterDesc); // [table, start, length, limiter]
+        getRange.visitMethodInsn(Opcodes.INVOKESTATIC, slotsName, "getRange", "(" + refArrayDesc + "II" + limiterDesc + ")" + refArrayDesc, false); // [values], ref counts were incremented
+        getRange.visitInsn(Opcodes.ARETURN);
+        getRange.visitMaxs(0, 0);
+        getRange.visitEnd();
+    }
+
+    // Stack = [] -> [slot or -1]
+    private static void emitTakeFreeSlot(SimpleModule module, MethodVisitor visitor, int index) {
+        visitor.visitFieldInsn(Opcodes.GETSTATIC, Names.className(module.moduleName), Names.externrefFreeSlotsFieldName(), Type.getDescriptor(ExternrefFreeSlots.class)); // [slots]
+        module.tables[index].getTable(module, visitor); // [slots, table]
+        visitor.visitFieldInsn(Opcodes.GETSTATIC, Names.className(module.moduleName), Names.limiterFieldName(), Type.getDescriptor(InstanceLimiter.class)); // [slots, table, limiter]
+        String takeDesc = "(" + Type.getDescriptor(RefCountable[].class) + Type.getDescriptor(InstanceLimiter.class) + ")I";
+        visitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(ExternrefFreeSlots.class), "take", takeDesc, false); // [slot or -1]
+    }
+
+    // Refs from java weren't counted like values on the wasm stack are, so count them before a table.set.
+    // With deferred ref counting, table.set counts the value itself.
+    // Stack = [value] -> [value]
+    private static void emitCountJavaRef(SimpleModule module, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
+        if (module.instance.limiter.countsStackRefs) {
+            visitor.visitInsn(Opcodes.DUP); // [value, value]
+            compilingVisitor.visitIntrinsic(IncRefCount.INSTANCE); // [value]
+        }
     }
 
 }
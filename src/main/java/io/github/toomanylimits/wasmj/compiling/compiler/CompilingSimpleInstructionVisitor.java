@@ -1,6 +1,8 @@
 package io.github.toomanylimits.wasmj.compiling.compiler;
 
 import io.github.toomanylimits.wasmj.compiling.helpers.CallingHelpers;
+import io.github.toomanylimits.wasmj.compiling.helpers.Names;
+import io.github.toomanylimits.wasmj.compiling.helpers.RefCountElision;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstruction;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
@@ -8,9 +10,11 @@ import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandb
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncInstructionsBy;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncRefCount;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.table.TableGet;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.members.SimpleFunction;
 import io.github.toomanylimits.wasmj.compiling.visitor.SimpleInstructionVisitor;
 import io.github.toomanylimits.wasmj.compiling.helpers.BytecodeHelper;
 import io.github.toomanylimits.wasmj.parsing.types.ValType;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
 import io.github.toomanylimits.wasmj.runtime.types.FuncRefInstance;
 import io.github.toomanylimits.wasmj.util.ListUtils;
 import org.objectweb.asm.Label;
@@ -28,12 +32,41 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
     private final Set<ClassGenCallback> classGenCallbacks;
     private final Stack<Label> labelStack = new Stack<>();
     private final int nextLocalSlot; // The next free local slot, unused by the WASM code, used for temporary data.
+    private final int fuelLocal; // The local holding the remaining fuel, or -1 if not using LOCAL_FUEL metering.
+    private final int limiterLocal; // The local holding the limiter for interrupt checks, or -1 if not interruptible.
+    private final boolean elideRefCounts; // Whether to skip refcounting which cancels out, see RefCountElision.
+    private Set<SimpleInstruction> firstStores = Set.of(); // Stores into locals which are known to hold null
 
     public CompilingSimpleInstructionVisitor(SimpleModule module, MethodVisitor visitor, int nextLocalSlot, Set<ClassGenCallback> classGenCallbacks) {
+        this(module, visitor, nextLocalSlot, classGenCallbacks, false);
+    }
+
+    // If isFunctionBody is true, locals are reserved for the fuel (with LOCAL_FUEL metering)
+    // and for the limiter (if it's interruptible), and emitFunctionBody() must be used to emit the instructions.
+    public CompilingSimpleInstructionVisitor(SimpleModule module, MethodVisitor visitor, int nextLocalSlot, Set<ClassGenCallback> classGenCallbacks, boolean isFunctionBody) {
         this.module = module;
         this.visitor = visitor;
-        this.nextLocalSlot = nextLocalSlot;
         this.classGenCallbacks = classGenCallbacks;
+        InstanceLimiter limiter = module.instance.limiter;
+        if (isFunctionBody && usesLocalFuel(limiter)) {
+            this.fuelLocal = nextLocalSlot;
+            nextLocalSlot += 2;
+        } else {
+            this.fuelLocal = -1;
+        }
+        if (isFunctionBody && limiter.interruptible) {
+            this.limiterLocal = nextLocalSlot;
+            nextLocalSlot += 1;
+        } else {
+            this.limiterLocal = -1;
+        }
+        this.nextLocalSlot = nextLocalSlot;
+        this.elideRefCounts = limiter.countsStackRefs && RefCountElision.isEnabled();
+    }
+
+    // Whether function bodies compiled for this limiter keep their fuel in a local
+    public static boolean usesLocalFuel(InstanceLimiter limiter) {
+        return limiter.countsInstructions && limiter.metering == InstanceLimiter.Metering.LOCAL_FUEL;
     }
 
     public int getNextLocalSlot() {
@@ -42,23 +75,27 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
 
     @Override
     public Void visitLocalStore(SimpleInstruction.LocalStore inst) throws RuntimeException {
+        emitLocalStore(inst.type(), inst.jvmLocalIndex(), firstStores.contains(inst));
+        return null;
+    }
+
+    private void emitLocalStore(ValType type, int jvmLocalIndex, boolean knownNull) {
         // If we're ref-counting and this local is a reference type, then
         // we need to decrement the refcount of the object that was previously
-        // stored in this local.
-        if (inst.type().isRef() && module.instance.limiter.countsMemory) {
-            visitor.visitVarInsn(Opcodes.ALOAD, inst.jvmLocalIndex()); // Load the previous object to the stack
+        // stored in this local. Unless it's known to be null, of course.
+        if (type.isRef() && module.instance.limiter.countsStackRefs && !knownNull) {
+            visitor.visitVarInsn(Opcodes.ALOAD, jvmLocalIndex); // Load the previous object to the stack
             visitIntrinsic(DecRefCount.INSTANCE); // Drop the ref type, decrementing its refcount
         }
         // In any case, we want to store an object from the stack into the given variable.
-        visitor.visitVarInsn(inst.type().storeOpcode, inst.jvmLocalIndex());
-        return null;
+        visitor.visitVarInsn(type.storeOpcode, jvmLocalIndex);
     }
 
     @Override
     public Void visitLocalLoad(SimpleInstruction.LocalLoad inst) throws RuntimeException {
         // If we're ref-counting and this local is a reference type, then increment its refcount
         // once we load it.
-        if (inst.type().isRef() && module.instance.limiter.countsMemory) {
+        if (inst.type().isRef() && module.instance.limiter.countsStackRefs) {
             visitor.visitVarInsn(Opcodes.ALOAD, inst.jvmLocalIndex()); // Get the object
             visitor.visitInsn(Opcodes.DUP); // Dup it
             visitIntrinsic(IncRefCount.INSTANCE); // Increment its refcount
@@ -72,7 +109,7 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
     @Override
     public Void visitLocalTee(SimpleInstruction.LocalTee inst) throws RuntimeException {
         // can be broken down into a local store then a local load
-        visitLocalStore(new SimpleInstruction.LocalStore(inst.type(), inst.jvmLocalIndex()));
+        emitLocalStore(inst.type(), inst.jvmLocalIndex(), firstStores.contains(inst));
         visitLocalLoad(new SimpleInstruction.LocalLoad(inst.type(), inst.jvmLocalIndex()));
         return null;
     }
@@ -85,6 +122,102 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
                 || i instanceof SimpleInstruction.IfElse;
     }
 
+    // Emit the whole body of a function. Checks for interrupts on entry if needed.
+    // firstDeclaredSlot is the first JVM local after the params. With LOCAL_FUEL metering,
+    // the fuel is passed as one more long param, in that slot, see SameFileFunction.
+    public void emitFunctionBody(List<SimpleInstruction> instructions, int firstDeclaredSlot) {
+        if (usesLocalFuel()) {
+            // Move it out of the way first, since the declared locals reuse the slot
+            visitor.visitVarInsn(Opcodes.LLOAD, firstDeclaredSlot); // [fuel]
+            visitor.visitVarInsn(Opcodes.LSTORE, fuelLocal); // []
+        }
+        if (module.instance.limiter.countsStackRefs) {
+            // The first store into a declared ref local decrements the object it held before,
+            // so the local needs a value. Skip that entirely where it's known to be null.
+            if (elideRefCounts)
+                firstStores = RefCountElision.firstStores(instructions, firstDeclaredSlot);
+            Set<Integer> nulledLocals = RefCountElision.declaredRefLocals(instructions, firstDeclaredSlot);
+            for (SimpleInstruction store : firstStores)
+                nulledLocals.remove(store instanceof SimpleInstruction.LocalStore s ? s.jvmLocalIndex() : ((SimpleInstruction.LocalTee) store).jvmLocalIndex());
+            for (int local : nulledLocals) {
+                visitor.visitInsn(Opcodes.ACONST_NULL); // [null]
+                visitor.visitVarInsn(Opcodes.ASTORE, local); // []
+            }
+        }
+        if (limiterLocal != -1) {
+            // Keep the limiter in a local, so each check is only a load of the flag
+            visitor.visitFieldInsn(Opcodes.GETSTATIC, Names.className(module.moduleName), Names.limiterFieldName(), Type.getDescriptor(InstanceLimiter.class)); // [limiter]
+            visitor.visitVarInsn(Opcodes.ASTORE, limiterLocal); // []
+            emitInterruptCheck();
+        }
+        emitMultipleInstructions(instructions);
+    }
+
+    // If the limiter was interrupted, call into it to throw. Otherwise this is just a field load and a branch.
+    private void emitInterruptCheck() {
+        Label notInterrupted = new Label();
+        visitor.visitVarInsn(Opcodes.ALOAD, limiterLocal); // [limiter]
+        visitor.visitFieldInsn(Opcodes.GETFIELD, Type.getInternalName(InstanceLimiter.class), "interruptRequested", "Z"); // [interruptRequested]
+        visitor.visitJumpInsn(Opcodes.IFEQ, notInterrupted); // []
+        visitor.visitVarInsn(Opcodes.ALOAD, limiterLocal); // [limiter]
+        visitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(InstanceLimiter.class), "checkInterrupt", "()V", false); // []
+        visitor.visitLabel(notInterrupted);
+    }
+
+    // Helpers for LOCAL_FUEL metering. All of these leave the operand stack as they found it.
+
+    public boolean usesLocalFuel() {
+        return fuelLocal != -1;
+    }
+
+    // Subtract a constant from the fuel
+    public void emitConsumeFuel(long amount) {
+        visitor.visitVarInsn(Opcodes.LLOAD, fuelLocal); // [fuel]
+        BytecodeHelper.constLong(visitor, amount); // [fuel, amount]
+        visitor.visitInsn(Opcodes.LSUB); // [fuel - amount]
+        visitor.visitVarInsn(Opcodes.LSTORE, fuelLocal); // []
+    }
+
+    // Subtract the long on top of the stack from the fuel, popping it
+    public void emitConsumeFuelFromStack() {
+        // [amount]
+        visitor.visitInsn(Opcodes.LNEG); // [-amount]
+        visitor.visitVarInsn(Opcodes.LLOAD, fuelLocal); // [-amount, fuel]
+        visitor.visitInsn(Opcodes.LADD); // [fuel - amount]
+        visitor.visitVarInsn(Opcodes.LSTORE, fuelLocal); // []
+    }
+
+    // Push the fuel, to pass it to a function in the same module
+    public void emitLoadFuel() {
+        visitor.visitVarInsn(Opcodes.LLOAD, fuelLocal); // [fuel]
+    }
+
+    private void emitTakeFuel() {
+        visitor.visitFieldInsn(Opcodes.GETSTATIC, Names.className(module.moduleName), Names.limiterFieldName(), Type.getDescriptor(InstanceLimiter.class)); // [limiter]
+        visitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(InstanceLimiter.class), "takeFuel", "()J", false); // [fuel]
+        visitor.visitVarInsn(Opcodes.LSTORE, fuelLocal); // []
+    }
+
+    private void emitPutFuel() {
+        visitor.visitFieldInsn(Opcodes.GETSTATIC, Names.className(module.moduleName), Names.limiterFieldName(), Type.getDescriptor(InstanceLimiter.class)); // [limiter]
+        visitor.visitVarInsn(Opcodes.LLOAD, fuelLocal); // [limiter, fuel]
+        visitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(InstanceLimiter.class), "putFuel", "(J)V", false); // []
+    }
+
+    // If the fuel has run out, ask the limiter for more. It errors if there is none.
+    private void emitFuelCheck() {
+        Label enough = new Label();
+        visitor.visitVarInsn(Opcodes.LLOAD, fuelLocal); // [fuel]
+        visitor.visitInsn(Opcodes.LCONST_0); // [fuel, 0]
+        visitor.visitInsn(Opcodes.LCMP); // [cmp]
+        visitor.visitJumpInsn(Opcodes.IFGE, enough); // []
+        visitor.visitFieldInsn(Opcodes.GETSTATIC, Names.className(module.moduleName), Names.limiterFieldName(), Type.getDescriptor(InstanceLimiter.class)); // [limiter]
+        visitor.visitVarInsn(Opcodes.LLOAD, fuelLocal); // [limiter, fuel]
+        visitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(InstanceLimiter.class), "refuel", "(J)J", false); // [fuel]
+        visitor.visitVarInsn(Opcodes.LSTORE, fuelLocal); // []
+        visitor.visitLabel(enough);
+    }
+
     // Helper for multi-instruction groups with counting
     public void emitMultipleInstructions(List<SimpleInstruction> instructions) {
         // Declare variables
@@ -102,15 +235,42 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
                     else
                         cost++;
                 }
-                if (module.instance.limiter.countsMemory)
+                if (module.instance.limiter.countsInstructions)
                     visitIntrinsic(new IncInstructionsBy(cost));
             }
-            // Visit the actual instruction
-            instructions.get(emitIndex).accept(this);
-            emitIndex++;
+            // Visit the actual instruction, or a pair of them whose refcounting cancels out
+            RefCountElision.Pair pair = elideRefCounts && emitIndex + 1 < instructionCountIndex ? RefCountElision.pairAt(instructions, emitIndex) : null;
+            if (pair != null) {
+                emitElidedPair(pair, instructions.get(emitIndex));
+                emitIndex += 2;
+            } else {
+                instructions.get(emitIndex).accept(this);
+                emitIndex++;
+            }
         }
     }
 
+    // Emit a pair of instructions found by RefCountElision, without the refcounting which cancels out.
+    // The first instruction is the LocalLoad or LocalTee.
+    private void emitElidedPair(RefCountElision.Pair pair, SimpleInstruction first) {
+        switch (pair) {
+            case LOAD_POP, LOAD_STORE -> {} // Nothing happens at all
+            case TEE_POP -> {
+                SimpleInstruction.LocalTee tee = (SimpleInstruction.LocalTee) first;
+                emitLocalStore(tee.type(), tee.jvmLocalIndex(), firstStores.contains(tee));
+            }
+            case LOAD_IS_NULL -> {
+                visitor.visitVarInsn(Opcodes.ALOAD, ((SimpleInstruction.LocalLoad) first).jvmLocalIndex()); // [object]
+                BytecodeHelper.test(visitor, Opcodes.IFNULL); // [0 or 1]
+            }
+            case TEE_IS_NULL -> {
+                SimpleInstruction.LocalTee tee = (SimpleInstruction.LocalTee) first;
+                emitLocalStore(tee.type(), tee.jvmLocalIndex(), firstStores.contains(tee)); // []
+                visitor.visitVarInsn(Opcodes.ALOAD, tee.jvmLocalIndex()); // [object]
+                BytecodeHelper.test(visitor, Opcodes.IFNULL); // [0 or 1]
+            }
+        }
+    }
 
     @Override
     public Void visitBlock(SimpleInstruction.Block inst) throws RuntimeException {
@@ -132,6 +292,11 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
         Label label = new Label();
         labelStack.push(label);
         visitor.visitLabel(label);
+        // Every iteration passes through here, so it's where the fuel and interrupts are checked
+        if (usesLocalFuel())
+            emitFuelCheck();
+        if (limiterLocal != -1)
+            emitInterruptCheck();
         // Emit instructions
         emitMultipleInstructions(inst.inner());
         // Pop label
@@ -237,7 +402,10 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
     @Override
     public Void visitReturn(SimpleInstruction.Return inst) throws RuntimeException {
         // Stack = [..., results]
-        if (module.instance.limiter.countsMemory) {
+        // Hand the remaining fuel back to the limiter before leaving
+        if (usesLocalFuel())
+            emitPutFuel();
+        if (module.instance.limiter.countsStackRefs) {
             // Compute the return value, store into the next temp local
             switch (inst.typesReturned().size()) {
                 case 0 -> {} // Nothing
@@ -283,7 +451,15 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
     @Override
     public Void visitCall(SimpleInstruction.Call inst) throws RuntimeException {
         // Just call the interface method for emitting a call! :)
-        module.functions[inst.funcIndex()].emitCall(module, visitor, this);
+        // The callee may use the limiter too, so the fuel is put back for the duration of the call.
+        // Functions in the same module are passed the fuel as an argument instead. Either way,
+        // the callee puts what's left back when it returns, and it's taken again here.
+        SimpleFunction callee = module.functions[inst.funcIndex()];
+        if (usesLocalFuel() && !(callee instanceof SimpleFunction.SameFileFunction))
+            emitPutFuel();
+        callee.emitCall(module, visitor, this);
+        if (usesLocalFuel())
+            emitTakeFuel();
         return null;
     }
 
@@ -326,10 +502,14 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
             }
         }
         // Stack = [handle, args]
-        // Now, call the handle function
+        // Now, call the handle function, putting the fuel back for the duration of the call
+        if (usesLocalFuel())
+            emitPutFuel();
         visitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(MethodHandle.class), "invokeExact", inst.funcType().descriptor(), false);
+        if (usesLocalFuel())
+            emitTakeFuel();
         // Stack = [result(s)]
-        CallingHelpers.unwrapReturnValues(visitor, this, inst.funcType(), false); // No ref counting, as this always refers to a WASM function
+        CallingHelpers.unwrapReturnValues(visitor, this, inst.funcType(), null); // No ref counting, as this always refers to a WASM function
         return null;
     }
 
@@ -354,8 +534,8 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
 
     @Override
     public Void visitPop(SimpleInstruction.Pop inst) throws RuntimeException {
-        // If it's a ref type, and we're refcounting, then use the intrinsic to decrement refcount
-        if (inst.type().isRef() && module.instance.limiter.countsMemory) {
+        // If it's a ref type, and we're refcounting the stack, then use the intrinsic to decrement refcount
+        if (inst.type().isRef() && module.instance.limiter.countsStackRefs) {
             visitIntrinsic(DecRefCount.INSTANCE);
         } else {
             // Otherwise, pop according to stack slots
@@ -397,8 +577,14 @@ public class CompilingSimpleInstructionVisitor extends SimpleInstructionVisitor<
 
     @Override
     public Void visitIntrinsic(SimpleInstruction.Intrinsic inst) throws RuntimeException {
-        // Run the intrinsic's call-site code
+        // Run the intrinsic's call-site code.
+        // If it updates the instruction count itself, the limiter needs the up-to-date fuel first.
+        boolean syncFuel = usesLocalFuel() && inst.usesInstructionLimiter();
+        if (syncFuel)
+            emitPutFuel();
         inst.atCallSite(module, visitor, this);
+        if (syncFuel)
+            emitTakeFuel();
         // Add the intrinsic's class-gen-time callback to the set
         var callback = inst.classGenCallback();
         if (callback != null)
@@ -1,6 +1,7 @@
 package io.github.toomanylimits.wasmj.compiling.helpers;
 
 import io.github.toomanylimits.wasmj.parsing.types.ValType;
+import io.github.toomanylimits.wasmj.runtime.RuntimeHelpers;
 import io.github.toomanylimits.wasmj.runtime.errors.WasmCodeException;
 import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
 import io.github.toomanylimits.wasmj.runtime.types.FuncRefInstance;
@@ -196,6 +197,12 @@ public class BytecodeHelper {
         else if (type == ValType.FUNCREF || type == ValType.EXTERNREF) visitor.visitInsn(Opcodes.ARETURN);
         else throw new UnsupportedOperationException("Cannot return value of given type - only int, long, float, double, reftype");
     }
+    // Emit bytecode in a module class's static initializer that charges the limiter for the given bytes.
+    // The limiter field isn't set yet there, so this goes through RuntimeHelpers.
+    public static void chargeClassInit(MethodVisitor visitor, long bytes) {
+        constLong(visitor, bytes);
+        visitor.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(RuntimeHelpers.class), "chargeClassInit", "(J)V", false);
+    }
 
     // Emit bytecode that does debug printing of various kinds
     public static final boolean DEBUG_PRINTS_ENABLED = false;
@@ -1,7 +1,7 @@
 package io.github.toomanylimits.wasmj.compiling.helpers;
 
 import io.github.toomanylimits.wasmj.compiling.compiler.CompilingSimpleInstructionVisitor;
-import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncRefCount;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstruction;
 import io.github.toomanylimits.wasmj.parsing.instruction.StackType;
 import io.github.toomanylimits.wasmj.parsing.types.ValType;
 import org.objectweb.asm.MethodVisitor;
@@ -58,18 +58,19 @@ public class CallingHelpers {
 
     /**
      * After calling a function, process the return values afterwards.
-     * If the boolean is true, then increment the refcounts of the returned values.
+     * If countRefs isn't null, it's emitted on each returned reference, to count it:
+     * IncRefCount, or EnterRefCount with deferred ref counting.
      */
-    public static void unwrapReturnValues(MethodVisitor visitor, CompilingSimpleInstructionVisitor compiler, StackType funcType, boolean incrementRefCounts) {
+    public static void unwrapReturnValues(MethodVisitor visitor, CompilingSimpleInstructionVisitor compiler, StackType funcType, SimpleInstruction.Intrinsic/*?*/ countRefs) {
         // Now deal with the return values.
         List<ValType> outTypes = funcType.outTypes();
         switch (outTypes.size()) {
             case 0 -> {} // no returns, no worries
             case 1 -> {
-                // If we count memory, and this is a reference type, then increment its ref count
-                if (incrementRefCounts && outTypes.get(0).isRef()) {
+                // If we count memory, and this is a reference type, then count it
+                if (countRefs != null && outTypes.get(0).isRef()) {
                     visitor.visitInsn(Opcodes.DUP); // Duplicate it
-                    compiler.visitIntrinsic(IncRefCount.INSTANCE); // Increment ref count
+                    compiler.visitIntrinsic(countRefs); // Count it
                 }
             }
             default -> {
@@ -80,10 +81,10 @@ public class CallingHelpers {
                     visitor.visitInsn(Opcodes.DUP2); // [arr, index, arr, index]
                     visitor.visitInsn(Opcodes.AALOAD); // [arr, index, boxed value]
                     BytecodeHelper.unboxValue(visitor, t); // [arr, index, unboxed value]
-                    // If we count memory and this is a reference type, increment its ref count
-                    if (incrementRefCounts && t.isRef()) {
+                    // If we count memory and this is a reference type, count it
+                    if (countRefs != null && t.isRef()) {
                         visitor.visitInsn(Opcodes.DUP); // Duplicate it
-                        compiler.visitIntrinsic(IncRefCount.INSTANCE); // Increment ref count
+                        compiler.visitIntrinsic(countRefs); // Count it
                     }
                     switch (t.stackSlots) {
                         case 1 -> visitor.visitInsn(Opcodes.DUP_X2);
@@ -0,0 +1,101 @@
+package io.github.toomanylimits.wasmj.compiling.helpers;
+
+import io.github.toomanylimits.wasmj.parsing.instruction.Expression;
+import io.github.toomanylimits.wasmj.parsing.instruction.Instruction;
+import io.github.toomanylimits.wasmj.parsing.module.Element;
+import io.github.toomanylimits.wasmj.parsing.module.Export;
+import io.github.toomanylimits.wasmj.parsing.module.Global;
+import io.github.toomanylimits.wasmj.parsing.module.WasmModule;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the functions of a module which can ever be called. Binaries from
+ * languages like Rust and C often contain a lot of code which nothing calls,
+ * so skipping those functions saves converting and compiling them, and makes
+ * the module class smaller.
+ *
+ * A function can be called if it's exported, if it's the start function,
+ * if a ref.func refers to it (in a global or element segment initializer, or
+ * in a reachable function), or if a reachable function calls it directly.
+ * Tables, including the ones the host can access, only ever hold functions
+ * from element segments and ref.func, so everything call_indirect can reach
+ * is covered.
+ *
+ * Unreachable functions aren't converted, so they aren't validated either.
+ *
+ * Setting the system property "wasmj.eliminateDeadFunctions" to false turns
+ * this off, so every function is converted and compiled.
+ */
+public class FunctionReachability {
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("wasmj.eliminateDeadFunctions", "true"));
+    }
+
+    /**
+     * Whether each function in the module, including imported ones, can be called.
+     * If the analysis is turned off, every function can.
+     */
+    public static boolean[] reachableFunctions(WasmModule module) {
+        int importCount = module.funcImports().size();
+        boolean[] reachable = new boolean[importCount + module.functions.size()];
+        if (!isEnabled()) {
+            Arrays.fill(reachable, true);
+            return reachable;
+        }
+
+        // Mark the roots
+        ArrayDeque<Integer> toVisit = new ArrayDeque<>();
+        for (Export export : module.exports)
+            if (export.type() == Export.ExportType.FUNC)
+                mark(export.index(), reachable, toVisit);
+        if (module.start != null)
+            mark(module.start, reachable, toVisit);
+        for (Global global : module.globals)
+            markReferenced(global.initializer().getInstructions(), reachable, toVisit);
+        for (Element element : module.elements)
+            for (Expression expr : element.exprs())
+                markReferenced(expr.getInstructions(), reachable, toVisit);
+
+        // Follow the calls and ref.funcs of each reachable function
+        while (!toVisit.isEmpty()) {
+            int funcIndex = toVisit.pop();
+            if (funcIndex >= importCount)
+                markReferenced(module.codes.get(funcIndex - importCount).expr.getInstructions(), reachable, toVisit);
+        }
+        return reachable;
+    }
+
+    private static void mark(int funcIndex, boolean[] reachable, ArrayDeque<Integer> toVisit) {
+        if (funcIndex < 0 || funcIndex >= reachable.length)
+            return; // Invalid, which is reported when converting the instruction
+        if (!reachable[funcIndex]) {
+            reachable[funcIndex] = true;
+            toVisit.push(funcIndex);
+        }
+    }
+
+    // Mark the functions the instructions call or refer to, including inside blocks
+    private static void markReferenced(List<Instruction> instructions, boolean[] reachable, ArrayDeque<Integer> toVisit) {
+        for (Instruction inst : instructions) {
+            if (inst instanceof Instruction.Call call) {
+                mark(call.index(), reachable, toVisit);
+            } else if (inst instanceof Instruction.RefFunc refFunc) {
+                mark(refFunc.funcIndex(), reachable, toVisit);
+            } else if (inst instanceof Instruction.Block block) {
+                markReferenced(block.inside(), reachable, toVisit);
+            } else if (inst instanceof Instruction.Loop loop) {
+                markReferenced(loop.inside(), reachable, toVisit);
+            } else if (inst instanceof Instruction.If ifInst) {
+                markReferenced(ifInst.inside(), reachable, toVisit);
+            } else if (inst instanceof Instruction.IfElse ifElse) {
+                markReferenced(ifElse.ifTrue(), reachable, toVisit);
+                markReferenced(ifElse.ifFalse(), reachable, toVisit);
+            }
+        }
+    }
+
+}
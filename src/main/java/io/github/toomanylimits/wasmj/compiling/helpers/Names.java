@@ -13,8 +13,9 @@ public class Names {
 
     // The special table key used for @ExternrefTableAccess, and the table allocator function name
     public static final String SPECIAL_EXTERNREF_TABLE_EXPORT_KEY = "__externref_table";
-    public static String externrefTableAccessorImplClassName(String moduleName) { return "accessor_impls/" + moduleName; }
     public static String externrefTableAccessorFieldName() { return "externrefTableAccessor"; }
+    public static String externrefFreeSlotsFieldName() { return "externrefFreeSlots"; }
+    public static String externrefAccessorMethodName(String methodName) { return "externref_accessor_" + methodName; }
 
     // The special table key used for
     public static final String SPECIAL_FUNCREF_TABLE_EXPORT_KEY = "__indirect_function_table"; // This is emitted by rust when using the "-C link-arg=--export-table" flag!
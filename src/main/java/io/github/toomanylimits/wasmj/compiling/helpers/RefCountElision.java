@@ -0,0 +1,111 @@
+package io.github.toomanylimits.wasmj.compiling.helpers;
+
+import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstruction;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.misc.RefIsNull;
+
+import java.util.*;
+
+/**
+ * Finds reference counting which can be skipped in a function body, when
+ * the limiter counts memory. Loading a ref-typed local increments the
+ * refcount of its object, and storing into one decrements the refcount of
+ * the object it held, so some common pairs of instructions do work which
+ * is undone right away:
+ *
+ * - local.get x; drop -> nothing happens at all
+ * - local.get x; local.set x -> nothing happens at all
+ * - local.tee x; drop -> the same as local.set x
+ * - local.get x; ref.is_null -> just a null check, the local keeps its reference
+ * - local.tee x; ref.is_null -> local.set x, then a null check of the local
+ *
+ * The object stays referenced by the local in between, so skipping an
+ * increment and its matching decrement never changes when it's dropped.
+ *
+ * Separately, the first store into a declared (non-param) local, in the
+ * straight-line code at the start of the function, doesn't need to
+ * decrement the previous value, since it's always null. This covers the
+ * stores which initialize the locals.
+ *
+ * Setting the system property "wasmj.elideRefCounts" to false turns this
+ * off, which is useful for checking that it doesn't change any counts.
+ */
+public class RefCountElision {
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("wasmj.elideRefCounts", "true"));
+    }
+
+    public enum Pair {
+        LOAD_POP,
+        LOAD_STORE,
+        TEE_POP,
+        LOAD_IS_NULL,
+        TEE_IS_NULL
+    }
+
+    /**
+     * If the instruction at the given index, and the one after it, form
+     * a pair whose refcounting cancels out, return which kind of pair.
+     * Otherwise, return null.
+     */
+    public static Pair pairAt(List<SimpleInstruction> instructions, int index) {
+        if (index + 1 >= instructions.size())
+            return null;
+        SimpleInstruction first = instructions.get(index);
+        SimpleInstruction second = instructions.get(index + 1);
+        if (first instanceof SimpleInstruction.LocalLoad load && load.type().isRef()) {
+            if (second instanceof SimpleInstruction.Pop)
+                return Pair.LOAD_POP;
+            if (second instanceof SimpleInstruction.LocalStore store && store.jvmLocalIndex() == load.jvmLocalIndex())
+                return Pair.LOAD_STORE;
+            if (second == RefIsNull.INSTANCE)
+                return Pair.LOAD_IS_NULL;
+        } else if (first instanceof SimpleInstruction.LocalTee tee && tee.type().isRef()) {
+            if (second instanceof SimpleInstruction.Pop)
+                return Pair.TEE_POP;
+            if (second == RefIsNull.INSTANCE)
+                return Pair.TEE_IS_NULL;
+        }
+        return null;
+    }
+
+    /**
+     * Find the stores (LocalStore or LocalTee) in the function body which
+     * write a ref-typed declared local for the first time, so the local is
+     * known to still be null. Only the straight-line code at the start of the
+     * function is checked, up to the first control flow instruction.
+     * The returned set compares instructions by identity.
+     */
+    public static Set<SimpleInstruction> firstStores(List<SimpleInstruction> body, int firstDeclaredSlot) {
+        Set<SimpleInstruction> result = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Integer> written = new HashSet<>();
+        for (SimpleInstruction inst : body) {
+            if (inst instanceof SimpleInstruction.Block || inst instanceof SimpleInstruction.Loop || inst instanceof SimpleInstruction.IfElse
+                    || inst instanceof SimpleInstruction.Jump || inst instanceof SimpleInstruction.JumpTable || inst instanceof SimpleInstruction.Return)
+                break;
+            int local;
+            if (inst instanceof SimpleInstruction.LocalStore store && store.type().isRef())
+                local = store.jvmLocalIndex();
+            else if (inst instanceof SimpleInstruction.LocalTee tee && tee.type().isRef())
+                local = tee.jvmLocalIndex();
+            else
+                continue;
+            if (local >= firstDeclaredSlot && written.add(local))
+                result.add(inst);
+        }
+        return result;
+    }
+
+    /**
+     * The JVM slots of the ref-typed declared locals of a function, found
+     * from the top level stores which initialize them.
+     */
+    public static Set<Integer> declaredRefLocals(List<SimpleInstruction> body, int firstDeclaredSlot) {
+        Set<Integer> result = new TreeSet<>();
+        for (SimpleInstruction inst : body)
+            if (inst instanceof SimpleInstruction.LocalStore store && store.type().isRef() && store.jvmLocalIndex() >= firstDeclaredSlot)
+                result.add(store.jvmLocalIndex());
+        return result;
+    }
+
+}
@@ -86,6 +86,15 @@ public sealed interface SimpleInstruction {
          */
         ClassGenCallback classGenCallback();
 
+        /**
+         * Whether the code emitted by this intrinsic (including its helpers) calls
+         * the limiter's incInstructions() directly. If so, functions using
+         * LOCAL_FUEL metering hand their fuel back to the limiter around it.
+         */
+        default boolean usesInstructionLimiter() {
+            return false;
+        }
+
     }
 
 }
@@ -1,8 +1,11 @@
 package io.github.toomanylimits.wasmj.compiling.simple_structure;
 
+import io.github.toomanylimits.wasmj.compiling.helpers.FunctionReachability;
 import io.github.toomanylimits.wasmj.compiling.helpers.Names;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.data.SimpleData;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.data.SimpleElem;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.memory.MemoryGrow;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.table.TableGrow;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.members.SimpleFunction;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.members.SimpleGlobal;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.members.SimpleMemory;
@@ -18,15 +21,18 @@ import io.github.toomanylimits.wasmj.parsing.types.Limits;
 import io.github.toomanylimits.wasmj.parsing.types.TableType;
 import io.github.toomanylimits.wasmj.parsing.types.ValType;
 import io.github.toomanylimits.wasmj.runtime.WasmInstance;
+import io.github.toomanylimits.wasmj.runtime.memory.MemoryBackend;
 import io.github.toomanylimits.wasmj.runtime.reflect.JavaModuleData;
 import io.github.toomanylimits.wasmj.util.ListUtils;
 import org.objectweb.asm.Opcodes;
 
 import javax.swing.plaf.ListUI;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 /**
  * A module, after having been converted to the simplified format.
@@ -51,13 +57,19 @@ public class SimpleModule {
     // Index of the special funcref table. -1 if there is no such table.
     private int funcrefTableIndex = -1;
 
+    // Whether any function uses memory.grow, and the indices of the tables any function uses table.grow on.
+    // Memories and tables which never change size can be stored in static final fields.
+    private boolean growsMemory = false;
+    private final Set<Integer> grownTables = new HashSet<>();
+
     /**
      * To create a SimpleModule, we need to give it:
      * - A name for the module
      * - A WasmModule to base it off of
      * - The instance in which this module is being created
+     * - The backend with which to store the module's memory
      */
-    public SimpleModule(String moduleName, WasmModule wasmModule, WasmInstance instance) throws Validator.ValidationException {
+    public SimpleModule(String moduleName, WasmModule wasmModule, WasmInstance instance, MemoryBackend memoryBackend) throws Validator.ValidationException {
         // Get basic values
         this.moduleName = moduleName;
         this.instance = instance;
@@ -85,12 +97,18 @@ public class SimpleModule {
                 this.functions[i] = new SimpleFunction.ImportedWasmFunction(importModule, exportedAs, funcImport.elementName, funcType);
             }
         }
+        boolean[] reachable = FunctionReachability.reachableFunctions(wasmModule);
         for (int i = wasmModule.funcImports().size(); i < functions.length; i++) {
             // Get the function debug name, if any
             String debugName = FuncNameAssociation.find(wasmModule.debugFuncNames, i);
             // Get adjusted defaultIndex and type
             int adjustedIndex = i - wasmModule.funcImports().size();
             StackType funcType = wasmModule.types.get(wasmModule.functions.get(adjustedIndex));
+            // Skip the functions nothing can call
+            if (!reachable[i]) {
+                this.functions[i] = new SimpleFunction.UnreachableFunction(adjustedIndex, funcType);
+                continue;
+            }
             // Convert the instructions
             Code code = wasmModule.codes.get(adjustedIndex);
             InstructionConversionVisitor converter = new InstructionConversionVisitor(wasmModule, code.locals, funcType.outTypes());
@@ -111,6 +129,7 @@ public class SimpleModule {
             // Write the main function body
             funcBody.addAll(ListUtils.flatMapNonNull(code.expr.getInstructions(), x -> x.accept(converter)));
             funcBody.add(converter.visitReturn(Instruction.Return.INSTANCE)); // Return at the end!
+            findGrows(funcBody);
             // Create the function and store it in the array
             String exportedAs = exportedFuncs.get(i);
             this.functions[i] = new SimpleFunction.SameFileFunction(adjustedIndex, debugName, funcType, exportedAs, funcBody, converter.nextLocalSlot);
@@ -161,7 +180,9 @@ public class SimpleModule {
                 this.externrefTableIndex = i;
             else if (Names.SPECIAL_FUNCREF_TABLE_EXPORT_KEY.equals(exportedAs))
                 this.funcrefTableIndex = i;
-            this.tables[i] = new SimpleTable.SameFileTable(adjustedIndex, tableType, exportedAs);
+            // Exported tables may be grown or replaced by other modules. The special tables are exported too.
+            boolean fixedSize = exportedAs == null && !grownTables.contains(i);
+            this.tables[i] = new SimpleTable.SameFileTable(adjustedIndex, tableType, exportedAs, fixedSize);
         }
 
         // Memories (really memory, since max of 1 is allowed)
@@ -170,13 +191,15 @@ public class SimpleModule {
             throw new Validator.ValidationException("Too many memories in module \"" + moduleName + "\"; WASM only supports one!");
         if (wasmModule.memImports().size() + wasmModule.memories.size() == 0) {
             // No memories at all, create a dummy empty memory of 0 bytes
-            memory = new SimpleMemory.SameFileMemory(0, new Limits(0, 0), null);
+            memory = new SimpleMemory.SameFileMemory(0, new Limits(0, 0), null, memoryBackend, memoryBackend.canBeFixed());
         } else if (wasmModule.memImports().size() == 1) {
             // The memory is imported
             throw new IllegalStateException("Memory imports not yet implemented");
         } else if (wasmModule.memories.size() == 1) {
             // The memory is defined in this file
-            memory = new SimpleMemory.SameFileMemory(0, wasmModule.memories.get(0), exportedMemories.get(0));
+            String exportedAs = exportedMemories.get(0);
+            boolean fixedSize = exportedAs == null && !growsMemory && memoryBackend.canBeFixed();
+            memory = new SimpleMemory.SameFileMemory(0, wasmModule.memories.get(0), exportedAs, memoryBackend, fixedSize);
         } else throw new IllegalStateException();
 
         // Datas
@@ -220,6 +243,24 @@ public class SimpleModule {
 
     }
 
+    // Record the memory.grow and table.grow instructions in the instructions, including inside blocks
+    private void findGrows(List<SimpleInstruction> instructions) {
+        for (SimpleInstruction inst : instructions) {
+            if (inst == MemoryGrow.INSTANCE) {
+                growsMemory = true;
+            } else if (inst instanceof TableGrow grow) {
+                grownTables.add(grow.tableIndex());
+            } else if (inst instanceof SimpleInstruction.Block block) {
+                findGrows(block.inner());
+            } else if (inst instanceof SimpleInstruction.Loop loop) {
+                findGrows(loop.inner());
+            } else if (inst instanceof SimpleInstruction.IfElse ifElse) {
+                findGrows(ifElse.ifTrue());
+                findGrows(ifElse.ifFalse());
+            }
+        }
+    }
+
     public int getExternrefTableIndex() {
         return externrefTableIndex;
     }
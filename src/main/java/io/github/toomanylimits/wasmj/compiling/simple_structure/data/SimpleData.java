@@ -9,6 +9,7 @@ import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.Class
 import io.github.toomanylimits.wasmj.compiling.helpers.BytecodeHelper;
 import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
@@ -51,19 +52,22 @@ public record SimpleData(int declaredIndex, byte[] bytes, List<SimpleInstruction
 
         // Create the field:
         classWriter.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC, Names.dataFieldName(declaredIndex), "[B", null, null);
-        // Fetch the byte[] instance from the module, which is the third parameter to the init method
-        initFunction.visitVarInsn(Opcodes.ALOAD, Compiler.INIT_FUNCTION_SIMPLE_MODULE_LOCAL); // [module]
-        initFunction.visitFieldInsn(Opcodes.GETFIELD, Type.getInternalName(SimpleModule.class), "datas", Type.getDescriptor(SimpleData[].class)); // [module.datas]
-        BytecodeHelper.constInt(initFunction, declaredIndex); // [module.datas, dataIndex]
-        initFunction.visitInsn(Opcodes.AALOAD); // [module.datas[dataIndex]]
-        initFunction.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(SimpleData.class), "bytes", "()[B", false); // [module.datas[dataIndex].bytes]
+        // Fetch the byte[] from the data array, which is the third parameter to the init method
+        initFunction.visitVarInsn(Opcodes.ALOAD, Compiler.INIT_FUNCTION_DATAS_LOCAL); // [datas]
+        BytecodeHelper.constInt(initFunction, declaredIndex); // [datas, dataIndex]
+        initFunction.visitInsn(Opcodes.AALOAD); // [datas[dataIndex]]
         // Store it in the newly created field:
         initFunction.visitFieldInsn(Opcodes.PUTSTATIC, Names.className(declaringModule.moduleName), Names.dataFieldName(declaredIndex), "[B"); // []
 
-        // Visit the initialization code, if we have any (meaning it's an Active data):
+        // Visit the initialization code, if we have any (meaning it's an Active data),
+        // unless the init method was told not to initialize segments:
         if (initializeInstructions != null) {
+            Label skip = new Label();
+            initFunction.visitVarInsn(Opcodes.ILOAD, Compiler.INIT_FUNCTION_INIT_SEGMENTS_LOCAL); // [initSegments]
+            initFunction.visitJumpInsn(Opcodes.IFEQ, skip); // []
             CompilingSimpleInstructionVisitor compilingVisitor = new CompilingSimpleInstructionVisitor(declaringModule, initFunction, Compiler.INIT_FUNCTION_NEXT_LOCAL, classGenCallbacks);
             compilingVisitor.emitMultipleInstructions(initializeInstructions);
+            initFunction.visitLabel(skip);
         }
     }
 
@@ -8,9 +8,11 @@ import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstructio
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.DecRefCount;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncRefCount;
 import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
 import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
@@ -61,6 +63,13 @@ public record SimpleElem(int declaredIndex, List<List<SimpleInstruction>> elemen
             initFunction.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(InstanceLimiter.class), "incHeapMemoryUsed", "(J)V", false); // []
         }
 
+        // Active elems are skipped if the init method was told not to initialize segments
+        Label skip = new Label();
+        if (this.isActive()) {
+            initFunction.visitVarInsn(Opcodes.ILOAD, Compiler.INIT_FUNCTION_INIT_SEGMENTS_LOCAL); // [initSegments]
+            initFunction.visitJumpInsn(Opcodes.IFEQ, skip); // []
+        }
+
         // Make a compiling visitor
         CompilingSimpleInstructionVisitor compilingVisitor = new CompilingSimpleInstructionVisitor(declaringModule, initFunction, Compiler.INIT_FUNCTION_NEXT_LOCAL, classGenCallbacks);
 
@@ -92,6 +101,11 @@ public record SimpleElem(int declaredIndex, List<List<SimpleInstruction>> elemen
             }
             // Evaluate the expression (this also increments the refcount of the new object)
             compilingVisitor.emitMultipleInstructions(elementInitializer); // [arr, index, arr, index, value]
+            // With deferred ref counting, the value wasn't counted on the stack, but is counted in the array
+            if (declaringModule.instance.limiter.defersRefCounts) {
+                initFunction.visitInsn(Opcodes.DUP);
+                compilingVisitor.visitIntrinsic(IncRefCount.INSTANCE);
+            }
             // Place the value in the array
             initFunction.visitInsn(Opcodes.AASTORE); // [arr, index]
             // Increment the index
@@ -109,6 +123,7 @@ public record SimpleElem(int declaredIndex, List<List<SimpleInstruction>> elemen
             initFunction.visitInsn(Opcodes.POP); // [arr]
             initFunction.visitFieldInsn(Opcodes.PUTSTATIC, Names.className(declaringModule.moduleName), Names.elemFieldName(declaredIndex), descriptor); // []
         }
+        initFunction.visitLabel(skip);
 
     }
 
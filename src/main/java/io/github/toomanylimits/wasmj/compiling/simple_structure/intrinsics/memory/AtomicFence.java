@@ -0,0 +1,27 @@
+package io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.memory;
+
+import io.github.toomanylimits.wasmj.compiling.compiler.CompilingSimpleInstructionVisitor;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstruction;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.VarHandle;
+
+public class AtomicFence implements SimpleInstruction.Intrinsic {
+
+    public static final AtomicFence INSTANCE = new AtomicFence();
+    private AtomicFence() {}
+
+    @Override
+    public void atCallSite(SimpleModule module, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
+        visitor.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(VarHandle.class), "fullFence", "()V", false);
+    }
+
+    @Override
+    public ClassGenCallback classGenCallback() {
+        return null;
+    }
+}
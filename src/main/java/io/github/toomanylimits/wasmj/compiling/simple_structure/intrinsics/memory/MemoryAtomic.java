@@ -0,0 +1,136 @@
+package io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.memory;
+
+import io.github.toomanylimits.wasmj.compiling.compiler.CompilingSimpleInstructionVisitor;
+import io.github.toomanylimits.wasmj.compiling.helpers.BytecodeHelper;
+import io.github.toomanylimits.wasmj.compiling.helpers.Names;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstruction;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
+import io.github.toomanylimits.wasmj.parsing.instruction.Instruction;
+import io.github.toomanylimits.wasmj.parsing.types.ValType;
+import io.github.toomanylimits.wasmj.runtime.memory.AtomicMemory;
+import io.github.toomanylimits.wasmj.runtime.memory.MemoryBackend;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+import io.github.toomanylimits.wasmj.util.ListUtils;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.List;
+
+/**
+ * The atomic memory instructions of the threads proposal, other than atomic.fence.
+ * - The kind of instruction
+ * - For RMW, the operation, otherwise null
+ * - The type of the values on the wasm stack
+ * - The number of bytes accessed in memory
+ * - The offset to access with
+ *
+ * Like MemoryLoad and MemoryStore, the call site computes the address and
+ * calls into AtomicMemory, which does the actual access.
+ */
+public record MemoryAtomic(Kind kind, Instruction.AtomicRmwOp op, ValType type, int bytes, int offset) implements SimpleInstruction.Intrinsic {
+
+    public enum Kind { LOAD, STORE, RMW, CMPXCHG, WAIT, NOTIFY }
+
+    @Override
+    public void atCallSite(SimpleModule module, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
+        MemoryBackend backend = module.memory.backend();
+        if (backend != MemoryBackend.HEAP_ARRAY && backend != MemoryBackend.PAGED)
+            throw new UnsupportedOperationException("Module \"" + module.moduleName + "\" uses atomic memory instructions, which require the HEAP_ARRAY or PAGED memory backend, but the module uses " + backend);
+        if (kind == Kind.WAIT && !module.memory.limits().shared()) {
+            // Waiting on an unshared memory always traps
+            BytecodeHelper.throwRuntimeError(visitor, "memory.atomic.wait on a memory which isn't shared");
+            return;
+        }
+        // Stack = [index, args...]
+        // Stash the args, so the memory can go underneath the address
+        List<ValType> args = args();
+        int local = compilingVisitor.getNextLocalSlot();
+        for (ValType arg : ListUtils.reversed(args)) {
+            visitor.visitVarInsn(arg.storeOpcode, local);
+            local += arg.stackSlots;
+        } // [index]
+        BytecodeHelper.constInt(visitor, offset); // [index, offset]
+        visitor.visitInsn(Opcodes.IADD); // [address]
+        module.memory.getMemory(module, visitor); // [address, memory]
+        visitor.visitInsn(Opcodes.SWAP); // [memory, address]
+
+        // Sub-word and narrowed accesses say how many bytes, and RMWs say which op
+        boolean longVersion = (kind == Kind.LOAD || kind == Kind.STORE || kind == Kind.RMW || kind == Kind.CMPXCHG) && bytes == 8;
+        if (!longVersion && kind != Kind.WAIT && kind != Kind.NOTIFY)
+            BytecodeHelper.constInt(visitor, bytes); // [memory, address, bytes]
+        if (kind == Kind.RMW)
+            BytecodeHelper.constInt(visitor, op.ordinal()); // [memory, address, bytes?, op]
+
+        // Load the args back, narrowing i64s which only access 32 bits or less
+        StringBuilder runtimeDesc = new StringBuilder("(").append(backend.descriptor).append("I");
+        if (!longVersion && kind != Kind.WAIT && kind != Kind.NOTIFY)
+            runtimeDesc.append("I");
+        if (kind == Kind.RMW)
+            runtimeDesc.append("I");
+        for (ValType arg : args) {
+            local -= arg.stackSlots;
+            visitor.visitVarInsn(arg.loadOpcode, local);
+            if (arg == type && narrowed()) {
+                visitor.visitInsn(Opcodes.L2I);
+                runtimeDesc.append("I");
+            } else {
+                runtimeDesc.append(arg.descriptor);
+            }
+        } // [memory, address, bytes?, op?, args...]
+
+        // Waits take the limiter, so they can be interrupted
+        if (kind == Kind.WAIT) {
+            visitor.visitFieldInsn(Opcodes.GETSTATIC, Names.className(module.moduleName), Names.limiterFieldName(), Type.getDescriptor(InstanceLimiter.class)); // [memory, address, args..., limiter]
+            runtimeDesc.append(Type.getDescriptor(InstanceLimiter.class));
+        }
+
+        String runtimeName = switch (kind) {
+            case LOAD -> "load";
+            case STORE -> "store";
+            case RMW -> "rmw";
+            case CMPXCHG -> "cmpxchg";
+            case WAIT -> type == ValType.I32 ? "wait32" : "wait64";
+            case NOTIFY -> "notify";
+        } + (longVersion ? "J" : "");
+        String runtimeResult = narrowed() && !resultDescriptor().equals("V") ? "I" : resultDescriptor();
+        runtimeDesc.append(")").append(runtimeResult);
+        visitor.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(AtomicMemory.class), runtimeName, runtimeDesc.toString(), false); // [result?]
+
+        // Narrowed results come back zero-extended to an int, zero-extend them to a long
+        if (narrowed() && runtimeResult.equals("I")) {
+            visitor.visitInsn(Opcodes.I2L);
+            BytecodeHelper.constLong(visitor, 0xFFFFFFFFL);
+            visitor.visitInsn(Opcodes.LAND);
+        }
+    }
+
+    // Whether the value is narrower than its wasm type, so goes through the int versions of the AtomicMemory methods
+    private boolean narrowed() {
+        return type == ValType.I64 && bytes < 8;
+    }
+
+    private List<ValType> args() {
+        return switch (kind) {
+            case LOAD -> List.of();
+            case STORE, RMW -> List.of(type);
+            case CMPXCHG -> List.of(type, type);
+            case WAIT -> List.of(type, ValType.I64);
+            case NOTIFY -> List.of(ValType.I32);
+        };
+    }
+
+    private String resultDescriptor() {
+        return switch (kind) {
+            case LOAD, RMW, CMPXCHG -> type.descriptor;
+            case STORE -> "V";
+            case WAIT, NOTIFY -> "I";
+        };
+    }
+
+    @Override
+    public ClassGenCallback classGenCallback() {
+        return null;
+    }
+}
@@ -5,7 +5,6 @@ import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstructio
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
 import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Opcodes;
 
 public class MemorySize implements SimpleInstruction.Intrinsic {
 
@@ -16,7 +15,7 @@ public class MemorySize implements SimpleInstruction.Intrinsic {
     @Override
     public void atCallSite(SimpleModule module, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
         module.memory.getMemory(module, visitor);
-        visitor.visitInsn(Opcodes.ARRAYLENGTH);
+        module.memory.emitByteSize(visitor);
     }
 
     @Override
@@ -4,6 +4,7 @@ import io.github.toomanylimits.wasmj.compiling.compiler.CompilingSimpleInstructi
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstruction;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.EnterRefCount;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncRefCount;
 import io.github.toomanylimits.wasmj.runtime.types.FuncRefInstance;
 import org.objectweb.asm.Handle;
@@ -23,9 +24,9 @@ public record RefFunc(int funcIndex) implements SimpleInstruction.Intrinsic {
         visitor.visitLdcInsn(asmHandle); // [funcref, funcref, MethodHandle]
         visitor.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(FuncRefInstance.class), "<init>", "(" + Type.getDescriptor(MethodHandle.class) + ")V", false); // [funcref]
         if (module.instance.limiter.countsMemory) {
-            // If it counts memory, increment the object's refcount
+            // If it counts memory, increment the object's refcount, or with deferred ref counting, note the new object
             visitor.visitInsn(Opcodes.DUP);
-            compilingVisitor.visitIntrinsic(IncRefCount.INSTANCE);
+            compilingVisitor.visitIntrinsic(module.instance.limiter.defersRefCounts ? EnterRefCount.INSTANCE : IncRefCount.INSTANCE);
         }
     }
 
@@ -19,7 +19,7 @@ public class RefIsNull implements SimpleInstruction.Intrinsic {
     public void atCallSite(SimpleModule module, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
         // If we count memory, need something more advanced
         // [object]
-        if (module.instance.limiter.countsMemory) {
+        if (module.instance.limiter.countsStackRefs) {
             Label isNull = new Label();
             Label end = new Label();
             visitor.visitInsn(Opcodes.DUP); // [object, object]
@@ -0,0 +1,50 @@
+package io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox;
+
+import io.github.toomanylimits.wasmj.compiling.compiler.CompilingSimpleInstructionVisitor;
+import io.github.toomanylimits.wasmj.compiling.helpers.BytecodeHelper;
+import io.github.toomanylimits.wasmj.compiling.helpers.Names;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstruction;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Not generated by any WASM instruction in particular, but is emitted
+ * sometimes when compiling to keep code cleaner.
+ *
+ * Pops a RefCountable from the top of the stack, which just came into the
+ * guest from Java, and calls enter() on it. Only used with deferred ref
+ * counting, where this takes the place of IncRefCount for such objects.
+ */
+public class EnterRefCount implements SimpleInstruction.Intrinsic {
+
+    public static final EnterRefCount INSTANCE = new EnterRefCount();
+    private EnterRefCount() {}
+
+    @Override
+    public void atCallSite(SimpleModule module, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
+        if (!module.instance.limiter.defersRefCounts)
+            throw new IllegalStateException("EnterRefCount intrinsic should only be generated when the module defers ref counting - bug in compiler!");
+        // If non-null, get limiter and call enter().
+        // [obj]
+        visitor.visitInsn(Opcodes.DUP); // [obj, obj]
+        BytecodeHelper.writeIfElse(visitor, Opcodes.IFNULL, ifTrue -> {
+            // [obj]
+            ifTrue.visitFieldInsn(Opcodes.GETSTATIC, Names.className(module.moduleName), Names.limiterFieldName(), Type.getDescriptor(InstanceLimiter.class)); // [obj, limiter]
+            ifTrue.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(RefCountable.class), "enter", Type.getMethodDescriptor(Type.getType(void.class), Type.getType(InstanceLimiter.class)), false); // []
+        }, ifFalse -> {
+            // [null]
+            ifFalse.visitInsn(Opcodes.POP); // []
+        });
+        // []
+    }
+
+    @Override
+    public ClassGenCallback classGenCallback() {
+        return null;
+    }
+}
@@ -22,6 +22,11 @@ public class IncInstructions implements SimpleInstruction.Intrinsic {
     public void atCallSite(SimpleModule module, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
         if (!module.instance.limiter.countsInstructions)
             throw new IllegalStateException("Should only call IncInstructions if the instance counts instructions!");
+        if (compilingVisitor != null && compilingVisitor.usesLocalFuel()) {
+            // Just burn the fuel in the local
+            compilingVisitor.emitConsumeFuelFromStack();
+            return;
+        }
         // Get limiter, swap, call inc
         String className = Names.className(module.moduleName);
         String fieldName = Names.limiterFieldName();
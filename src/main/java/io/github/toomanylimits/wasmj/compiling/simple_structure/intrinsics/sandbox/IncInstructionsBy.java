@@ -20,7 +20,10 @@ public record IncInstructionsBy(long amount) implements SimpleInstruction.Intrin
     public void atCallSite(SimpleModule module, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
         if (!module.instance.limiter.countsInstructions)
             throw new IllegalStateException("Should only call IncInstructionsBy if the instance counts instructions!");
-        if (amount > 0) {
+        if (amount > 0 && compilingVisitor != null && compilingVisitor.usesLocalFuel()) {
+            // Just burn the fuel in the local
+            compilingVisitor.emitConsumeFuel(amount);
+        } else if (amount > 0) {
             // Get limiter, get count, call inc
             String className = Names.className(module.moduleName);
             String fieldName = Names.limiterFieldName();
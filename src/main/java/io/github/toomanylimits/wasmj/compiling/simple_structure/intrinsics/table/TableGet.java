@@ -15,8 +15,8 @@ public record TableGet(int tableIndex) implements SimpleInstruction.Intrinsic {
         module.tables[tableIndex].getTable(module, visitor); // [defaultIndex, array]
         visitor.visitInsn(Opcodes.SWAP); // [array, defaultIndex]
         visitor.visitInsn(Opcodes.AALOAD); // [array[defaultIndex]]
-        // If we count memory usage, increment the refcount
-        if (module.instance.limiter.countsMemory) {
+        // If we count references on the stack, increment the refcount
+        if (module.instance.limiter.countsStackRefs) {
             visitor.visitInsn(Opcodes.DUP);
             compilingVisitor.visitIntrinsic(IncRefCount.INSTANCE);
         }
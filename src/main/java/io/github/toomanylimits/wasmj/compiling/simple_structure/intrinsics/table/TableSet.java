@@ -1,20 +1,37 @@
 package io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.table;
 
 import io.github.toomanylimits.wasmj.compiling.compiler.CompilingSimpleInstructionVisitor;
+import io.github.toomanylimits.wasmj.compiling.helpers.Names;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstruction;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.DecRefCount;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncRefCount;
+import io.github.toomanylimits.wasmj.runtime.ExternrefFreeSlots;
+import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 
 public record TableSet(int tableIndex) implements SimpleInstruction.Intrinsic {
     @Override
     public void atCallSite(SimpleModule module, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
         // Stack = [defaultIndex, valueToStore]
+        // Keep the externref table's free slots up to date
+        if (tableIndex == module.getExternrefTableIndex()) {
+            visitor.visitInsn(Opcodes.DUP2); // [defaultIndex, valueToStore, defaultIndex, valueToStore]
+            visitor.visitFieldInsn(Opcodes.GETSTATIC, Names.className(module.moduleName), Names.externrefFreeSlotsFieldName(), Type.getDescriptor(ExternrefFreeSlots.class)); // [defaultIndex, valueToStore, defaultIndex, valueToStore, slots]
+            String onSetDesc = "(I" + Type.getDescriptor(RefCountable.class) + Type.getDescriptor(ExternrefFreeSlots.class) + ")V";
+            visitor.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(ExternrefFreeSlots.class), "onSet", onSetDesc, false); // [defaultIndex, valueToStore]
+        }
         if (module.instance.limiter.countsMemory) {
             // We do memory counting
             int local = compilingVisitor.getNextLocalSlot();
+            // With deferred ref counting, the value wasn't counted on the stack, but is counted in the table
+            if (module.instance.limiter.defersRefCounts) {
+                visitor.visitInsn(Opcodes.DUP); // [defaultIndex, valueToStore, valueToStore]
+                compilingVisitor.visitIntrinsic(IncRefCount.INSTANCE); // [defaultIndex, valueToStore]
+            }
             visitor.visitVarInsn(Opcodes.ASTORE, local); // [defaultIndex]
             module.tables[tableIndex].getTable(module, visitor); // [defaultIndex, array]
             visitor.visitInsn(Opcodes.SWAP); // [array, defaultIndex]
@@ -8,12 +8,16 @@ import io.github.toomanylimits.wasmj.compiling.compiler.CompilingSimpleInstructi
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleInstruction;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.EnterRefCount;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncRefCount;
 import io.github.toomanylimits.wasmj.parsing.instruction.StackType;
 import io.github.toomanylimits.wasmj.parsing.types.ValType;
 import io.github.toomanylimits.wasmj.runtime.ExportedFunction;
 import io.github.toomanylimits.wasmj.runtime.ExternrefTableAccessor;
+import io.github.toomanylimits.wasmj.runtime.memory.MemoryBackend;
 import io.github.toomanylimits.wasmj.runtime.reflect.JavaModuleData;
 import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+import io.github.toomanylimits.wasmj.util.ListUtils;
 import org.objectweb.asm.*;
 
 import java.lang.invoke.MethodHandle;
@@ -49,6 +53,11 @@ public interface SimpleFunction {
 
     /**
      * A WASM function which is defined in the current module.
+     *
+     * With LOCAL_FUEL metering, the method holding the body takes the caller's
+     * fuel as one more long param, so calls within the module don't go through
+     * the limiter on the way in. The method with the plain descriptor takes the
+     * fuel from the limiter and passes it on, for everything else that calls it.
      */
     record SameFileFunction(int declaredIndex, String debugName, StackType funcType, String/*?*/ exportedAs, List<SimpleInstruction> instructions, int nextLocalSlot) implements SimpleFunction {
         @Override
@@ -59,29 +68,55 @@ public interface SimpleFunction {
             String className = Names.className(callingModule.moduleName);
             String methodName = Names.funcName(declaredIndex, debugName);
             String descriptor = funcType.descriptor();
+            if (compilingVisitor.usesLocalFuel()) {
+                compilingVisitor.emitLoadFuel();
+                descriptor = withFuelParam(descriptor);
+            }
             // BytecodeHelper.debugPrintln(visitor, "Calling " + methodName);
             visitor.visitMethodInsn(Opcodes.INVOKESTATIC, className, methodName, descriptor, false);
             // BytecodeHelper.debugPrintln(visitor, "Returned from " + methodName);
             // Return values
-            CallingHelpers.unwrapReturnValues(visitor, compilingVisitor, funcType, false); // Never refcount in Wasm -> Wasm
+            CallingHelpers.unwrapReturnValues(visitor, compilingVisitor, funcType, null); // Never refcount in Wasm -> Wasm
         }
         @Override
         public void emitFunction(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks) {
             // Create the method visitor
             String funcName = Names.funcName(declaredIndex, debugName);
             String descriptor = funcType.descriptor();
+            boolean passesFuel = CompilingSimpleInstructionVisitor.usesLocalFuel(declaringModule.instance.limiter);
 
-            MethodVisitor methodVisitor = classWriter.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, funcName, descriptor, null, null);
+            MethodVisitor methodVisitor = classWriter.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, funcName, passesFuel ? withFuelParam(descriptor) : descriptor, null, null);
             methodVisitor.visitCode();
 
             // Write the function body into the method visitor, using a CompilingSimpleInstructionVisitor
-            CompilingSimpleInstructionVisitor visitor = new CompilingSimpleInstructionVisitor(declaringModule, methodVisitor, nextLocalSlot, classGenCallbacks);
-            visitor.emitMultipleInstructions(instructions);
+            CompilingSimpleInstructionVisitor visitor = new CompilingSimpleInstructionVisitor(declaringModule, methodVisitor, nextLocalSlot, classGenCallbacks, true);
+            visitor.emitFunctionBody(instructions, ListUtils.sumBy(funcType.inTypes(), t -> t.stackSlots));
 
             // End the method
             methodVisitor.visitMaxs(0, 0);
             methodVisitor.visitEnd();
 
+            // With the fuel param, also create the method which takes the fuel from the limiter
+            if (passesFuel) {
+                MethodVisitor bridge = classWriter.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, funcName, descriptor, null, null);
+                bridge.visitCode();
+                int index = 0;
+                for (ValType v : funcType.inTypes()) {
+                    bridge.visitVarInsn(v.loadOpcode, index);
+                    index += v.stackSlots;
+                }
+                bridge.visitFieldInsn(Opcodes.GETSTATIC, Names.className(declaringModule.moduleName), Names.limiterFieldName(), Type.getDescriptor(InstanceLimiter.class)); // [args, limiter]
+                bridge.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(InstanceLimiter.class), "takeFuel", "()J", false); // [args, fuel]
+                bridge.visitMethodInsn(Opcodes.INVOKESTATIC, Names.className(declaringModule.moduleName), funcName, withFuelParam(descriptor), false);
+                switch (funcType.outTypes().size()) {
+                    case 0 -> bridge.visitInsn(Opcodes.RETURN);
+                    case 1 -> bridge.visitInsn(funcType.outTypes().get(0).returnOpcode);
+                    default -> bridge.visitInsn(Opcodes.ARETURN);
+                }
+                bridge.visitMaxs(0, 0);
+                bridge.visitEnd();
+            }
+
             // If this is exported, then create the exported function
             if (exportedAs != null) {
                 MethodVisitor exported = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, Names.exportFuncName(exportedAs), descriptor, null, null);
@@ -129,6 +164,31 @@ public interface SimpleFunction {
         public Handle getHandle(SimpleModule referringModule) {
             return new Handle(Opcodes.H_INVOKESTATIC, Names.className(referringModule.moduleName), Names.funcName(declaredIndex, debugName), funcType.descriptor(), false);
         }
+
+        // The descriptor of the method holding the body, with the fuel after the params
+        private static String withFuelParam(String descriptor) {
+            int end = descriptor.indexOf(')');
+            return descriptor.substring(0, end) + "J" + descriptor.substring(end);
+        }
+    }
+
+    /**
+     * A WASM function defined in the current module, which nothing can ever call.
+     * Its code isn't converted or compiled. See FunctionReachability.
+     */
+    record UnreachableFunction(int declaredIndex, StackType funcType) implements SimpleFunction {
+        @Override
+        public void emitCall(SimpleModule callingModule, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
+            throw new IllegalStateException("Attempt to call function " + declaredIndex + ", which was found to be unreachable? Bug in WasmJ, please report!");
+        }
+        @Override
+        public void emitFunction(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks) {
+            // Do nothing, the function is never used
+        }
+        @Override
+        public Handle getHandle(SimpleModule declaringModule) {
+            throw new IllegalStateException("Attempt to refer to function " + declaredIndex + ", which was found to be unreachable? Bug in WasmJ, please report!");
+        }
     }
 
     /**
@@ -144,7 +204,7 @@ public interface SimpleFunction {
             String descriptor = funcType.descriptor();
             visitor.visitMethodInsn(Opcodes.INVOKESTATIC, className, methodName, descriptor, false);
             // Return values
-            CallingHelpers.unwrapReturnValues(visitor, compilingVisitor, funcType, false); // Never refcount in Wasm -> Wasm
+            CallingHelpers.unwrapReturnValues(visitor, compilingVisitor, funcType, null); // Never refcount in Wasm -> Wasm
         }
         @Override
         public void emitFunction(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks) {
@@ -170,6 +230,8 @@ public interface SimpleFunction {
             // Fetch additional parameters if the method needs them:
             if (methodData.hasByteArrayAccess()) {
                 // If the func has byte array access, put the byte array on the stack
+                if (callingModule.memory.backend() != MemoryBackend.HEAP_ARRAY)
+                    throw new UnsupportedOperationException("Module \"" + callingModule.moduleName + "\" imports java function \"" + methodData.method().getName() + "\" with @ByteArrayAccess, which requires the HEAP_ARRAY memory backend, but the module uses " + callingModule.memory.backend());
                 callingModule.memory.getMemory(callingModule, visitor);
             }
             if (methodData.hasExternrefTableAccess()) {
@@ -197,8 +259,10 @@ public interface SimpleFunction {
                 visitor.visitMethodInsn(invokeOpcode, className, javaName, desc, false);
             }
             // Unwrap return values
-            // Increment ref counts if necessary, since we're returning from Java -> Wasm here
-            CallingHelpers.unwrapReturnValues(visitor, compilingVisitor, funcType, callingModule.instance.limiter.countsMemory);
+            // Count the refs if necessary, since we're returning from Java -> Wasm here
+            InstanceLimiter limiter = callingModule.instance.limiter;
+            SimpleInstruction.Intrinsic countRefs = !limiter.countsMemory ? null : limiter.defersRefCounts ? EnterRefCount.INSTANCE : IncRefCount.INSTANCE;
+            CallingHelpers.unwrapReturnValues(visitor, compilingVisitor, funcType, countRefs);
         }
 
         @Override
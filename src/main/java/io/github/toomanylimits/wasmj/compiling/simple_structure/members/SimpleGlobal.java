@@ -1,5 +1,6 @@
 package io.github.toomanylimits.wasmj.compiling.simple_structure.members;
 
+import io.github.toomanylimits.wasmj.compiling.helpers.BytecodeHelper;
 import io.github.toomanylimits.wasmj.compiling.helpers.Names;
 import io.github.toomanylimits.wasmj.compiling.compiler.Compiler;
 import io.github.toomanylimits.wasmj.compiling.compiler.CompilingSimpleInstructionVisitor;
@@ -27,17 +28,31 @@ public interface SimpleGlobal {
 
     /**
      * A global variable defined in the same file!
+     * If it's immutable and initialized to a number constant, its uses are
+     * replaced by the constant, and its field is a static final constant.
      */
     record SameFileGlobal(int declaredIndex, GlobalType globalType, String/*?*/ exportedAs, List<SimpleInstruction> initializer) implements SimpleGlobal {
+        // The value of this global if it's a constant, or null if it isn't
+        public Object constantValue() {
+            if (globalType.mutable() || globalType.valType().isRef() || initializer.size() != 1)
+                return null;
+            return initializer.get(0) instanceof SimpleInstruction.Constant constant ? constant.value() : null;
+        }
         @Override
         public void emitGet(SimpleModule callingModule, MethodVisitor visitor, CompilingSimpleInstructionVisitor compilingVisitor) {
+            // Push the constant, if it is one:
+            Object constant = constantValue();
+            if (constant != null) {
+                BytecodeHelper.constValue(visitor, constant);
+                return;
+            }
             // Fetch the field:
             String className = Names.className(callingModule.moduleName);
             String fieldName = Names.globalName(declaredIndex);
             String descriptor = globalType.valType().descriptor;
             visitor.visitFieldInsn(Opcodes.GETSTATIC, className, fieldName, descriptor);
-            // If we're counting memory usage and this is a ref type, then increment the refcount
-            if (callingModule.instance.limiter.countsMemory && globalType.valType().isRef()) {
+            // If we're counting references on the stack and this is a ref type, then increment the refcount
+            if (callingModule.instance.limiter.countsStackRefs && globalType.valType().isRef()) {
                 visitor.visitInsn(Opcodes.DUP);
                 compilingVisitor.visitIntrinsic(IncRefCount.INSTANCE);
             }
@@ -50,6 +65,11 @@ public interface SimpleGlobal {
             String descriptor = globalType.valType().descriptor;
             // If we're counting memory, decrement refcount of the object formerly in the global
             if (callingModule.instance.limiter.countsMemory && globalType.valType().isRef()) {
+                // With deferred ref counting, the new value wasn't counted on the stack, but is counted in the global
+                if (callingModule.instance.limiter.defersRefCounts) {
+                    visitor.visitInsn(Opcodes.DUP);
+                    compilingVisitor.visitIntrinsic(IncRefCount.INSTANCE);
+                }
                 visitor.visitFieldInsn(Opcodes.GETSTATIC, className, fieldName, descriptor);
                 compilingVisitor.visitIntrinsic(DecRefCount.INSTANCE);
             }
@@ -62,14 +82,20 @@ public interface SimpleGlobal {
             int access = Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC;
             String name = Names.globalName(declaredIndex);
             String descriptor = globalType.valType().descriptor;
-            classWriter.visitField(access, name, descriptor, null, null).visitEnd();
+            Object constant = constantValue();
+            if (constant != null) {
+                // Only kept for reflection, since uses push the constant instead
+                classWriter.visitField(access + Opcodes.ACC_FINAL, name, descriptor, null, constant).visitEnd();
+            } else {
+                classWriter.visitField(access, name, descriptor, null, null).visitEnd();
 
-            // Emit the initializer into the init function
-            CompilingSimpleInstructionVisitor initCompilingVisitor = new CompilingSimpleInstructionVisitor(declaringModule, initFunction, Compiler.INIT_FUNCTION_NEXT_LOCAL, classGenCallbacks);
-            for (SimpleInstruction inst : initializer)
-                inst.accept(initCompilingVisitor);
-            // Set this global to the value
-            this.emitSet(declaringModule, initFunction, initCompilingVisitor);
+                // Emit the initializer into the init function
+                CompilingSimpleInstructionVisitor initCompilingVisitor = new CompilingSimpleInstructionVisitor(declaringModule, initFunction, Compiler.INIT_FUNCTION_NEXT_LOCAL, classGenCallbacks);
+                for (SimpleInstruction inst : initializer)
+                    inst.accept(initCompilingVisitor);
+                // Set this global to the value
+                this.emitSet(declaringModule, initFunction, initCompilingVisitor);
+            }
 
             // Emit export
             SimpleGlobal.export(this, declaringModule, classWriter, classGenCallbacks);
@@ -112,6 +138,9 @@ public interface SimpleGlobal {
             getter.visitMaxs(0, 0);
             getter.visitEnd();
 
+            // Immutable globals can't be set, and constant ones have nothing to set
+            if (!globalType.mutable())
+                return;
             MethodVisitor setter = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, Names.exportGlobalSetterName(exportedAs), "(" + descriptor + ")V", null, null);
             CompilingSimpleInstructionVisitor setterCompilingVisitor = new CompilingSimpleInstructionVisitor(module, setter, globalType.valType().stackSlots, classGenCallbacks);
             setter.visitCode();
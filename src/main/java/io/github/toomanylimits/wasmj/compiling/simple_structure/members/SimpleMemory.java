@@ -5,9 +5,10 @@ import io.github.toomanylimits.wasmj.compiling.compiler.Compiler;
 import io.github.toomanylimits.wasmj.compiling.compiler.CompilingSimpleInstructionVisitor;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
-import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncInstructionsBy;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncMemoryBy;
 import io.github.toomanylimits.wasmj.compiling.helpers.BytecodeHelper;
 import io.github.toomanylimits.wasmj.parsing.types.Limits;
+import io.github.toomanylimits.wasmj.runtime.memory.MemoryBackend;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -20,18 +21,43 @@ public interface SimpleMemory {
     void getMemory(SimpleModule callingModule, MethodVisitor visitor);
     // Set the array to the array on top of the stack
     void setMemory(SimpleModule callingModule, MethodVisitor visitor);
-    void emitMemory(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks);
+    void emitMemory(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor classInit, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks);
+    // The way this memory is stored
+    MemoryBackend backend();
+    // The memory's limits, including whether it's shared
+    Limits limits();
+
+    // Replace the memory on top of the stack with its size in bytes
+    default void emitByteSize(MethodVisitor visitor) {
+        if (backend() == MemoryBackend.HEAP_ARRAY)
+            visitor.visitInsn(Opcodes.ARRAYLENGTH);
+        else
+            visitor.visitMethodInsn(Opcodes.INVOKESTATIC, backend().helperClassName(), "byteSize", "(" + backend().descriptor + ")I", false);
+    }
+    // Replace the memory on top of the stack with its size in pages
+    default void emitPageCount(MethodVisitor visitor) {
+        if (backend() == MemoryBackend.HEAP_ARRAY) {
+            visitor.visitInsn(Opcodes.ARRAYLENGTH);
+            BytecodeHelper.constInt(visitor, Compiler.WASM_PAGE_SIZE);
+            visitor.visitInsn(Opcodes.IDIV);
+        } else {
+            visitor.visitMethodInsn(Opcodes.INVOKESTATIC, backend().helperClassName(), "pageCount", "(" + backend().descriptor + ")I", false);
+        }
+    }
 
     /**
-     * A global variable defined in the same file!
+     * A memory defined in the same file!
+     * If fixedSize, the module never grows it and it isn't exported, so it's created
+     * in the static initializer and stored in a static final field. The JIT can then
+     * treat the memory as a constant, instead of loading the field on every access.
      */
-    record SameFileMemory(int declaredIndex, Limits limits, String/*?*/ exportedAs) implements SimpleMemory {
+    record SameFileMemory(int declaredIndex, Limits limits, String/*?*/ exportedAs, MemoryBackend backend, boolean fixedSize) implements SimpleMemory {
         @Override
         public void getMemory(SimpleModule callingModule, MethodVisitor visitor) {
             // Fetch the field
             String className = Names.className(callingModule.moduleName);
             String fieldName = Names.memoryName(declaredIndex);
-            String descriptor = "[B";
+            String descriptor = backend.descriptor;
             visitor.visitFieldInsn(Opcodes.GETSTATIC, className, fieldName, descriptor);
         }
         @Override
@@ -39,26 +65,38 @@ public interface SimpleMemory {
             // Set the field
             String className = Names.className(callingModule.moduleName);
             String fieldName = Names.memoryName(declaredIndex);
-            String descriptor = "[B";
+            String descriptor = backend.descriptor;
             visitor.visitFieldInsn(Opcodes.PUTSTATIC, className, fieldName, descriptor);
         }
         @Override
-        public void emitMemory(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks) {
-            // Emit the byte[] field
-            int access = Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC;
+        public void emitMemory(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor classInit, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks) {
+            // Emit the memory field
+            int access = Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + (fixedSize ? Opcodes.ACC_FINAL : 0);
             String name = Names.memoryName(declaredIndex);
-            String descriptor = "[B";
+            String descriptor = backend.descriptor;
             classWriter.visitField(access, name, descriptor, null, null).visitEnd();
+            // Growing a heap array copies it, which would lose writes made by other threads during the copy
+            if (limits.shared() && backend == MemoryBackend.HEAP_ARRAY)
+                throw new UnsupportedOperationException("Module \"" + declaringModule.moduleName + "\" has a shared memory, which requires the PAGED memory backend");
             // Create the array:
             int initialSize = Math.multiplyExact(limits.min(), Compiler.WASM_PAGE_SIZE);
             // Increment memory if needed
-            var compilingVisitor = new CompilingSimpleInstructionVisitor(declaringModule, initFunction, Compiler.INIT_FUNCTION_NEXT_LOCAL, classGenCallbacks);
-            if (declaringModule.instance.limiter.countsMemory)
-                compilingVisitor.visitIntrinsic(new IncInstructionsBy(initialSize));
-            BytecodeHelper.constInt(initFunction, initialSize);
-            initFunction.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BYTE);
+            MethodVisitor creator = fixedSize ? classInit : initFunction;
+            if (declaringModule.instance.limiter.countsMemory) {
+                if (fixedSize)
+                    BytecodeHelper.chargeClassInit(classInit, initialSize);
+                else
+                    new CompilingSimpleInstructionVisitor(declaringModule, initFunction, Compiler.INIT_FUNCTION_NEXT_LOCAL, classGenCallbacks).visitIntrinsic(new IncMemoryBy(initialSize));
+            }
+            if (backend == MemoryBackend.HEAP_ARRAY) {
+                BytecodeHelper.constInt(creator, initialSize);
+                creator.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BYTE);
+            } else {
+                BytecodeHelper.constInt(creator, limits.min());
+                creator.visitMethodInsn(Opcodes.INVOKESTATIC, backend.helperClassName(), "create", "(I)" + descriptor, false);
+            }
             // Store the array in the field
-            setMemory(declaringModule, initFunction);
+            setMemory(declaringModule, creator);
 
             // Emit export
             if (exportedAs != null) {
@@ -24,14 +24,17 @@ public interface SimpleTable {
     void getTable(SimpleModule callingModule, MethodVisitor visitor);
     // Set the array to the array on top of the stack
     void setTable(SimpleModule callingModule, MethodVisitor visitor);
-    void emitTable(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks);
+    void emitTable(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor classInit, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks);
 
     String exportedAs();
 
     /**
-     * A table defined in the same file
+     * A table defined in the same file.
+     * If fixedSize, the module never grows it and it isn't exported, so like
+     * a fixed size memory, it's created in the static initializer and stored
+     * in a static final field.
      */
-    record SameFileTable(int declaredIndex, TableType tableType, String/*?*/ exportedAs) implements SimpleTable {
+    record SameFileTable(int declaredIndex, TableType tableType, String/*?*/ exportedAs, boolean fixedSize) implements SimpleTable {
         @Override
         public void getTable(SimpleModule callingModule, MethodVisitor visitor) {
             // Fetch the field.
@@ -49,24 +52,27 @@ public interface SimpleTable {
             visitor.visitFieldInsn(Opcodes.PUTSTATIC, className, fieldName, descriptor);
         }
         @Override
-        public void emitTable(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks) {
+        public void emitTable(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor classInit, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks) {
             // Emit the table field
-            int access = Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC;
+            int access = Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + (fixedSize ? Opcodes.ACC_FINAL : 0);
             String name = Names.tableName(declaredIndex);
             String descriptor = Type.getDescriptor(RefCountable[].class);
             classWriter.visitField(access, name, descriptor, null, null).visitEnd();
             // Create the array:
             int initialSize = tableType.limits().min();
             // Increment memory if needed
+            MethodVisitor creator = fixedSize ? classInit : initFunction;
             if (declaringModule.instance.limiter.countsMemory) {
-                CompilingSimpleInstructionVisitor compilingVisitor = new CompilingSimpleInstructionVisitor(declaringModule, initFunction, Compiler.INIT_FUNCTION_NEXT_LOCAL, classGenCallbacks);
-                compilingVisitor.visitIntrinsic(new IncMemoryBy((long) initialSize * 8L));
+                if (fixedSize)
+                    BytecodeHelper.chargeClassInit(classInit, (long) initialSize * 8L);
+                else
+                    new CompilingSimpleInstructionVisitor(declaringModule, initFunction, Compiler.INIT_FUNCTION_NEXT_LOCAL, classGenCallbacks).visitIntrinsic(new IncMemoryBy((long) initialSize * 8L));
             }
-            BytecodeHelper.constInt(initFunction, initialSize);
+            BytecodeHelper.constInt(creator, initialSize);
             String type = Type.getInternalName(RefCountable.class);
-            initFunction.visitTypeInsn(Opcodes.ANEWARRAY, type);
+            creator.visitTypeInsn(Opcodes.ANEWARRAY, type);
             // Store the array in the field
-            setTable(declaringModule, initFunction);
+            setTable(declaringModule, creator);
 
             // Emit export
             SimpleTable.export(this, declaringModule, classWriter);
@@ -93,7 +99,7 @@ public interface SimpleTable {
         }
 
         @Override
-        public void emitTable(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks) {
+        public void emitTable(SimpleModule declaringModule, ClassVisitor classWriter, MethodVisitor classInit, MethodVisitor initFunction, Set<ClassGenCallback> classGenCallbacks) {
             // Just export if necessary
             SimpleTable.export(this, declaringModule, classWriter);
         }
@@ -567,6 +567,72 @@ public class InstructionConversionVisitor extends InstructionVisitor<SimpleInstr
         throw new UnsupportedOperationException("Not yet implemented");
     }
 
+    @Override
+    public SimpleInstruction visitMemoryAtomicNotify(Instruction.MemoryAtomicNotify inst) throws Validator.ValidationException {
+        checkAtomicAlign(inst.align(), 4);
+        validator.popVal(ValType.I32);
+        validator.popVal(ValType.I32);
+        validator.pushVal(ValType.I32);
+        return new MemoryAtomic(MemoryAtomic.Kind.NOTIFY, null, ValType.I32, 4, inst.offset());
+    }
+
+    @Override
+    public SimpleInstruction visitMemoryAtomicWait(Instruction.MemoryAtomicWait inst) throws Validator.ValidationException {
+        int bytes = inst.type() == ValType.I32 ? 4 : 8;
+        checkAtomicAlign(inst.align(), bytes);
+        validator.popVal(ValType.I64);
+        validator.popVal(inst.type());
+        validator.popVal(ValType.I32);
+        validator.pushVal(ValType.I32);
+        return new MemoryAtomic(MemoryAtomic.Kind.WAIT, null, inst.type(), bytes, inst.offset());
+    }
+
+    @Override
+    public SimpleInstruction visitAtomicFence(Instruction.AtomicFence inst) throws Validator.ValidationException {
+        return AtomicFence.INSTANCE;
+    }
+
+    @Override
+    public SimpleInstruction visitAtomicLoad(Instruction.AtomicLoad inst) throws Validator.ValidationException {
+        checkAtomicAlign(inst.align(), inst.bytes());
+        validator.popVal(ValType.I32);
+        validator.pushVal(inst.type());
+        return new MemoryAtomic(MemoryAtomic.Kind.LOAD, null, inst.type(), inst.bytes(), inst.offset());
+    }
+
+    @Override
+    public SimpleInstruction visitAtomicStore(Instruction.AtomicStore inst) throws Validator.ValidationException {
+        checkAtomicAlign(inst.align(), inst.bytes());
+        validator.popVal(inst.type());
+        validator.popVal(ValType.I32);
+        return new MemoryAtomic(MemoryAtomic.Kind.STORE, null, inst.type(), inst.bytes(), inst.offset());
+    }
+
+    @Override
+    public SimpleInstruction visitAtomicRmw(Instruction.AtomicRmw inst) throws Validator.ValidationException {
+        checkAtomicAlign(inst.align(), inst.bytes());
+        validator.popVal(inst.type());
+        validator.popVal(ValType.I32);
+        validator.pushVal(inst.type());
+        return new MemoryAtomic(MemoryAtomic.Kind.RMW, inst.op(), inst.type(), inst.bytes(), inst.offset());
+    }
+
+    @Override
+    public SimpleInstruction visitAtomicCmpxchg(Instruction.AtomicCmpxchg inst) throws Validator.ValidationException {
+        checkAtomicAlign(inst.align(), inst.bytes());
+        validator.popVal(inst.type());
+        validator.popVal(inst.type());
+        validator.popVal(ValType.I32);
+        validator.pushVal(inst.type());
+        return new MemoryAtomic(MemoryAtomic.Kind.CMPXCHG, null, inst.type(), inst.bytes(), inst.offset());
+    }
+
+    // Atomic instructions must state their natural alignment exactly
+    private static void checkAtomicAlign(int align, int bytes) throws Validator.ValidationException {
+        if (1 << align != bytes)
+            throw new Validator.ValidationException("Atomic access of " + bytes + " bytes must have alignment " + Integer.numberOfTrailingZeros(bytes) + ", found " + align);
+    }
+
     @Override
     public SimpleInstruction visitI32Const(Instruction.I32Const inst) throws Validator.ValidationException {
         validator.pushVal(ValType.I32);
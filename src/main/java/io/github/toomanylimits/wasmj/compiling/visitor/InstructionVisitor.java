@@ -66,6 +66,13 @@ public abstract class InstructionVisitor<R, T extends Throwable> {
     public abstract R visitDataDrop(Instruction.DataDrop inst) throws T;
     public abstract R visitMemoryCopy(Instruction.MemoryCopy inst) throws T;
     public abstract R visitMemoryFill(Instruction.MemoryFill inst) throws T;
+    public abstract R visitMemoryAtomicNotify(Instruction.MemoryAtomicNotify inst) throws T;
+    public abstract R visitMemoryAtomicWait(Instruction.MemoryAtomicWait inst) throws T;
+    public abstract R visitAtomicFence(Instruction.AtomicFence inst) throws T;
+    public abstract R visitAtomicLoad(Instruction.AtomicLoad inst) throws T;
+    public abstract R visitAtomicStore(Instruction.AtomicStore inst) throws T;
+    public abstract R visitAtomicRmw(Instruction.AtomicRmw inst) throws T;
+    public abstract R visitAtomicCmpxchg(Instruction.AtomicCmpxchg inst) throws T;
     public abstract R visitI32Const(Instruction.I32Const inst) throws T;
     public abstract R visitI64Const(Instruction.I64Const inst) throws T;
     public abstract R visitF32Const(Instruction.F32Const inst) throws T;
@@ -93,6 +93,17 @@ public sealed interface Instruction {
     final class MemoryCopy implements Instruction { public static final MemoryCopy INSTANCE = new MemoryCopy(); private MemoryCopy() {} public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitMemoryCopy(this); } }
     final class MemoryFill implements Instruction { public static final MemoryFill INSTANCE = new MemoryFill(); private MemoryFill() {} public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitMemoryFill(this); } }
 
+    //Atomic Memory Instructions (threads proposal)
+    //These are grouped by kind, with the type and the number of bytes accessed as fields, since there are so many of them.
+    enum AtomicRmwOp { ADD, SUB, AND, OR, XOR, XCHG }
+    record MemoryAtomicNotify(int align, int offset) implements Instruction { public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitMemoryAtomicNotify(this); } }
+    record MemoryAtomicWait(ValType type, int align, int offset) implements Instruction { public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitMemoryAtomicWait(this); } }
+    final class AtomicFence implements Instruction { public static final AtomicFence INSTANCE = new AtomicFence(); private AtomicFence() {} public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitAtomicFence(this); } }
+    record AtomicLoad(ValType type, int bytes, int align, int offset) implements Instruction { public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitAtomicLoad(this); } }
+    record AtomicStore(ValType type, int bytes, int align, int offset) implements Instruction { public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitAtomicStore(this); } }
+    record AtomicRmw(AtomicRmwOp op, ValType type, int bytes, int align, int offset) implements Instruction { public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitAtomicRmw(this); } }
+    record AtomicCmpxchg(ValType type, int bytes, int align, int offset) implements Instruction { public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitAtomicCmpxchg(this); } }
+
     //Numeric Instructions
     record I32Const(int n) implements Instruction { public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitI32Const(this); } }
     record I64Const(long n) implements Instruction { public <R, T extends Throwable> R accept(InstructionVisitor<R, T> visitor) throws T { return visitor.visitI64Const(this); } }
@@ -769,6 +780,39 @@ public sealed interface Instruction {
             case 0xC3 -> I64Extend16S.INSTANCE;
             case 0xC4 -> I64Extend32S.INSTANCE;
 
+            case 0xFE -> {
+                int v = ParseHelper.readUnsignedWasmInt(stream);
+                if (v == 0x03) {
+                    if (stream.read() != 0x00)
+                        throw new ModuleParseException("Expected 0x00 after atomic.fence");
+                    yield AtomicFence.INSTANCE;
+                }
+                int align = ParseHelper.readUnsignedWasmInt(stream);
+                int offset = ParseHelper.readUnsignedWasmInt(stream);
+                if (v == 0x00) yield new MemoryAtomicNotify(align, offset);
+                if (v == 0x01) yield new MemoryAtomicWait(ValType.I32, align, offset);
+                if (v == 0x02) yield new MemoryAtomicWait(ValType.I64, align, offset);
+                if (v < 0x10 || v > 0x4E)
+                    throw new ModuleParseException("Invalid integer after 0xFE byte: " + v);
+                // From 0x10 on, the opcodes come in groups of 7, which each go through
+                // i32, i64, i32 8u, i32 16u, i64 8u, i64 16u, i64 32u in that order.
+                int group = (v - 0x10) / 7;
+                int variant = (v - 0x10) % 7;
+                ValType type = (variant == 0 || variant == 2 || variant == 3) ? ValType.I32 : ValType.I64;
+                int bytes = switch (variant) {
+                    case 0, 6 -> 4;
+                    case 1 -> 8;
+                    case 2, 4 -> 1;
+                    default -> 2;
+                };
+                yield switch (group) {
+                    case 0 -> new AtomicLoad(type, bytes, align, offset);
+                    case 1 -> new AtomicStore(type, bytes, align, offset);
+                    case 8 -> new AtomicCmpxchg(type, bytes, align, offset);
+                    default -> new AtomicRmw(AtomicRmwOp.values()[group - 2], type, bytes, align, offset);
+                };
+            }
+
             case 0xFD -> {
                 int v = ParseHelper.readUnsignedWasmInt(stream);
                 yield switch (v) {
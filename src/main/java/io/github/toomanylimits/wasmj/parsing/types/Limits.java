@@ -6,18 +6,29 @@ import io.github.toomanylimits.wasmj.parsing.module.ModuleParseException;
 import java.io.IOException;
 import java.io.InputStream;
 
-public record Limits(int min, int max) {
+/**
+ * The limits of a memory or table. Shared is only valid for memories,
+ * and comes from the threads proposal.
+ */
+public record Limits(int min, int max, boolean shared) {
+
+    public Limits(int min, int max) {
+        this(min, max, false);
+    }
 
     public static Limits read(InputStream stream) throws IOException, ModuleParseException {
-        if (ParseHelper.readBoolean(stream)) {
-            int min = ParseHelper.readUnsignedWasmInt(stream);
-            int max = ParseHelper.readUnsignedWasmInt(stream);
-            if (min > max) throw new ModuleParseException("Failed to parse Limits, min = " + min + ", max = " + max + "?");
-            return new Limits(min, max);
-        } else {
-            int min = ParseHelper.readUnsignedWasmInt(stream);
-            return new Limits(min, Integer.MAX_VALUE);
-        }
+        int flags = stream.read();
+        return switch (flags) {
+            case 0x00 -> new Limits(ParseHelper.readUnsignedWasmInt(stream), Integer.MAX_VALUE);
+            case 0x01, 0x03 -> {
+                int min = ParseHelper.readUnsignedWasmInt(stream);
+                int max = ParseHelper.readUnsignedWasmInt(stream);
+                if (min > max) throw new ModuleParseException("Failed to parse Limits, min = " + min + ", max = " + max + "?");
+                yield new Limits(min, max, flags == 0x03);
+            }
+            case 0x02 -> throw new ModuleParseException("Failed to parse Limits, shared memories must have a maximum size");
+            default -> throw new ModuleParseException("Failed to parse Limits, invalid flags byte " + flags);
+        };
     }
 
 }
@@ -34,11 +34,12 @@ public class ExportedFunction {
      * Helper that wraps all exceptions into WasmException.
      */
     public Object invoke(Object... args) throws WasmException {
+        limiter.enterExportCall();
         try {
             // Can return null (zero return values), Object (one return value), or Object[] (multiple return values)
             Object result = method.invokeWithArguments(args);
-            // If we count memory, decrement ref counts:
-            if (limiter.countsMemory) {
+            // If we count references on the stack, decrement ref counts:
+            if (limiter.countsStackRefs) {
                 if (result instanceof RefCountable refCountable)
                     refCountable.dec(limiter);
                 else if (result instanceof Object[] multiReturn)
@@ -56,6 +57,9 @@ public class ExportedFunction {
             if (t instanceof WasmException wasmException)
                 throw wasmException;
             throw new JvmCodeError(t); // Wrap other exceptions
+        } finally {
+            // With deferred ref counting, the outermost call returning is a safe point
+            limiter.exitExportCall();
         }
     }
 }
@@ -0,0 +1,129 @@
+package io.github.toomanylimits.wasmj.runtime;
+
+import io.github.toomanylimits.wasmj.runtime.errors.TooManyInstructionsException;
+import io.github.toomanylimits.wasmj.runtime.errors.TooMuchHeapMemoryException;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * The free slots of the special externref table, used by ExternrefTableAccessor.store().
+ * One of these is stored in each module class which has the table.
+ *
+ * The generated table.set and table.grow code releases slots into this when they
+ * become null, so finding a free slot doesn't need to scan the table. Other writes
+ * to the table (element segments, snapshots, other modules importing it) aren't
+ * tracked, so a slot handed out here is checked to still be null before it's used,
+ * and when there are no candidates left, the table is scanned once to find any
+ * nulls which weren't released.
+ *
+ * It also has the helpers for storeAll() and getRange(), which work on
+ * a range of the table at once.
+ */
+public final class ExternrefFreeSlots {
+
+    // Stack of candidate slots, the most recently released on top
+    private int[] candidates = new int[16];
+    private int size;
+    // Which slots are currently in the candidates, so each is only there once
+    private final BitSet queued = new BitSet();
+
+    // Called by generated code after table.set. Stack = [index, value, this]
+    public static void onSet(int index, RefCountable value, ExternrefFreeSlots slots) {
+        if (value == null)
+            slots.release(index);
+    }
+
+    // Called by generated code after table.grow, with the grown table and its previous length
+    public static void onGrow(RefCountable[] table, int oldLength, ExternrefFreeSlots slots) {
+        // Release in reverse, so the lowest new slot is handed out first
+        for (int i = table.length - 1; i >= oldLength; i--)
+            if (table[i] == null)
+                slots.release(i);
+    }
+
+    /**
+     * Mark the slot as a candidate for take().
+     */
+    public void release(int index) {
+        if (queued.get(index))
+            return;
+        queued.set(index);
+        if (size == candidates.length)
+            candidates = Arrays.copyOf(candidates, size * 2);
+        candidates[size++] = index;
+    }
+
+    /**
+     * Find a null slot in the table, or return -1 if there aren't any.
+     * If the table has to be scanned, the scan is counted as instructions.
+     */
+    public int take(RefCountable[] table, InstanceLimiter limiter) throws TooManyInstructionsException {
+        int index = pop(table);
+        if (index != -1)
+            return index;
+        // Out of candidates, so look for nulls which weren't released
+        limiter.incInstructions(table.length);
+        for (int i = table.length - 1; i >= 0; i--)
+            if (table[i] == null)
+                release(i);
+        return pop(table);
+    }
+
+    /**
+     * Find where a run of count free slots can start, at the end of the table.
+     * Looks back over at most count slots for trailing nulls, and counts them as instructions.
+     * The table needs to grow by (result + count - table.length) slots, if that's positive.
+     */
+    public static int freeTail(RefCountable[] table, int count, InstanceLimiter limiter) throws TooManyInstructionsException {
+        int start = table.length;
+        int stop = Math.max(0, table.length - count);
+        while (start > stop && table[start - 1] == null)
+            start--;
+        limiter.incInstructions(table.length - start);
+        return start;
+    }
+
+    /**
+     * Copy the refs into the table at the given start, where the slots are all null.
+     * Each ref is counted as referenced by the table, and the copy is counted as instructions.
+     */
+    public static void storeRange(RefCountable[] table, int start, RefCountable[] refs, InstanceLimiter limiter) throws TooManyInstructionsException, TooMuchHeapMemoryException {
+        limiter.incInstructions(refs.length);
+        if (limiter.countsMemory)
+            for (RefCountable ref : refs)
+                if (ref != null)
+                    ref.inc(limiter);
+        System.arraycopy(refs, 0, table, start, refs.length);
+    }
+
+    /**
+     * Copy a range of the table out. Like table.get, with IMMEDIATE ref counting the
+     * copied refs are counted, and the copy is counted as instructions.
+     */
+    public static RefCountable[] getRange(RefCountable[] table, int start, int length, InstanceLimiter limiter) throws TooManyInstructionsException, TooMuchHeapMemoryException {
+        Objects.checkFromIndexSize(start, length, table.length);
+        limiter.incInstructions(length);
+        RefCountable[] result = Arrays.copyOfRange(table, start, start + length);
+        if (limiter.countsStackRefs)
+            for (RefCountable ref : result)
+                if (ref != null)
+                    ref.inc(limiter);
+        return result;
+    }
+
+    // Pop candidates until one is still a null slot in the table
+    private int pop(RefCountable[] table) {
+        while (size > 0) {
+            int index = candidates[--size];
+            queued.clear(index);
+            if (index < table.length && table[index] == null)
+                return index;
+        }
+        return -1;
+    }
+
+}
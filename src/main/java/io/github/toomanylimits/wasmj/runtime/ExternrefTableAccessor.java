@@ -15,4 +15,9 @@ public interface ExternrefTableAccessor {
     void set(int index, RefCountable ref);
     // Store the value somewhere in the table, don't care where, and return the index of it.
     int store(RefCountable ref) throws TooManyInstructionsException, TooMuchHeapMemoryException;
+    // Store all the values in a contiguous range of the table, and return the index of the first.
+    // The table grows at most once, and the instructions are counted once for the whole batch.
+    int storeAll(RefCountable[] refs) throws TooManyInstructionsException, TooMuchHeapMemoryException;
+    // Get the values from index start to start + length, exclusive.
+    RefCountable[] getRange(int start, int length) throws TooManyInstructionsException, TooMuchHeapMemoryException;
 }
@@ -0,0 +1,73 @@
+package io.github.toomanylimits.wasmj.runtime;
+
+import io.github.toomanylimits.wasmj.compiling.helpers.Names;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Defines module classes as hidden classes, for instances which called
+ * WasmInstance.useHiddenClasses().
+ *
+ * A hidden class is defined through a Lookup on a class in the same package,
+ * so this makes one small host class in the module classes' package, in a
+ * class loader shared by every instance. Unlike classes in a per-instance
+ * class loader, each hidden class can be unloaded on its own as soon as
+ * nothing refers to it, and no class loader is created per instance.
+ *
+ * Hidden classes can't be found by name, so a hidden module class can't
+ * refer to the class of another wasm module.
+ */
+final class HiddenModuleClasses {
+
+    private static final MethodHandles.Lookup HOST_LOOKUP = createHostLookup();
+
+    private HiddenModuleClasses() {}
+
+    /**
+     * Define the class without initializing it. The class isn't kept
+     * alive by anything except the references to the returned Class.
+     */
+    static Class<?> define(byte[] bytes) {
+        try {
+            return HOST_LOOKUP.defineHiddenClass(bytes, false).lookupClass();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to define hidden module class? Bug in WasmJ, please report!", e);
+        }
+    }
+
+    // Generate, define and call: public class wasmj_modules/HiddenClassHost { public static Lookup lookup() { return MethodHandles.lookup(); } }
+    private static MethodHandles.Lookup createHostLookup() {
+        String hostName = Names.className("HiddenClassHost");
+        String lookupDesc = Type.getMethodDescriptor(Type.getType(MethodHandles.Lookup.class));
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V17, Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL, hostName, null, Type.getInternalName(Object.class), null);
+        MethodVisitor lookup = writer.visitMethod(Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC, "lookup", lookupDesc, null, null);
+        lookup.visitCode();
+        lookup.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(MethodHandles.class), "lookup", lookupDesc, false);
+        lookup.visitInsn(Opcodes.ARETURN);
+        lookup.visitMaxs(0, 0);
+        lookup.visitEnd();
+        writer.visitEnd();
+
+        Class<?> host = new HostLoader().define(hostName.replace('/', '.'), writer.toByteArray());
+        try {
+            return (MethodHandles.Lookup) host.getMethod("lookup").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create hidden class host? Bug in WasmJ, please report!", e);
+        }
+    }
+
+    private static class HostLoader extends ClassLoader {
+        HostLoader() {
+            super("WasmJHiddenClassHost", WasmInstance.class.getClassLoader());
+        }
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+}
@@ -0,0 +1,521 @@
+package io.github.toomanylimits.wasmj.runtime;
+
+import io.github.toomanylimits.wasmj.compiling.compiler.Compiler;
+import io.github.toomanylimits.wasmj.compiling.helpers.Names;
+import io.github.toomanylimits.wasmj.runtime.errors.WasmException;
+import io.github.toomanylimits.wasmj.runtime.memory.MemoryBackend;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
+import io.github.toomanylimits.wasmj.runtime.types.FuncRefInstance;
+import io.github.toomanylimits.wasmj.util.ListUtils;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleInfo;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A copy of the mutable state of a WasmInstance: each wasm module's
+ * memory, globals, tables and data/elem segments, as well as the
+ * counters of the instance's limiter. Restoring also clears any
+ * interrupt the limiter was given, though not a deadline an EpochTicker
+ * still has pending for it.
+ *
+ * Restoring the image puts the instance back into the state it was
+ * in when the image was captured. Memory pages which weren't changed
+ * since then are compared, but not written to. Objects which the tables
+ * and globals gained or lost since then have their references counted
+ * through the limiter, the same as if the guest had put them there or
+ * taken them out, so objects which are also held elsewhere are unaffected.
+ * The image itself doesn't hold references, so an object the guest releases
+ * after the capture may be dropped before a restore puts it back.
+ *
+ * An image can also be restored into a different instance, as long as
+ * it was created with the same modules. Funcrefs pointing into the
+ * captured instance are redirected to the same functions in the target.
+ */
+public class InstanceImage {
+
+    // The generated static fields holding the state of a module. See Names.
+    private static final Pattern STATE_FIELD = Pattern.compile("(global|table|data|elem)_\\d+");
+
+    // File format
+    private static final int MAGIC = 0x574A534E; // "WJSN"
+    private static final int VERSION = 2;
+
+    private final WasmInstance instance; // Null if this image was loaded from a file
+    private final List<ModuleImage> modules;
+    private final long instructions;
+    private final long heapMemoryUsed;
+
+    /**
+     * The state of one module. The Fields are those of the captured instance's
+     * classes, and are null if the image was loaded from a file.
+     */
+    private record ModuleImage(String moduleName, MemoryBackend backend, Object memory, String[] fieldNames, Object[] values, Field memoryField, Field[] fields) {}
+
+    private InstanceImage(WasmInstance instance, List<ModuleImage> modules, long instructions, long heapMemoryUsed) {
+        this.instance = instance;
+        this.modules = modules;
+        this.instructions = instructions;
+        this.heapMemoryUsed = heapMemoryUsed;
+    }
+
+    /**
+     * Capture the current state of the given instance.
+     */
+    public static InstanceImage capture(WasmInstance instance) {
+        if (instance.isClosed())
+            throw new IllegalStateException("Cannot capture an image of a closed wasm instance");
+        List<ModuleImage> modules = new ArrayList<>();
+        try {
+            for (String moduleName : instance.wasmModuleNames) {
+                Class<?> moduleClass = instance.getWasmClass(moduleName);
+                MemoryBackend backend = instance.memoryBackend(moduleName);
+                Field memoryField = memoryField(moduleClass);
+                Object memory = backend.copy(memoryField.get(null));
+
+                List<Field> fields = new ArrayList<>();
+                List<Object> values = new ArrayList<>();
+                for (Field field : stateFields(moduleClass)) {
+                    Object value = field.get(null);
+                    // Tables are mutated in place, so they need to be copied
+                    if (value instanceof RefCountable[] table) {
+                        value = table.clone();
+                    } else if (Modifier.isFinal(field.getModifiers())) {
+                        continue; // Immutable, never needs restoring
+                    }
+                    fields.add(field);
+                    values.add(value);
+                }
+                String[] fieldNames = fields.stream().map(Field::getName).toArray(String[]::new);
+                modules.add(new ModuleImage(moduleName, backend, memory, fieldNames, values.toArray(), memoryField, fields.toArray(Field[]::new)));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to capture image of wasm instance? Bug in WasmJ, please report!", e);
+        }
+        return new InstanceImage(instance, modules, instance.limiter.getInstructions(), instance.limiter.getHeapMemoryUsed());
+    }
+
+    /**
+     * Put the captured instance back into the state it was in when this image was captured.
+     * Returns the number of memory pages which had to be rewritten.
+     * Throws if an object released from a table or global fails to drop, or if the limiter
+     * runs out of memory while the restored objects are referenced again.
+     */
+    public int restore() throws WasmException {
+        if (instance == null)
+            throw new IllegalStateException("This image was loaded from a file, use restoreInto() instead");
+        if (instance.isClosed())
+            throw new IllegalStateException("Cannot restore an image into a closed wasm instance");
+        Map<RefCountable, Integer> released = new IdentityHashMap<>();
+        Map<RefCountable, Integer> restored = new IdentityHashMap<>();
+        int pagesRestored = 0;
+        try {
+            for (ModuleImage module : modules)
+                pagesRestored += restoreModule(module, module.memoryField, module.fields, module.values, false, released, restored);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to restore image of wasm instance? Bug in WasmJ, please report!", e);
+        }
+        updateReferences(instance.limiter, released, restored);
+        restoreLimiter(instance.limiter);
+        return pagesRestored;
+    }
+
+    /**
+     * Put another instance into the state captured by this image. The target must
+     * contain wasm modules with the same names, code and memory backends as the
+     * captured instance. Returns the number of memory pages which had to be rewritten.
+     * Objects in the image's tables and globals which aren't funcrefs are shared with
+     * the captured instance, and gain a reference for each place the target holds them.
+     */
+    public int restoreInto(WasmInstance target) throws WasmException {
+        if (target == instance)
+            return restore();
+        return restoreInto(target, false);
+    }
+
+    /**
+     * Restore into an instance which was just created without initializing its segments,
+     * see WasmInstance.recreateForImage(). Each memory is filled with one bulk copy,
+     * instead of being compared page by page first.
+     */
+    int restoreIntoNew(WasmInstance target) throws WasmException {
+        return restoreInto(target, true);
+    }
+
+    private int restoreInto(WasmInstance target, boolean fresh) throws WasmException {
+        if (target.isClosed())
+            throw new IllegalStateException("Cannot restore an image into a closed wasm instance");
+        List<String> imageModuleNames = ListUtils.map(modules, ModuleImage::moduleName);
+        if (!target.wasmModuleNames.equals(imageModuleNames))
+            throw new IllegalArgumentException("Target instance has modules " + target.wasmModuleNames + ", but the image has " + imageModuleNames);
+
+        Map<RefCountable, RefCountable> remapped = new IdentityHashMap<>();
+        Map<RefCountable, Integer> released = new IdentityHashMap<>();
+        Map<RefCountable, Integer> restored = new IdentityHashMap<>();
+        int pagesRestored = 0;
+        try {
+            for (ModuleImage module : modules) {
+                if (target.memoryBackend(module.moduleName) != module.backend)
+                    throw new IllegalArgumentException("Module \"" + module.moduleName + "\" uses memory backend " + target.memoryBackend(module.moduleName) + " in the target, but " + module.backend + " in the image");
+                Class<?> moduleClass = target.getWasmClass(module.moduleName);
+                Field[] fields = new Field[module.fieldNames.length];
+                Object[] values = new Object[module.values.length];
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = moduleClass.getDeclaredField(module.fieldNames[i]);
+                    fields[i].setAccessible(true);
+                    values[i] = remapValue(module.values[i], target, remapped);
+                }
+                pagesRestored += restoreModule(module, memoryField(moduleClass), fields, values, fresh, released, restored);
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Target instance doesn't match the image", e);
+        }
+        updateReferences(target.limiter, released, restored);
+        restoreLimiter(target.limiter);
+        return pagesRestored;
+    }
+
+    // Also counts the references held by the tables and globals before and after restoring them
+    private int restoreModule(ModuleImage module, Field memoryField, Field[] fields, Object[] values, boolean fresh, Map<RefCountable, Integer> released, Map<RefCountable, Integer> restored) throws IllegalAccessException {
+        int pagesRestored;
+        // Memory: if it didn't change size, only rewrite the changed pages, or all of them if it was just created.
+        // Otherwise, replace it.
+        Object memory = memoryField.get(null);
+        if (module.backend.byteSize(memory) == module.backend.byteSize(module.memory)) {
+            pagesRestored = fresh ? module.backend.copyInto(memory, module.memory) : module.backend.restorePages(memory, module.memory);
+        } else {
+            memoryField.set(null, module.backend.copy(module.memory));
+            pagesRestored = module.backend.byteSize(module.memory) / Compiler.WASM_PAGE_SIZE;
+        }
+        // Globals, tables, datas and elems
+        for (int i = 0; i < fields.length; i++) {
+            countReferences(fields[i].get(null), released);
+            countReferences(values[i], restored);
+            if (values[i] instanceof RefCountable[] imageTable) {
+                RefCountable[] table = (RefCountable[]) fields[i].get(null);
+                if (table != null && table.length == imageTable.length)
+                    System.arraycopy(imageTable, 0, table, 0, table.length);
+                else
+                    fields[i].set(null, imageTable.clone());
+            } else {
+                fields[i].set(null, values[i]);
+            }
+        }
+        return pagesRestored;
+    }
+
+    private static void countReferences(Object value, Map<RefCountable, Integer> counts) {
+        if (value instanceof RefCountable[] table) {
+            for (RefCountable ref : table)
+                if (ref != null) counts.merge(ref, 1, Integer::sum);
+        } else if (value instanceof RefCountable ref) {
+            counts.merge(ref, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Count the references the restore added and removed, the same way the guest's
+     * table and global writes would. The added ones are counted first, so an object
+     * which is dropped can't take one of the restored objects with it.
+     * Like close(), every removed reference is released even if a drop fails,
+     * and the first failure is thrown afterwards.
+     */
+    private static void updateReferences(InstanceLimiter limiter, Map<RefCountable, Integer> released, Map<RefCountable, Integer> restored) throws WasmException {
+        if (!limiter.countsMemory)
+            return; // References aren't counted at all
+        for (Map.Entry<RefCountable, Integer> entry : restored.entrySet())
+            for (int i = released.getOrDefault(entry.getKey(), 0); i < entry.getValue(); i++)
+                entry.getKey().inc(limiter);
+        WasmException dropFailure = null;
+        for (Map.Entry<RefCountable, Integer> entry : released.entrySet()) {
+            for (int i = restored.getOrDefault(entry.getKey(), 0); i < entry.getValue(); i++) {
+                try {
+                    entry.getKey().dec(limiter);
+                } catch (WasmException e) {
+                    if (dropFailure == null) dropFailure = e;
+                }
+            }
+        }
+        // No guest code is running, so this is a safe point
+        if (limiter.defersRefCounts) {
+            try {
+                limiter.reconcileRefCounts();
+            } catch (WasmException e) {
+                if (dropFailure == null) dropFailure = e;
+            }
+        }
+        if (dropFailure != null)
+            throw dropFailure;
+    }
+
+    private void restoreLimiter(InstanceLimiter limiter) {
+        limiter.setInstructions(instructions);
+        limiter.setHeapMemoryUsed(heapMemoryUsed);
+        limiter.clearInterrupt();
+    }
+
+    // Funcrefs
+
+    /**
+     * Stands in for a funcref which was loaded from a file, until the image
+     * is restored into an instance which has the function it points to.
+     */
+    private static class UnresolvedFuncRef extends RefCountable {
+        private final String moduleName, methodName, descriptor;
+        private UnresolvedFuncRef(String moduleName, String methodName, String descriptor) {
+            this.moduleName = moduleName;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+        }
+        @Override protected void drop(InstanceLimiter limiter) {}
+        @Override protected long getSize() { return 0; }
+    }
+
+    private Object remapValue(Object value, WasmInstance target, Map<RefCountable, RefCountable> remapped) {
+        if (value instanceof RefCountable[] table) {
+            RefCountable[] result = new RefCountable[table.length];
+            for (int i = 0; i < table.length; i++)
+                result[i] = remapRef(table[i], target, remapped);
+            return result;
+        } else if (value instanceof RefCountable ref) {
+            return remapRef(ref, target, remapped);
+        }
+        return value;
+    }
+
+    // Funcrefs into the captured instance are redirected to the target. Other objects are kept as-is.
+    private RefCountable remapRef(RefCountable ref, WasmInstance target, Map<RefCountable, RefCountable> remapped) {
+        if (ref == null) return null;
+        return remapped.computeIfAbsent(ref, r -> {
+            UnresolvedFuncRef description = describe(r);
+            return description == null ? r : resolve(description, target);
+        });
+    }
+
+    // Describe a funcref by the module and method it points to, or return null if it doesn't point into the captured instance.
+    private UnresolvedFuncRef describe(RefCountable ref) {
+        if (ref instanceof UnresolvedFuncRef unresolved)
+            return unresolved;
+        if (!(ref instanceof FuncRefInstance funcRef) || instance == null)
+            return null;
+        for (String moduleName : instance.wasmModuleNames) {
+            Class<?> moduleClass = instance.getWasmClass(moduleName);
+            try {
+                MethodHandleInfo info = MethodHandles.privateLookupIn(moduleClass, MethodHandles.lookup()).revealDirect(funcRef.handle);
+                if (info.getDeclaringClass() == moduleClass)
+                    return new UnresolvedFuncRef(moduleName, info.getName(), info.getMethodType().toMethodDescriptorString());
+                if (info.getDeclaringClass().getClassLoader() != moduleClass.getClassLoader())
+                    return null; // Points to a java method, which is the same for every instance
+            } catch (IllegalAccessException | IllegalArgumentException ignored) {
+                // Not accessible from this module's class, try the next one
+            }
+        }
+        return null;
+    }
+
+    private static FuncRefInstance resolve(UnresolvedFuncRef description, WasmInstance target) {
+        Class<?> moduleClass = target.getWasmClass(description.moduleName);
+        if (moduleClass == null)
+            throw new IllegalArgumentException("Target instance has no module \"" + description.moduleName + "\" for funcref");
+        try {
+            MethodType type = MethodType.fromMethodDescriptorString(description.descriptor, moduleClass.getClassLoader());
+            MethodHandle handle = MethodHandles.privateLookupIn(moduleClass, MethodHandles.lookup()).findStatic(moduleClass, description.methodName, type);
+            return new FuncRefInstance(handle);
+        } catch (Throwable e) {
+            throw new IllegalArgumentException("Failed to find funcref target " + description.moduleName + "." + description.methodName + " in target instance", e);
+        }
+    }
+
+    // Files
+
+    /**
+     * Write this image to a file. Memories are stored raw after a small header,
+     * so load() can map them instead of reading them through a stream.
+     * Images whose tables or globals hold java objects (externrefs) can't be saved.
+     */
+    public void save(Path file) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeLong(instructions);
+        header.writeLong(heapMemoryUsed);
+        header.writeInt(modules.size());
+        long memoryOffset = 0;
+        for (ModuleImage module : modules) {
+            header.writeUTF(module.moduleName);
+            header.writeUTF(module.backend.name());
+            header.writeLong(memoryOffset);
+            header.writeInt(module.backend.byteSize(module.memory));
+            memoryOffset += module.backend.byteSize(module.memory);
+            header.writeInt(module.fieldNames.length);
+            for (int i = 0; i < module.fieldNames.length; i++) {
+                header.writeUTF(module.fieldNames[i]);
+                writeValue(header, module.values[i]);
+            }
+        }
+        header.flush();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer length = ByteBuffer.allocate(4).putInt(0, headerBytes.size());
+            while (length.hasRemaining()) channel.write(length);
+            ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes.toByteArray());
+            while (headerBuffer.hasRemaining()) channel.write(headerBuffer);
+            for (ModuleImage module : modules)
+                module.backend.write(module.memory, channel);
+        }
+    }
+
+    /**
+     * Read an image written by save(). The file is memory-mapped, and each
+     * module's memory is copied out of the mapping in one piece. The result
+     * can only be restored with restoreInto().
+     */
+    public static InstanceImage load(Path file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int headerLength = mapped.getInt(0);
+        byte[] headerBytes = new byte[headerLength];
+        mapped.get(4, headerBytes);
+        int memoriesStart = 4 + headerLength;
+
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes));
+        if (header.readInt() != MAGIC)
+            throw new IOException("Not a WasmJ instance image: " + file);
+        int version = header.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported instance image version " + version + " in " + file);
+        long instructions = header.readLong();
+        long heapMemoryUsed = header.readLong();
+        int moduleCount = header.readInt();
+        List<ModuleImage> modules = new ArrayList<>(moduleCount);
+        for (int m = 0; m < moduleCount; m++) {
+            String moduleName = header.readUTF();
+            MemoryBackend backend = MemoryBackend.valueOf(header.readUTF());
+            long memoryOffset = header.readLong();
+            int memoryLength = header.readInt();
+            Object memory = backend.load(mapped.slice(Math.toIntExact(memoriesStart + memoryOffset), memoryLength));
+            int fieldCount = header.readInt();
+            String[] fieldNames = new String[fieldCount];
+            Object[] values = new Object[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                fieldNames[i] = header.readUTF();
+                values[i] = readValue(header);
+            }
+            modules.add(new ModuleImage(moduleName, backend, memory, fieldNames, values, null, null));
+        }
+        return new InstanceImage(null, modules, instructions, heapMemoryUsed);
+    }
+
+    // Value tags
+    private static final int NULL = 0, INT = 1, LONG = 2, FLOAT = 3, DOUBLE = 4, BYTES = 5, TABLE = 6, REF = 7;
+
+    private void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer i) {
+            out.writeByte(INT);
+            out.writeInt(i);
+        } else if (value instanceof Long l) {
+            out.writeByte(LONG);
+            out.writeLong(l);
+        } else if (value instanceof Float f) {
+            out.writeByte(FLOAT);
+            out.writeInt(Float.floatToRawIntBits(f));
+        } else if (value instanceof Double d) {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits(d));
+        } else if (value instanceof byte[] bytes) {
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof RefCountable[] table) {
+            out.writeByte(TABLE);
+            out.writeInt(table.length);
+            for (RefCountable ref : table)
+                writeRef(out, ref);
+        } else if (value instanceof RefCountable ref) {
+            out.writeByte(REF);
+            writeRef(out, ref);
+        } else {
+            throw new IllegalStateException("Unexpected value in instance image: " + value);
+        }
+    }
+
+    private void writeRef(DataOutputStream out, RefCountable ref) throws IOException {
+        if (ref == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        UnresolvedFuncRef description = describe(ref);
+        if (description == null)
+            throw new UnsupportedOperationException("Cannot save an instance image holding java objects (externrefs) to a file, found " + ref);
+        out.writeBoolean(true);
+        out.writeUTF(description.moduleName);
+        out.writeUTF(description.methodName);
+        out.writeUTF(description.descriptor);
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        return switch (in.readByte()) {
+            case NULL -> null;
+            case INT -> in.readInt();
+            case LONG -> in.readLong();
+            case FLOAT -> Float.intBitsToFloat(in.readInt());
+            case DOUBLE -> Double.longBitsToDouble(in.readLong());
+            case BYTES -> in.readNBytes(in.readInt());
+            case TABLE -> {
+                RefCountable[] table = new RefCountable[in.readInt()];
+                for (int i = 0; i < table.length; i++)
+                    table[i] = readRef(in);
+                yield table;
+            }
+            case REF -> readRef(in);
+            default -> throw new IOException("Corrupt instance image");
+        };
+    }
+
+    private static RefCountable readRef(DataInputStream in) throws IOException {
+        if (!in.readBoolean())
+            return null;
+        return new UnresolvedFuncRef(in.readUTF(), in.readUTF(), in.readUTF());
+    }
+
+    // Reflection helpers
+
+    private static Field memoryField(Class<?> moduleClass) {
+        try {
+            Field memoryField = moduleClass.getDeclaredField(Names.memoryName(0));
+            memoryField.setAccessible(true);
+            return memoryField;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Module class has no memory field? Bug in WasmJ, please report!", e);
+        }
+    }
+
+    private static List<Field> stateFields(Class<?> moduleClass) {
+        List<Field> result = new ArrayList<>();
+        for (Field field : moduleClass.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers()) || !STATE_FIELD.matcher(field.getName()).matches())
+                continue;
+            field.setAccessible(true);
+            result.add(field);
+        }
+        return result;
+    }
+
+}
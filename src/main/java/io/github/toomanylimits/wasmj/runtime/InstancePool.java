@@ -0,0 +1,172 @@
+package io.github.toomanylimits.wasmj.runtime;
+
+import io.github.toomanylimits.wasmj.compiling.simplify.Validator;
+import io.github.toomanylimits.wasmj.runtime.errors.WasmException;
+import io.github.toomanylimits.wasmj.util.funcs.BiThrowingSupplier;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a set of ready-to-use WasmInstances, for workloads which want
+ * a fresh instance for every request.
+ *
+ * Instances are created by the given factory, and an image of each one
+ * is captured right after it's created. When an instance is given back,
+ * it's restored to that image instead of being thrown away, so the
+ * modules don't need to be compiled and initialized again.
+ *
+ * Safe to use from multiple threads, though each borrowed instance
+ * should only be used by one thread at a time.
+ *
+ * Giving an instance back clears an interrupt its limiter was given, but
+ * a deadline left pending in an EpochTicker by one borrower still fires on
+ * the next one. Call EpochTicker.clearDeadline() before giving it back.
+ */
+public class InstancePool implements AutoCloseable {
+
+    private final BiThrowingSupplier<WasmInstance, Validator.ValidationException, WasmException> factory;
+    private final int maxIdle;
+
+    private final ConcurrentLinkedDeque<WasmInstance> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final Map<WasmInstance, Pooled> instances = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    // An instance created by this pool, with the image it's reset to, and whether it's borrowed right now
+    private record Pooled(InstanceImage image, AtomicBoolean borrowed) {}
+
+    // Metrics
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong borrowMisses = new AtomicLong();
+    private final AtomicLong returned = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong pagesRestored = new AtomicLong();
+
+    /**
+     * - factory: Creates a new instance, with all its modules added.
+     * - minIdle: The number of instances to create right away.
+     * - maxIdle: The most instances to keep around while they aren't borrowed.
+     *   Instances given back while the pool is full are closed instead.
+     */
+    public InstancePool(BiThrowingSupplier<WasmInstance, Validator.ValidationException, WasmException> factory, int minIdle, int maxIdle) throws Validator.ValidationException, WasmException {
+        if (minIdle < 0 || maxIdle < minIdle)
+            throw new IllegalArgumentException("Invalid pool sizes: minIdle = " + minIdle + ", maxIdle = " + maxIdle);
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+        for (int i = 0; i < minIdle; i++) {
+            idle.push(create(false));
+            idleCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get an instance from the pool, creating a new one if none are idle.
+     * It should be given back with giveBack() when done.
+     */
+    public WasmInstance borrow() throws Validator.ValidationException, WasmException {
+        if (closed)
+            throw new IllegalStateException("Cannot borrow from a closed instance pool");
+        borrowed.incrementAndGet();
+        WasmInstance instance = idle.poll();
+        if (instance != null) {
+            idleCount.decrementAndGet();
+            instances.get(instance).borrowed.set(true);
+            return instance;
+        }
+        borrowMisses.incrementAndGet();
+        return create(true);
+    }
+
+    /**
+     * Give back an instance which came from borrow(). It's reset to its
+     * state from right after creation, and kept for a later borrow.
+     * If the instance was closed, the reset fails, or the pool already
+     * has maxIdle instances, it's closed and discarded instead.
+     * Each borrow must be given back only once.
+     */
+    public void giveBack(WasmInstance instance) {
+        Pooled pooled = instances.get(instance);
+        if (pooled == null)
+            throw new IllegalArgumentException("Instance was not borrowed from this pool");
+        if (!pooled.borrowed.compareAndSet(true, false))
+            throw new IllegalStateException("Instance was already given back to this pool");
+        returned.incrementAndGet();
+        if (closed || instance.isClosed() || !reserveIdleSlot()) {
+            discard(instance);
+            return;
+        }
+        try {
+            pagesRestored.addAndGet(pooled.image.restore());
+        } catch (WasmException | RuntimeException e) {
+            idleCount.decrementAndGet();
+            discard(instance);
+            return;
+        }
+        idle.push(instance);
+        // If the pool was closed meanwhile, close() may have emptied the idle instances already.
+        // Only one of them takes the instance back out, so it's closed exactly once.
+        if (closed && idle.remove(instance)) {
+            idleCount.decrementAndGet();
+            discard(instance);
+        }
+    }
+
+    /**
+     * Close all idle instances. Borrowed instances are closed when given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        WasmInstance instance;
+        while ((instance = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            discard(instance);
+        }
+    }
+
+    // Increment the idle count, unless the pool is full
+    private boolean reserveIdleSlot() {
+        int count;
+        do {
+            count = idleCount.get();
+            if (count >= maxIdle) return false;
+        } while (!idleCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    private WasmInstance create(boolean borrowed) throws Validator.ValidationException, WasmException {
+        WasmInstance instance = factory.get();
+        instances.put(instance, new Pooled(InstanceImage.capture(instance), new AtomicBoolean(borrowed)));
+        created.incrementAndGet();
+        return instance;
+    }
+
+    private void discard(WasmInstance instance) {
+        instances.remove(instance);
+        instance.close();
+        discarded.incrementAndGet();
+    }
+
+    /**
+     * A snapshot of the pool's counters.
+     * - created: Instances created by the factory
+     * - borrowed: Calls to borrow()
+     * - borrowMisses: Calls to borrow() which found no idle instance, and had to create one
+     * - returned: Calls to giveBack()
+     * - discarded: Instances closed by the pool
+     * - pagesRestored: Memory pages rewritten while resetting instances
+     * - idle: Instances currently waiting to be borrowed
+     */
+    public record Metrics(long created, long borrowed, long borrowMisses, long returned, long discarded, long pagesRestored, int idle) {}
+
+    public Metrics metrics() {
+        return new Metrics(created.get(), borrowed.get(), borrowMisses.get(), returned.get(), discarded.get(), pagesRestored.get(), idleCount.get());
+    }
+
+}
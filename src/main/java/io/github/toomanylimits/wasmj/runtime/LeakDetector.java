@@ -0,0 +1,68 @@
+package io.github.toomanylimits.wasmj.runtime;
+
+import java.lang.ref.Cleaner;
+import java.util.List;
+
+/**
+ * Reports WasmInstances which become unreachable without being closed.
+ * An instance which isn't closed never gives back what it charged to its
+ * limiter, and off-heap memory isn't freed until the buffer is collected,
+ * so this is useful for finding the places where close() was missed.
+ *
+ * Setting the system property "wasmj.detectLeaks" to true turns this on.
+ * It's off by default, since it records a stack trace for every instance.
+ * Each leak is printed to System.err, with where the instance was created.
+ */
+final class LeakDetector {
+
+    private static final boolean ENABLED = Boolean.getBoolean("wasmj.detectLeaks");
+
+    private LeakDetector() {}
+
+    /**
+     * Start tracking the instance. Returns null if leak detection is off.
+     * The module names list is the instance's own, so the report shows
+     * the modules it had when it leaked.
+     */
+    static Tracker track(WasmInstance instance, List<String> moduleNames) {
+        if (!ENABLED)
+            return null;
+        Tracker tracker = new Tracker(moduleNames, new Throwable("Instance created here"));
+        // The tracker must not refer to the instance, or the instance would never become unreachable
+        tracker.cleanable = Holder.CLEANER.register(instance, tracker);
+        return tracker;
+    }
+
+    static final class Tracker implements Runnable {
+        private final List<String> moduleNames;
+        private final Throwable creation;
+        private Cleaner.Cleanable cleanable;
+        private volatile boolean closed;
+
+        private Tracker(List<String> moduleNames, Throwable creation) {
+            this.moduleNames = moduleNames;
+            this.creation = creation;
+        }
+
+        // Called when the instance is closed. Stops tracking it.
+        void closed() {
+            closed = true;
+            cleanable.clean();
+        }
+
+        // Called by the cleaner when the instance is unreachable, or by closed()
+        @Override
+        public void run() {
+            if (closed)
+                return;
+            System.err.println("[WasmJ] A WasmInstance with modules " + moduleNames + " was never closed");
+            creation.printStackTrace();
+        }
+    }
+
+    // Only start the cleaner thread if leak detection is used
+    private static final class Holder {
+        private static final Cleaner CLEANER = Cleaner.create();
+    }
+
+}
@@ -0,0 +1,125 @@
+package io.github.toomanylimits.wasmj.runtime;
+
+import io.github.toomanylimits.wasmj.runtime.errors.TooManyInstructionsException;
+import io.github.toomanylimits.wasmj.runtime.errors.TooMuchHeapMemoryException;
+import io.github.toomanylimits.wasmj.runtime.errors.WasmCodeException;
+import io.github.toomanylimits.wasmj.runtime.memory.CopyOnWriteMemory;
+import io.github.toomanylimits.wasmj.runtime.memory.HeapArrayMemory;
+import io.github.toomanylimits.wasmj.runtime.memory.OffHeapMemory;
+import io.github.toomanylimits.wasmj.runtime.memory.PagedMemory;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Static helpers called by generated code, for the instructions which
+ * do more than a simple access: memory.grow, memory.init, and table.grow,
+ * and for charging the limiter from a module class's static initializer.
+ * These used to be generated into every module class, but nothing about
+ * them depends on the module, so now every module shares these. The
+ * memory or table, and the limiter to charge, are passed in as params.
+ *
+ * Each memory helper has an overload for each MemoryBackend, so the
+ * generated code picks one by the backend's descriptor.
+ */
+public final class RuntimeHelpers {
+
+    private RuntimeHelpers() {}
+
+    // The limiter of the instance whose module class is being initialized on this thread. See WasmInstance.defineAndInit().
+    private static final ThreadLocal<InstanceLimiter> INITIALIZING_LIMITER = new ThreadLocal<>();
+
+    static void beginClassInit(InstanceLimiter limiter) {
+        INITIALIZING_LIMITER.set(limiter);
+    }
+    static void endClassInit() {
+        INITIALIZING_LIMITER.remove();
+    }
+
+    /**
+     * Called by the static initializer of a module class, which creates the memory and tables
+     * that never change size, before the init method is called and the limiter field is set.
+     * Charges the limiter of the instance the class is being defined for.
+     */
+    public static void chargeClassInit(long bytes) throws TooMuchHeapMemoryException {
+        InstanceLimiter limiter = INITIALIZING_LIMITER.get();
+        if (limiter == null)
+            throw new IllegalStateException("Module class initialized outside of WasmInstance? Bug in WasmJ, please report!");
+        limiter.incHeapMemoryUsed(bytes);
+    }
+
+    // memory.grow. Charges the limiter for the new pages, and for copying the old memory:
+    // for a single array that's oldArraySize / 8, for other backends it's only the page count, since pages are reused.
+
+    public static byte[] memoryGrow(int requested, byte[] oldMem, InstanceLimiter limiter) throws WasmCodeException, TooMuchHeapMemoryException, TooManyInstructionsException {
+        chargeMemoryGrow(requested, HeapArrayMemory.byteSize(oldMem), HeapArrayMemory.byteSize(oldMem) / 8, limiter);
+        return HeapArrayMemory.grow(requested, oldMem);
+    }
+    public static byte[][] memoryGrow(int requested, byte[][] oldMem, InstanceLimiter limiter) throws WasmCodeException, TooMuchHeapMemoryException, TooManyInstructionsException {
+        chargeMemoryGrow(requested, PagedMemory.byteSize(oldMem), PagedMemory.pageCount(oldMem), limiter);
+        return PagedMemory.grow(requested, oldMem);
+    }
+    public static ByteBuffer memoryGrow(int requested, ByteBuffer oldMem, InstanceLimiter limiter) throws WasmCodeException, TooMuchHeapMemoryException, TooManyInstructionsException {
+        chargeMemoryGrow(requested, OffHeapMemory.byteSize(oldMem), OffHeapMemory.pageCount(oldMem), limiter);
+        return OffHeapMemory.grow(requested, oldMem);
+    }
+    public static CopyOnWriteMemory memoryGrow(int requested, CopyOnWriteMemory oldMem, InstanceLimiter limiter) throws WasmCodeException, TooMuchHeapMemoryException, TooManyInstructionsException {
+        chargeMemoryGrow(requested, CopyOnWriteMemory.byteSize(oldMem), CopyOnWriteMemory.pageCount(oldMem), limiter);
+        return CopyOnWriteMemory.grow(requested, oldMem);
+    }
+
+    private static void chargeMemoryGrow(int requested, int oldByteSize, int copyCost, InstanceLimiter limiter) throws WasmCodeException, TooMuchHeapMemoryException, TooManyInstructionsException {
+        if (requested < 0 || (requested >= Integer.MAX_VALUE / PagedMemory.PAGE_SIZE))
+            throw new WasmCodeException("Attempt to call memory.grow with too large of value: " + requested + " pages. WasmJ doesn't support this!");
+        if (oldByteSize + (requested * PagedMemory.PAGE_SIZE) < 0)
+            throw new WasmCodeException("memory.grow by " + requested + " pages caused memory size to overflow the i32 limit. WasmJ doesn't support this!");
+        limiter.incHeapMemoryUsed((long) requested * PagedMemory.PAGE_SIZE);
+        limiter.incInstructions(copyCost);
+    }
+
+    // memory.init. Charges count / 8 instructions for the copy.
+
+    public static void memoryInit(int dest, int src, int count, byte[] data, byte[] mem, InstanceLimiter limiter) throws TooManyInstructionsException {
+        limiter.incInstructions(count / 8);
+        HeapArrayMemory.write(data, src, mem, dest, count);
+    }
+    public static void memoryInit(int dest, int src, int count, byte[] data, byte[][] mem, InstanceLimiter limiter) throws TooManyInstructionsException {
+        limiter.incInstructions(count / 8);
+        PagedMemory.write(data, src, mem, dest, count);
+    }
+    public static void memoryInit(int dest, int src, int count, byte[] data, ByteBuffer mem, InstanceLimiter limiter) throws TooManyInstructionsException {
+        limiter.incInstructions(count / 8);
+        OffHeapMemory.write(data, src, mem, dest, count);
+    }
+    public static void memoryInit(int dest, int src, int count, byte[] data, CopyOnWriteMemory mem, InstanceLimiter limiter) throws TooManyInstructionsException {
+        limiter.incInstructions(count / 8);
+        CopyOnWriteMemory.write(data, src, mem, dest, count);
+    }
+
+    /**
+     * table.grow. Charges 8 bytes of memory per new slot, and instructions for
+     * copying the old table, plus for filling the new slots if the fill value isn't null.
+     * With deferred ref counting, the fill value wasn't counted on the stack,
+     * but each slot it fills is counted as a reference.
+     */
+    public static RefCountable[] tableGrow(RefCountable fillValue, int requested, RefCountable[] oldTable, InstanceLimiter limiter) throws WasmCodeException, TooMuchHeapMemoryException, TooManyInstructionsException {
+        if (requested < 0)
+            throw new WasmCodeException("Attempt to call table.grow with value above i32_max. WasmJ doesn't support this!");
+        if (oldTable.length + requested < 0)
+            throw new WasmCodeException("table.grow caused table size to overflow the i32 limit. WasmJ doesn't support this!");
+        limiter.incHeapMemoryUsed(requested * 8L);
+        if (limiter.defersRefCounts && fillValue != null)
+            for (int i = 0; i < requested; i++)
+                fillValue.inc(limiter);
+        limiter.incInstructions(fillValue == null ? oldTable.length : (long) oldTable.length + requested);
+
+        RefCountable[] newTable = new RefCountable[oldTable.length + requested];
+        System.arraycopy(oldTable, 0, newTable, 0, oldTable.length);
+        if (fillValue != null)
+            Arrays.fill(newTable, oldTable.length, newTable.length, fillValue);
+        return newTable;
+    }
+
+}
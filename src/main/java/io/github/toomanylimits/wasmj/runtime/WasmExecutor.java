@@ -0,0 +1,191 @@
+package io.github.toomanylimits.wasmj.runtime;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs calls into WasmInstances in the background, returning a
+ * CompletableFuture for each.
+ *
+ * An instance's state isn't thread-safe, so calls into the same instance
+ * are queued and run one after another, in the order they were submitted.
+ * Calls into different instances run concurrently. Each instance's queue
+ * holds at most queueCapacity calls: submit() blocks while it's full, and
+ * trySubmit() fails instead.
+ *
+ * By default, calls run on a cached pool of daemon platform threads, owned
+ * by this executor. On a JDK with virtual threads, pass a virtual thread
+ * per task executor instead, so guests blocked in host imports only park
+ * their virtual thread. Neither the generated code nor the runtime holds
+ * a monitor while calling out, so guests never pin their carrier thread.
+ */
+public class WasmExecutor implements AutoCloseable {
+
+    public final int queueCapacity;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+
+    // Instances aren't kept alive just because they were once used here
+    private final Map<WasmInstance, Lane> lanes = new WeakHashMap<>();
+    private final ReentrantLock lanesLock = new ReentrantLock();
+    private volatile boolean closed = false;
+
+    public WasmExecutor(int queueCapacity) {
+        this(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "WasmJ executor");
+            thread.setDaemon(true);
+            return thread;
+        }), queueCapacity, true);
+    }
+
+    // The executor isn't shut down when this is closed.
+    public WasmExecutor(Executor executor, int queueCapacity) {
+        this(executor, queueCapacity, false);
+    }
+
+    private WasmExecutor(Executor executor, int queueCapacity, boolean ownsExecutor) {
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("Queue capacity must be positive, got " + queueCapacity);
+        this.executor = executor;
+        this.queueCapacity = queueCapacity;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Call the exported function, which must belong to the given instance,
+     * with the given args. Blocks while the instance's queue is full.
+     * The future completes with the same result or WasmException that
+     * ExportedFunction.invoke() gives.
+     */
+    public CompletableFuture<Object> invoke(WasmInstance instance, ExportedFunction function, Object... args) throws InterruptedException {
+        return submit(instance, () -> function.invoke(args));
+    }
+
+    /**
+     * Run some code which uses the given instance, once every call
+     * submitted for it before has finished. Blocks while the instance's
+     * queue is full.
+     */
+    public <T> CompletableFuture<T> submit(WasmInstance instance, Callable<T> call) throws InterruptedException {
+        Task<T> task = new Task<>(call);
+        Lane lane = laneFor(instance);
+        lane.queue.put(task);
+        lane.schedule();
+        return task.result;
+    }
+
+    /**
+     * Same as above, but if the instance's queue is full, the returned
+     * future fails with RejectedExecutionException instead of blocking.
+     */
+    public <T> CompletableFuture<T> trySubmit(WasmInstance instance, Callable<T> call) {
+        Task<T> task = new Task<>(call);
+        Lane lane = laneFor(instance);
+        if (!lane.queue.offer(task))
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Call queue of instance is full"));
+        lane.schedule();
+        return task.result;
+    }
+
+    // The number of calls waiting to run on the given instance, not counting one which is running.
+    public int queuedCalls(WasmInstance instance) {
+        lanesLock.lock();
+        try {
+            Lane lane = lanes.get(instance);
+            return lane == null ? 0 : lane.queue.size();
+        } finally {
+            lanesLock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting calls. Calls already queued still run. If the executor
+     * was created by this object, it's shut down once they're done.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (ownsExecutor)
+            ((ExecutorService) executor).shutdown();
+    }
+
+    private Lane laneFor(WasmInstance instance) {
+        if (closed)
+            throw new RejectedExecutionException("WasmExecutor is closed");
+        lanesLock.lock();
+        try {
+            return lanes.computeIfAbsent(instance, i -> new Lane());
+        } finally {
+            lanesLock.unlock();
+        }
+    }
+
+    /**
+     * The queue of calls for a single instance. At most one task
+     * draining the queue is given to the executor at a time.
+     */
+    private final class Lane {
+        private final BlockingQueue<Task<?>> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+
+        private void schedule() {
+            if (!draining.compareAndSet(false, true))
+                return;
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                failAll(queue, e);
+                draining.set(false);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Task<?> task = queue.poll();
+                if (task == null) {
+                    draining.set(false);
+                    // A call may have been queued after the poll, but before draining was cleared
+                    if (queue.isEmpty() || !draining.compareAndSet(false, true))
+                        return;
+                    continue;
+                }
+                task.run();
+            }
+        }
+    }
+
+    private static void failAll(Queue<Task<?>> queue, Throwable cause) {
+        Task<?> task;
+        while ((task = queue.poll()) != null)
+            task.result.completeExceptionally(cause);
+    }
+
+    private static final class Task<T> {
+        private final Callable<T> call;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private Task(Callable<T> call) {
+            this.call = call;
+        }
+
+        private void run() {
+            try {
+                result.complete(call.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }
+    }
+
+}
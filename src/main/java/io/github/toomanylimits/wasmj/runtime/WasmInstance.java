@@ -3,10 +3,14 @@ package io.github.toomanylimits.wasmj.runtime;
 import io.github.toomanylimits.wasmj.compiling.compiler.Compiler;
 import io.github.toomanylimits.wasmj.compiling.helpers.Names;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.data.SimpleData;
 import io.github.toomanylimits.wasmj.compiling.simplify.Validator;
+import io.github.toomanylimits.wasmj.parsing.module.Import;
 import io.github.toomanylimits.wasmj.parsing.module.WasmModule;
+import io.github.toomanylimits.wasmj.parsing.types.Limits;
 import io.github.toomanylimits.wasmj.runtime.errors.JvmCodeError;
 import io.github.toomanylimits.wasmj.runtime.errors.WasmException;
+import io.github.toomanylimits.wasmj.runtime.memory.MemoryBackend;
 import io.github.toomanylimits.wasmj.runtime.reflect.JavaModuleData;
 import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
 import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
@@ -19,48 +23,180 @@ import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Modules are instantiated in an instance.
  */
-public class WasmInstance {
+public class WasmInstance implements AutoCloseable {
 
-    private final CustomWasmJLoader loader = new CustomWasmJLoader(new HashMap<>(), WasmInstance.class.getClassLoader(), false);
+    private CustomWasmJLoader loader = null; // Created when the first module is defined, unless using hidden classes
+    private final Map<String, Class<?>> wasmClasses = new HashMap<>();
     public final InstanceLimiter limiter;
 
     public final List<String> wasmModuleNames = new ArrayList<>();
     public final Map<String, JavaModuleData<?>> instanceJavaModules = new HashMap<>();
+    private final Map<String, MemoryBackend> memoryBackends = new HashMap<>();
+    private Map<String, CompiledModule> compiledModules = null; // Only kept if retainCompiledModules() was called
+    private boolean hiddenClasses = false;
+    private long compiledBytesCharged = 0; // The size of the compiled classes, which the limiter was charged for
+    private boolean closed = false;
+    private final LeakDetector.Tracker leakTracker; // Null unless leak detection is on
 
     // The parameters to this are just used to create an InstanceLimiter for sandboxing.
     // Check InstanceLimiter for information on them.
     // Use -1 if you don't want to track the variable at all.
     public WasmInstance(long maxInstructions, long maxJvmHeapMemory) {
-        limiter = new InstanceLimiter(maxInstructions, maxJvmHeapMemory);
+        this(new InstanceLimiter(maxInstructions, maxJvmHeapMemory));
+    }
+
+    // Use a specific limiter, for example a ConcurrentInstanceLimiter
+    // if this instance's code will run on several threads at once.
+    // The limiter must be fresh, and not shared with another instance.
+    public WasmInstance(InstanceLimiter limiter) {
+        this.limiter = Objects.requireNonNull(limiter);
+        this.leakTracker = LeakDetector.track(this, wasmModuleNames);
     }
 
     public void addWasmModule(String moduleName, WasmModule module) throws Validator.ValidationException, WasmException {
+        // Shared memories need pages, so they can grow while other threads use them
+        boolean shared = ListUtils.any(module.memories, Limits::shared);
+        addWasmModule(moduleName, module, shared ? MemoryBackend.PAGED : MemoryBackend.HEAP_ARRAY);
+    }
+
+    // Same as above, but lets you choose how the module's linear memory is stored.
+    // See MemoryBackend for the options.
+    public void addWasmModule(String moduleName, WasmModule module, MemoryBackend memoryBackend) throws Validator.ValidationException, WasmException {
+        checkNewModuleName(moduleName);
+        if (hiddenClasses) {
+            for (Import imp : module.imports)
+                if (wasmModuleNames.contains(imp.moduleName))
+                    throw new UnsupportedOperationException("Module \"" + moduleName + "\" imports from wasm module \"" + imp.moduleName + "\", which instances using hidden classes don't support");
+        }
+        wasmModuleNames.add(moduleName);
+        // Compile the module and define its class. Only the data segments are kept
+        // from the SimpleModule, so the rest of it can be collected once this returns.
+        SimpleModule simple = new SimpleModule(moduleName, module, this, memoryBackend);
+        CompiledModule compiled = new CompiledModule(Compiler.compile(simple), ListUtils.map(Arrays.asList(simple.datas), SimpleData::bytes).toArray(new byte[0][]), memoryBackend);
+        defineAndInit(moduleName, compiled, true);
+    }
+
+    /**
+     * Must be called before any wasm modules are added. Keeps the compiled classes
+     * of this instance's modules, so that WasmSnapshots of this instance can
+     * create new instances without compiling the modules again.
+     */
+    public void retainCompiledModules() {
+        if (!wasmModuleNames.isEmpty())
+            throw new UnsupportedOperationException("retainCompiledModules() must be called before any WASM modules are added");
+        compiledModules = new LinkedHashMap<>();
+    }
+
+    /**
+     * Must be called before any wasm modules are added. Defines the compiled
+     * module classes as hidden classes, instead of in a class loader for this
+     * instance. Each hidden class is unloaded as soon as it's unreachable, and
+     * there's no class loader to create or keep track of, which adds up when
+     * there are many short-lived instances.
+     *
+     * Hidden classes can't refer to each other by name, so in this mode, a wasm
+     * module can't import from another wasm module. Imports from java modules
+     * work as usual.
+     */
+    public void useHiddenClasses() {
+        if (!wasmModuleNames.isEmpty())
+            throw new UnsupportedOperationException("useHiddenClasses() must be called before any WASM modules are added");
+        hiddenClasses = true;
+    }
+
+    /**
+     * The output of compiling a wasm module, which can be reused by another
+     * instance with the same limiter settings and java modules. The data
+     * segment bytes are passed to the init method, and are the only thing
+     * kept from the module's compile-time structures.
+     */
+    record CompiledModule(Map<String, byte[]> classes, byte[][] datas, MemoryBackend memoryBackend) {}
+
+    /**
+     * Create a new instance with the same limiter settings, java modules and
+     * wasm modules as this one, reusing the retained compiled classes.
+     * The modules' memories, tables and globals are created, but their data
+     * and elem segments aren't initialized, since the new instance's state
+     * is about to be restored from an image.
+     */
+    WasmInstance recreateForImage() throws WasmException {
+        if (compiledModules == null)
+            throw new IllegalStateException("Instance must call retainCompiledModules() before adding modules, to be recreated");
+        WasmInstance result = new WasmInstance(limiter.withSameLimits());
+        result.instanceJavaModules.putAll(instanceJavaModules);
+        result.hiddenClasses = hiddenClasses;
+        result.compiledModules = new LinkedHashMap<>();
+        for (Map.Entry<String, CompiledModule> entry : compiledModules.entrySet()) {
+            result.checkNewModuleName(entry.getKey());
+            result.wasmModuleNames.add(entry.getKey());
+            result.defineAndInit(entry.getKey(), entry.getValue(), false);
+        }
+        return result;
+    }
+
+    private void checkNewModuleName(String moduleName) {
+        if (closed)
+            throw new IllegalStateException("Cannot add modules to a closed wasm instance");
         if (wasmModuleNames.contains(moduleName) || instanceJavaModules.containsKey(moduleName))
             throw new IllegalArgumentException("There is already a module named \"" + moduleName + "\" in this wasm instance");
-        wasmModuleNames.add(moduleName);
-        // Compile the module and add it to the custom classloader
-        SimpleModule simple = new SimpleModule(moduleName, module, this);
-        Map<String, byte[]> compiled = Compiler.compile(simple);
-        for (byte[] compiledClass : compiled.values())
+    }
+
+    // Define the compiled class, as a hidden class or in the custom classloader, and call the init method.
+    // If initSegments is false, the init method skips the active data and elem segments.
+    private void defineAndInit(String moduleName, CompiledModule compiled, boolean initSegments) throws WasmException {
+        for (byte[] compiledClass : compiled.classes.values()) {
             limiter.incHeapMemoryUsed(compiledClass.length);
-        loader.classes.putAll(compiled);
-        // Get the wasm class and call the init method.
+            compiledBytesCharged += compiledClass.length;
+        }
+        String className = Names.className(moduleName);
+        Class<?> c;
+        if (hiddenClasses) {
+            c = HiddenModuleClasses.define(compiled.classes.get(className));
+        } else {
+            if (loader == null)
+                loader = new CustomWasmJLoader(new HashMap<>(), WasmInstance.class.getClassLoader(), false);
+            loader.classes.putAll(compiled.classes);
+            try {
+                c = loader.loadClass(className.replace('/', '.'));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("The class \"" + moduleName + "\" was added to the instance, but could not be found in the class loader? Internal bug!", e);
+            }
+        }
+        wasmClasses.put(moduleName, c);
+        memoryBackends.put(moduleName, compiled.memoryBackend);
+        if (compiledModules != null)
+            compiledModules.put(moduleName, compiled);
+        // Call the init method. This initializes the class first, whose static initializer
+        // creates the memory and tables that never change size, and charges them to this limiter.
+        // The init method charges instructions, such as for copying the data segments, so it's treated
+        // like an export call, giving the limiter a safe point and the chance to take back what it handed out.
+        limiter.enterExportCall();
+        RuntimeHelpers.beginClassInit(limiter);
         try {
-            Class<?> c = getWasmClass(moduleName);
-            c.getDeclaredMethod(Names.initMethodName(), InstanceLimiter.class, Map.class, SimpleModule.class).invoke(null, limiter, instanceJavaModules, simple); // Throws WasmException
+            c.getDeclaredMethod(Names.initMethodName(), InstanceLimiter.class, Map.class, byte[][].class, boolean.class).invoke(null, limiter, instanceJavaModules, compiled.datas, initSegments); // Throws WasmException
         } catch (InvocationTargetException e) {
             // Re-wrap it as a WASM exception if needed
             if (e.getCause() instanceof WasmException ex)
                 throw ex;
             throw new JvmCodeError(e.getCause());
+        } catch (ExceptionInInitializerError e) {
+            // The class can't be used at all now, not even to release its fields, so forget it
+            wasmClasses.remove(moduleName);
+            if (e.getCause() instanceof WasmException ex)
+                throw ex;
+            throw new JvmCodeError(e.getCause());
         } catch (NoSuchMethodException | IllegalAccessException e) {
             throw new IllegalStateException("Failed to locate/call init method? Should always succeed!", e);
+        } finally {
+            RuntimeHelpers.endClassInit();
+            limiter.exitExportCall();
         }
     }
 
@@ -126,13 +262,12 @@ public class WasmInstance {
      * it doesn't exist.
      */
     public Class<?> getWasmClass(String wasmModuleName) {
-        if (!wasmModuleNames.contains(wasmModuleName))
-            return null; // throw new IllegalArgumentException("No WASM module with name \"" + wasmModuleName + "\" was added to this instance");
-        try {
-            return loader.loadClass(Names.className(wasmModuleName).replace('/', '.'));
-        } catch (ClassNotFoundException e) {
-            throw new IllegalStateException("The class \"" + wasmModuleName + "\" was added to the instance, but could not be found in the class loader? Internal bug!", e);
-        }
+        return wasmClasses.get(wasmModuleName);
+    }
+
+    // The memory backend the given wasm module was compiled with, or null if there's no such module.
+    MemoryBackend memoryBackend(String wasmModuleName) {
+        return memoryBackends.get(wasmModuleName);
     }
 
     /**
@@ -157,6 +292,99 @@ public class WasmInstance {
         return ListUtils.first(exportedFunctions(wasmModuleName), func -> func.name.equals(exportName));
     }
 
+    /**
+     * Close this instance, releasing everything it charged to the limiter:
+     * - Each module's memory. Off-heap memory is freed once the GC
+     *   collects the buffer, since host code may still hold slices of it.
+     * - Each module's tables and reference-typed globals. The objects they
+     *   hold lose those references, and are dropped if there are no others.
+     * - The compiled classes. The instance lets go of them, so they can be
+     *   unloaded once nothing else refers to them.
+     * The instance must not be used after closing.
+     * Calling this more than once does nothing.
+     * Instances which are never closed can be found by setting the system
+     * property "wasmj.detectLeaks" to true, see LeakDetector.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (leakTracker != null)
+            leakTracker.closed();
+        WasmException dropFailure = null;
+        for (String moduleName : wasmModuleNames) {
+            Class<?> moduleClass = getWasmClass(moduleName);
+            if (moduleClass == null) continue; // Failed before the class was defined
+            try {
+                // Memory
+                Field memoryField = moduleClass.getDeclaredField(Names.memoryName(0));
+                memoryField.setAccessible(true);
+                Object memory = memoryField.get(null);
+                if (memory != null) { // Null if init failed before the memory was created
+                    // A memory that never grows is final, and stays in the class
+                    if (!Modifier.isFinal(memoryField.getModifiers()))
+                        memoryField.set(null, null);
+                    MemoryBackend backend = memoryBackends.get(moduleName);
+                    limiter.decHeapMemoryUsed(backend.byteSize(memory));
+                }
+                // Tables and globals
+                for (Field field : moduleClass.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()))
+                        continue;
+                    boolean table = field.getName().startsWith("table_") && field.getType() == RefCountable[].class;
+                    boolean global = field.getName().startsWith("global_") && RefCountable.class.isAssignableFrom(field.getType());
+                    if (!table && !global)
+                        continue;
+                    field.setAccessible(true);
+                    Object value = field.get(null);
+                    RefCountable[] refs = table ? (RefCountable[]) value : new RefCountable[] { (RefCountable) value };
+                    if (refs == null)
+                        continue;
+                    // A table that never grows is final, so empty it instead
+                    if (Modifier.isFinal(field.getModifiers())) {
+                        refs = refs.clone();
+                        Arrays.fill((RefCountable[]) value, null);
+                    } else {
+                        field.set(null, null);
+                    }
+                    if (table)
+                        limiter.decHeapMemoryUsed(refs.length * 8L);
+                    if (!limiter.countsMemory)
+                        continue;
+                    for (RefCountable ref : refs) {
+                        if (ref == null) continue;
+                        try {
+                            ref.dec(limiter);
+                        } catch (WasmException e) {
+                            if (dropFailure == null) dropFailure = e;
+                        }
+                    }
+                }
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                throw new IllegalStateException("Failed to release module \"" + moduleName + "\"? Bug in WasmJ, please report!", e);
+            }
+        }
+        // Dropped objects are only checked at safe points, and closing is the last one
+        if (limiter.defersRefCounts) {
+            try {
+                limiter.reconcileRefCounts();
+            } catch (WasmException e) {
+                if (dropFailure == null) dropFailure = e;
+            }
+        }
+        limiter.decHeapMemoryUsed(compiledBytesCharged);
+        compiledBytesCharged = 0;
+        // Let go of the classes, so they can be unloaded
+        wasmClasses.clear();
+        loader = null;
+        if (dropFailure != null)
+            throw new IllegalStateException("An object released by closing the instance failed to drop", dropFailure);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
     /**
      * The custom class loader which holds all the generated classes
      * for some instance.
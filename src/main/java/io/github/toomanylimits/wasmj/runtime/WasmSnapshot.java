@@ -0,0 +1,85 @@
+package io.github.toomanylimits.wasmj.runtime;
+
+import io.github.toomanylimits.wasmj.runtime.errors.WasmException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The full state of an instance at some point in time, usually right
+ * after the guest's own initialization routines have run, from which
+ * new instances can be created without running them again.
+ *
+ * To create instances from a snapshot without compiling the modules
+ * again, the captured instance must have called retainCompiledModules()
+ * before its modules were added. Otherwise, build an instance with the
+ * same modules yourself and use restoreInto().
+ *
+ * Modules using the COPY_ON_WRITE memory backend share the snapshot's
+ * memory pages between every instance created from it, and each instance
+ * only copies the pages it writes to.
+ */
+public class WasmSnapshot {
+
+    private final InstanceImage image;
+    private final WasmInstance template; // Provides the compiled modules for instantiate(). May be null.
+
+    private WasmSnapshot(InstanceImage image, WasmInstance template) {
+        this.image = image;
+        this.template = template;
+    }
+
+    /**
+     * Snapshot the current state of the instance: memories, globals, tables,
+     * data/elem segments and the limiter's counters.
+     */
+    public static WasmSnapshot capture(WasmInstance instance) {
+        return new WasmSnapshot(InstanceImage.capture(instance), instance);
+    }
+
+    /**
+     * Create a new instance in the snapshotted state. The modules' classes are
+     * reused from the template instance, their data and elem segments aren't
+     * initialized again, and each memory is filled with one bulk copy from
+     * the snapshot.
+     */
+    public WasmInstance instantiate() throws WasmException {
+        if (template == null)
+            throw new IllegalStateException("Snapshot has no template instance to create instances from, use restoreInto() instead");
+        WasmInstance result = template.recreateForImage();
+        try {
+            image.restoreIntoNew(result);
+        } catch (WasmException | RuntimeException e) {
+            result.close();
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Put an existing instance into the snapshotted state. It must contain
+     * wasm modules with the same names, code and memory backends.
+     */
+    public void restoreInto(WasmInstance target) throws WasmException {
+        image.restoreInto(target);
+    }
+
+    /**
+     * Write this snapshot to a file, for example to move it to another machine.
+     * Snapshots whose tables or globals hold java objects (externrefs) can't be saved.
+     */
+    public void save(Path file) throws IOException {
+        image.save(file);
+    }
+
+    /**
+     * Read a snapshot written by save(). The file is memory-mapped while loading.
+     * The template is an instance containing the same modules, which called
+     * retainCompiledModules(); it's used by instantiate() to create new instances.
+     * Pass null if you'll only use restoreInto().
+     */
+    public static WasmSnapshot load(Path file, WasmInstance template) throws IOException {
+        return new WasmSnapshot(InstanceImage.load(file), template);
+    }
+
+}
@@ -0,0 +1,11 @@
+package io.github.toomanylimits.wasmj.runtime.errors;
+
+/**
+ * Thrown when a WASM instance is interrupted, usually because it
+ * ran past the deadline given to an EpochTicker.
+ */
+public class DeadlineExceededException extends WasmException {
+    public DeadlineExceededException() {
+        super("WASM instance was interrupted, it ran past its deadline");
+    }
+}
@@ -0,0 +1,334 @@
+package io.github.toomanylimits.wasmj.runtime.memory;
+
+import io.github.toomanylimits.wasmj.runtime.errors.JvmCodeError;
+import io.github.toomanylimits.wasmj.runtime.errors.WasmCodeException;
+import io.github.toomanylimits.wasmj.runtime.errors.WasmException;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.github.toomanylimits.wasmj.runtime.memory.PagedMemory.PAGE_MASK;
+import static io.github.toomanylimits.wasmj.runtime.memory.PagedMemory.PAGE_SHIFT;
+
+/**
+ * Static helpers called by generated code for the atomic memory
+ * instructions of the threads proposal. There are overloads for the
+ * HEAP_ARRAY (byte[]) and PAGED (byte[][]) backends.
+ *
+ * 32 and 64 bit accesses use byte array view VarHandles in volatile mode,
+ * which gives the sequentially consistent ordering wasm atomics need.
+ * Byte array views don't support atomic access to bytes and shorts, so
+ * 8 and 16 bit accesses operate on the aligned int containing them, with
+ * a compare-and-set loop for writes.
+ *
+ * Sub-word and 32 bit results are zero-extended ints. The generated code
+ * widens them for i64 instructions.
+ *
+ * memory.atomic.wait parks the thread with LockSupport, in a wait queue
+ * keyed by the array and index being waited on. For PAGED memories that's
+ * the page, which stays the same when the memory grows. If the limiter
+ * is interruptible, waits park in short slices so interrupt() and
+ * EpochTicker deadlines can stop them, the same as guest loops.
+ */
+public final class AtomicMemory {
+
+    private AtomicMemory() {}
+
+    // Wasm demands little endian
+    private static final VarHandle INT_HANDLE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_HANDLE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // The read-modify-write operations, numbered the same as Instruction.AtomicRmwOp
+    public static final int ADD = 0, SUB = 1, AND = 2, OR = 3, XOR = 4, XCHG = 5;
+
+    // Wait results, as defined by the spec
+    private static final int WOKEN = 0, NOT_EQUAL = 1, TIMED_OUT = 2;
+
+    // HEAP_ARRAY
+
+    public static int load(byte[] mem, int addr, int bytes) throws WasmCodeException {
+        checkAligned(addr, bytes);
+        return loadImpl(mem, addr, bytes);
+    }
+    public static long loadJ(byte[] mem, int addr) throws WasmCodeException {
+        checkAligned(addr, 8);
+        return (long) LONG_HANDLE.getVolatile(mem, addr);
+    }
+    public static void store(byte[] mem, int addr, int bytes, int value) throws WasmCodeException {
+        checkAligned(addr, bytes);
+        storeImpl(mem, addr, bytes, value);
+    }
+    public static void storeJ(byte[] mem, int addr, long value) throws WasmCodeException {
+        checkAligned(addr, 8);
+        LONG_HANDLE.setVolatile(mem, addr, value);
+    }
+    public static int rmw(byte[] mem, int addr, int bytes, int op, int value) throws WasmCodeException {
+        checkAligned(addr, bytes);
+        return rmwImpl(mem, addr, bytes, op, value);
+    }
+    public static long rmwJ(byte[] mem, int addr, int op, long value) throws WasmCodeException {
+        checkAligned(addr, 8);
+        return rmwLongImpl(mem, addr, op, value);
+    }
+    public static int cmpxchg(byte[] mem, int addr, int bytes, int expected, int replacement) throws WasmCodeException {
+        checkAligned(addr, bytes);
+        return cmpxchgImpl(mem, addr, bytes, expected, replacement);
+    }
+    public static long cmpxchgJ(byte[] mem, int addr, long expected, long replacement) throws WasmCodeException {
+        checkAligned(addr, 8);
+        return (long) LONG_HANDLE.compareAndExchange(mem, addr, expected, replacement);
+    }
+    public static int wait32(byte[] mem, int addr, int expected, long timeout, InstanceLimiter limiter) throws WasmException {
+        checkAligned(addr, 4);
+        return waitImpl(mem, addr, false, expected, timeout, limiter);
+    }
+    public static int wait64(byte[] mem, int addr, long expected, long timeout, InstanceLimiter limiter) throws WasmException {
+        checkAligned(addr, 8);
+        return waitImpl(mem, addr, true, expected, timeout, limiter);
+    }
+    public static int notify(byte[] mem, int addr, int count) throws WasmCodeException {
+        checkAligned(addr, 4);
+        return notifyImpl(mem, addr, count);
+    }
+
+    // PAGED. Aligned accesses never straddle two pages.
+
+    public static int load(byte[][] mem, int addr, int bytes) throws WasmCodeException {
+        checkAligned(addr, bytes);
+        return loadImpl(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK, bytes);
+    }
+    public static long loadJ(byte[][] mem, int addr) throws WasmCodeException {
+        checkAligned(addr, 8);
+        return (long) LONG_HANDLE.getVolatile(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK);
+    }
+    public static void store(byte[][] mem, int addr, int bytes, int value) throws WasmCodeException {
+        checkAligned(addr, bytes);
+        storeImpl(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK, bytes, value);
+    }
+    public static void storeJ(byte[][] mem, int addr, long value) throws WasmCodeException {
+        checkAligned(addr, 8);
+        LONG_HANDLE.setVolatile(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK, value);
+    }
+    public static int rmw(byte[][] mem, int addr, int bytes, int op, int value) throws WasmCodeException {
+        checkAligned(addr, bytes);
+        return rmwImpl(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK, bytes, op, value);
+    }
+    public static long rmwJ(byte[][] mem, int addr, int op, long value) throws WasmCodeException {
+        checkAligned(addr, 8);
+        return rmwLongImpl(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK, op, value);
+    }
+    public static int cmpxchg(byte[][] mem, int addr, int bytes, int expected, int replacement) throws WasmCodeException {
+        checkAligned(addr, bytes);
+        return cmpxchgImpl(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK, bytes, expected, replacement);
+    }
+    public static long cmpxchgJ(byte[][] mem, int addr, long expected, long replacement) throws WasmCodeException {
+        checkAligned(addr, 8);
+        return (long) LONG_HANDLE.compareAndExchange(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK, expected, replacement);
+    }
+    public static int wait32(byte[][] mem, int addr, int expected, long timeout, InstanceLimiter limiter) throws WasmException {
+        checkAligned(addr, 4);
+        return waitImpl(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK, false, expected, timeout, limiter);
+    }
+    public static int wait64(byte[][] mem, int addr, long expected, long timeout, InstanceLimiter limiter) throws WasmException {
+        checkAligned(addr, 8);
+        return waitImpl(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK, true, expected, timeout, limiter);
+    }
+    public static int notify(byte[][] mem, int addr, int count) throws WasmCodeException {
+        checkAligned(addr, 4);
+        return notifyImpl(mem[addr >>> PAGE_SHIFT], addr & PAGE_MASK, count);
+    }
+
+    // Implementations, on a single array and an index into it
+
+    private static void checkAligned(int addr, int bytes) throws WasmCodeException {
+        if ((addr & (bytes - 1)) != 0)
+            throw new WasmCodeException("Unaligned atomic access of " + bytes + " bytes at address " + Integer.toUnsignedString(addr));
+    }
+
+    // For 8 and 16 bit accesses, the mask of the value's bits in the int containing it
+    private static int subWordMask(int bytes) {
+        return bytes == 1 ? 0xFF : 0xFFFF;
+    }
+
+    private static int loadImpl(byte[] array, int index, int bytes) {
+        if (bytes == 4)
+            return (int) INT_HANDLE.getVolatile(array, index);
+        int shift = (index & 3) << 3;
+        return ((int) INT_HANDLE.getVolatile(array, index & ~3) >>> shift) & subWordMask(bytes);
+    }
+
+    private static void storeImpl(byte[] array, int index, int bytes, int value) {
+        if (bytes == 4) {
+            INT_HANDLE.setVolatile(array, index, value);
+            return;
+        }
+        rmwImpl(array, index, bytes, XCHG, value);
+    }
+
+    private static int apply(int op, int old, int value) {
+        return switch (op) {
+            case ADD -> old + value;
+            case SUB -> old - value;
+            case AND -> old & value;
+            case OR -> old | value;
+            case XOR -> old ^ value;
+            case XCHG -> value;
+            default -> throw new IllegalArgumentException("Invalid atomic op " + op);
+        };
+    }
+
+    private static int rmwImpl(byte[] array, int index, int bytes, int op, int value) {
+        if (bytes == 4) {
+            return switch (op) {
+                case ADD -> (int) INT_HANDLE.getAndAdd(array, index, value);
+                case SUB -> (int) INT_HANDLE.getAndAdd(array, index, -value);
+                case AND -> (int) INT_HANDLE.getAndBitwiseAnd(array, index, value);
+                case OR -> (int) INT_HANDLE.getAndBitwiseOr(array, index, value);
+                case XOR -> (int) INT_HANDLE.getAndBitwiseXor(array, index, value);
+                case XCHG -> (int) INT_HANDLE.getAndSet(array, index, value);
+                default -> throw new IllegalArgumentException("Invalid atomic op " + op);
+            };
+        }
+        int wordIndex = index & ~3;
+        int shift = (index & 3) << 3;
+        int mask = subWordMask(bytes);
+        while (true) {
+            int word = (int) INT_HANDLE.getVolatile(array, wordIndex);
+            int old = (word >>> shift) & mask;
+            int replaced = (word & ~(mask << shift)) | ((apply(op, old, value) & mask) << shift);
+            if (INT_HANDLE.compareAndSet(array, wordIndex, word, replaced))
+                return old;
+        }
+    }
+
+    private static long rmwLongImpl(byte[] array, int index, int op, long value) {
+        return switch (op) {
+            case ADD -> (long) LONG_HANDLE.getAndAdd(array, index, value);
+            case SUB -> (long) LONG_HANDLE.getAndAdd(array, index, -value);
+            case AND -> (long) LONG_HANDLE.getAndBitwiseAnd(array, index, value);
+            case OR -> (long) LONG_HANDLE.getAndBitwiseOr(array, index, value);
+            case XOR -> (long) LONG_HANDLE.getAndBitwiseXor(array, index, value);
+            case XCHG -> (long) LONG_HANDLE.getAndSet(array, index, value);
+            default -> throw new IllegalArgumentException("Invalid atomic op " + op);
+        };
+    }
+
+    private static int cmpxchgImpl(byte[] array, int index, int bytes, int expected, int replacement) {
+        if (bytes == 4)
+            return (int) INT_HANDLE.compareAndExchange(array, index, expected, replacement);
+        int wordIndex = index & ~3;
+        int shift = (index & 3) << 3;
+        int mask = subWordMask(bytes);
+        expected &= mask; // The expected value is wrapped to the accessed width
+        while (true) {
+            int word = (int) INT_HANDLE.getVolatile(array, wordIndex);
+            int old = (word >>> shift) & mask;
+            if (old != expected)
+                return old;
+            int replaced = (word & ~(mask << shift)) | ((replacement & mask) << shift);
+            if (INT_HANDLE.compareAndSet(array, wordIndex, word, replaced))
+                return old;
+        }
+    }
+
+    // Waiting and notifying
+
+    private record WaitAddress(byte[] array, int index) {
+        // Arrays only compare equal to themselves, so addresses are equal if they're in the same array
+    }
+
+    private static final class Waiter {
+        private final Thread thread = Thread.currentThread();
+        private volatile boolean woken = false;
+    }
+
+    // Every thread currently waiting, in the order they started waiting.
+    // Waiting is rare and slow anyway, so a single lock is enough.
+    private static final Map<WaitAddress, ArrayDeque<Waiter>> WAITERS = new HashMap<>();
+    private static final ReentrantLock WAITERS_LOCK = new ReentrantLock();
+
+    // How long to park at a time before checking the limiter for an interrupt
+    private static final long INTERRUPT_CHECK_NANOS = 10_000_000;
+
+    private static int waitImpl(byte[] array, int index, boolean is64, long expected, long timeout, InstanceLimiter limiter) throws WasmException {
+        WaitAddress address = new WaitAddress(array, index);
+        Waiter waiter = new Waiter();
+        WAITERS_LOCK.lock();
+        try {
+            // Check the value while holding the lock, so a notify can't slip in between the check and the wait
+            long actual = is64 ? (long) LONG_HANDLE.getVolatile(array, index) : (int) INT_HANDLE.getVolatile(array, index);
+            if (actual != expected)
+                return NOT_EQUAL;
+            WAITERS.computeIfAbsent(address, a -> new ArrayDeque<>()).add(waiter);
+        } finally {
+            WAITERS_LOCK.unlock();
+        }
+
+        // Negative timeouts wait forever. An interruptible limiter can't unpark
+        // us, so park in slices and check for an interrupt between them.
+        long deadline = System.nanoTime() + timeout;
+        while (!waiter.woken) {
+            if (Thread.currentThread().isInterrupted() || limiter.interruptible && limiter.interruptRequested)
+                break;
+            if (timeout < 0) {
+                if (limiter.interruptible)
+                    LockSupport.parkNanos(waiter, INTERRUPT_CHECK_NANOS);
+                else
+                    LockSupport.park(waiter);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+                LockSupport.parkNanos(waiter, limiter.interruptible ? Math.min(remaining, INTERRUPT_CHECK_NANOS) : remaining);
+            }
+        }
+
+        WAITERS_LOCK.lock();
+        try {
+            if (waiter.woken)
+                return WOKEN;
+            ArrayDeque<Waiter> queue = WAITERS.get(address);
+            queue.remove(waiter);
+            if (queue.isEmpty())
+                WAITERS.remove(address);
+        } finally {
+            WAITERS_LOCK.unlock();
+        }
+        if (limiter.interruptible)
+            limiter.checkInterrupt();
+        if (Thread.currentThread().isInterrupted())
+            throw new JvmCodeError(new InterruptedException("Thread was interrupted during memory.atomic.wait"));
+        return TIMED_OUT;
+    }
+
+    private static int notifyImpl(byte[] array, int index, int count) {
+        INT_HANDLE.getVolatile(array, index); // Bounds check
+        long remaining = Integer.toUnsignedLong(count);
+        int woken = 0;
+        WAITERS_LOCK.lock();
+        try {
+            WaitAddress address = new WaitAddress(array, index);
+            ArrayDeque<Waiter> queue = WAITERS.get(address);
+            if (queue == null)
+                return 0;
+            while (woken < remaining && !queue.isEmpty()) {
+                Waiter waiter = queue.poll();
+                waiter.woken = true;
+                LockSupport.unpark(waiter.thread);
+                woken++;
+            }
+            if (queue.isEmpty())
+                WAITERS.remove(address);
+        } finally {
+            WAITERS_LOCK.unlock();
+        }
+        return woken;
+    }
+
+}
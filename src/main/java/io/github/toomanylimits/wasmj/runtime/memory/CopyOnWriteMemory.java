@@ -0,0 +1,235 @@
+package io.github.toomanylimits.wasmj.runtime.memory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static io.github.toomanylimits.wasmj.runtime.memory.PagedMemory.PAGE_MASK;
+import static io.github.toomanylimits.wasmj.runtime.memory.PagedMemory.PAGE_SHIFT;
+import static io.github.toomanylimits.wasmj.runtime.memory.PagedMemory.PAGE_SIZE;
+
+/**
+ * The memory object for modules using the COPY_ON_WRITE memory backend,
+ * along with the static helpers called by generated code to access it.
+ *
+ * Like PAGED, the memory is split into one byte[] per WASM page. However,
+ * pages may be shared with other memories: with the snapshot an instance
+ * was created from, with its sibling instances, or with the shared page
+ * of zeroes that fresh memory starts out as. A bitmap records which pages
+ * this memory owns. Stores to a page which isn't owned first replace it
+ * with a private copy, so shared pages are never written to, and a memory
+ * only costs as much as the pages it has actually modified.
+ *
+ * A memory object belongs to a single instance, and isn't thread-safe.
+ */
+public final class CopyOnWriteMemory {
+
+    // Wasm demands little endian
+    private static final VarHandle SHORT_HANDLE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_HANDLE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_HANDLE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // Every page starts out as this one. It's never owned, so never written.
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+    private final byte[][] pages;
+    private final long[] owned; // Bit i is set if pages[i] is private to this memory
+
+    private CopyOnWriteMemory(byte[][] pages, long[] owned) {
+        this.pages = pages;
+        this.owned = owned;
+    }
+
+    // Creation and size
+
+    public static CopyOnWriteMemory create(int pages) {
+        byte[][] result = new byte[pages][];
+        for (int i = 0; i < pages; i++)
+            result[i] = ZERO_PAGE;
+        return new CopyOnWriteMemory(result, new long[bitmapLength(pages)]);
+    }
+
+    public static int byteSize(CopyOnWriteMemory mem) {
+        return mem.pages.length << PAGE_SHIFT;
+    }
+
+    public static int pageCount(CopyOnWriteMemory mem) {
+        return mem.pages.length;
+    }
+
+    /**
+     * The number of pages which this memory holds a private copy of.
+     * Every other page is shared.
+     */
+    public static int ownedPageCount(CopyOnWriteMemory mem) {
+        int count = 0;
+        for (long word : mem.owned)
+            count += Long.bitCount(word);
+        return count;
+    }
+
+    // The existing pages stay where they are, new ones start out as the shared zero page.
+    public static CopyOnWriteMemory grow(int requested, CopyOnWriteMemory oldMem) {
+        int oldLength = oldMem.pages.length;
+        byte[][] newPages = new byte[oldLength + requested][];
+        System.arraycopy(oldMem.pages, 0, newPages, 0, oldLength);
+        for (int i = oldLength; i < newPages.length; i++)
+            newPages[i] = ZERO_PAGE;
+        long[] newOwned = new long[bitmapLength(newPages.length)];
+        System.arraycopy(oldMem.owned, 0, newOwned, 0, oldMem.owned.length);
+        return new CopyOnWriteMemory(newPages, newOwned);
+    }
+
+    // Fork the memory: the result shares every page with mem, and neither owns any of them afterwards.
+    public static CopyOnWriteMemory copy(CopyOnWriteMemory mem) {
+        Arrays.fill(mem.owned, 0L);
+        return new CopyOnWriteMemory(mem.pages.clone(), new long[mem.owned.length]);
+    }
+
+    // Point every page at the image's page again, dropping private copies.
+    // Returns how many pages didn't already point there.
+    public static int restorePages(CopyOnWriteMemory mem, CopyOnWriteMemory image) {
+        if (mem.pages.length != image.pages.length)
+            throw new IllegalArgumentException("Memory and image have different sizes");
+        // The image's pages are about to be shared, so it mustn't write to them either
+        Arrays.fill(image.owned, 0L);
+        int restored = 0;
+        for (int i = 0; i < mem.pages.length; i++) {
+            if (mem.pages[i] != image.pages[i]) {
+                mem.pages[i] = image.pages[i];
+                restored++;
+            }
+        }
+        Arrays.fill(mem.owned, 0L);
+        return restored;
+    }
+
+    // Create a memory holding private copies of the given pages.
+    static CopyOnWriteMemory of(byte[][] pages) {
+        CopyOnWriteMemory result = new CopyOnWriteMemory(pages, new long[bitmapLength(pages.length)]);
+        for (int i = 0; i < pages.length; i++)
+            result.owned[i >>> 6] |= 1L << i;
+        return result;
+    }
+
+    // The pages, for reading only.
+    static byte[][] pages(CopyOnWriteMemory mem) {
+        return mem.pages;
+    }
+
+    // Copy len bytes from src into the memory. Used by memory.init.
+    public static void write(byte[] src, int srcPos, CopyOnWriteMemory mem, int dest, int len) {
+        if (srcPos < 0 || len < 0 || srcPos + len > src.length || srcPos + len < 0)
+            throw new ArrayIndexOutOfBoundsException("memory.init source out of bounds");
+        if (len > 0 && (dest < 0 || ((dest + len - 1) >>> PAGE_SHIFT) >= mem.pages.length))
+            throw new ArrayIndexOutOfBoundsException("memory.init destination out of bounds");
+        while (len > 0) {
+            byte[] page = writablePage(mem, dest >>> PAGE_SHIFT);
+            int pageOffset = dest & PAGE_MASK;
+            int chunk = Math.min(len, PAGE_SIZE - pageOffset);
+            System.arraycopy(src, srcPos, page, pageOffset, chunk);
+            srcPos += chunk;
+            dest += chunk;
+            len -= chunk;
+        }
+    }
+
+    // Loads
+
+    public static byte loadB(CopyOnWriteMemory mem, int addr) {
+        return mem.pages[addr >>> PAGE_SHIFT][addr & PAGE_MASK];
+    }
+    public static short loadS(CopyOnWriteMemory mem, int addr) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 2)
+            return (short) SHORT_HANDLE.get(mem.pages[addr >>> PAGE_SHIFT], offset);
+        return (short) loadStraddling(mem, addr, 2);
+    }
+    public static int loadI(CopyOnWriteMemory mem, int addr) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4)
+            return (int) INT_HANDLE.get(mem.pages[addr >>> PAGE_SHIFT], offset);
+        return (int) loadStraddling(mem, addr, 4);
+    }
+    public static long loadJ(CopyOnWriteMemory mem, int addr) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 8)
+            return (long) LONG_HANDLE.get(mem.pages[addr >>> PAGE_SHIFT], offset);
+        return loadStraddling(mem, addr, 8);
+    }
+    public static float loadF(CopyOnWriteMemory mem, int addr) {
+        return Float.intBitsToFloat(loadI(mem, addr));
+    }
+    public static double loadD(CopyOnWriteMemory mem, int addr) {
+        return Double.longBitsToDouble(loadJ(mem, addr));
+    }
+
+    // Stores. These check the ownership bitmap, and copy the page first if it's shared.
+
+    public static void storeB(CopyOnWriteMemory mem, int addr, byte value) {
+        writablePage(mem, addr >>> PAGE_SHIFT)[addr & PAGE_MASK] = value;
+    }
+    public static void storeS(CopyOnWriteMemory mem, int addr, short value) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 2)
+            SHORT_HANDLE.set(writablePage(mem, addr >>> PAGE_SHIFT), offset, value);
+        else
+            storeStraddling(mem, addr, value, 2);
+    }
+    public static void storeI(CopyOnWriteMemory mem, int addr, int value) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4)
+            INT_HANDLE.set(writablePage(mem, addr >>> PAGE_SHIFT), offset, value);
+        else
+            storeStraddling(mem, addr, value, 4);
+    }
+    public static void storeJ(CopyOnWriteMemory mem, int addr, long value) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 8)
+            LONG_HANDLE.set(writablePage(mem, addr >>> PAGE_SHIFT), offset, value);
+        else
+            storeStraddling(mem, addr, value, 8);
+    }
+    public static void storeF(CopyOnWriteMemory mem, int addr, float value) {
+        storeI(mem, addr, Float.floatToRawIntBits(value));
+    }
+    public static void storeD(CopyOnWriteMemory mem, int addr, double value) {
+        storeJ(mem, addr, Double.doubleToRawLongBits(value));
+    }
+
+    // Return the page at the given index, first copying it if this memory doesn't own it.
+    // An out of range index throws ArrayIndexOutOfBoundsException, the same as a load would.
+    private static byte[] writablePage(CopyOnWriteMemory mem, int pageIndex) {
+        byte[] page = mem.pages[pageIndex];
+        long bit = 1L << pageIndex;
+        int word = pageIndex >>> 6;
+        if ((mem.owned[word] & bit) == 0) {
+            page = page.clone();
+            mem.pages[pageIndex] = page;
+            mem.owned[word] |= bit;
+        }
+        return page;
+    }
+
+    private static int bitmapLength(int pages) {
+        return (pages + 63) >>> 6;
+    }
+
+    // Slow paths, for accesses which cross a page boundary.
+    // Bounds are checked before anything is written, so a failed store doesn't leave a partial value behind.
+
+    private static long loadStraddling(CopyOnWriteMemory mem, int addr, int size) {
+        long result = 0;
+        for (int i = 0; i < size; i++)
+            result |= (loadB(mem, addr + i) & 0xFFL) << (8 * i);
+        return result;
+    }
+    private static void storeStraddling(CopyOnWriteMemory mem, int addr, long value, int size) {
+        if (((addr + size - 1) >>> PAGE_SHIFT) >= mem.pages.length)
+            throw new ArrayIndexOutOfBoundsException(addr + size - 1);
+        for (int i = 0; i < size; i++)
+            storeB(mem, addr + i, (byte) (value >>> (8 * i)));
+    }
+
+}
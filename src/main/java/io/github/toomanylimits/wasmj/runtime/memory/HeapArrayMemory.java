@@ -0,0 +1,87 @@
+package io.github.toomanylimits.wasmj.runtime.memory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Static helpers called by generated code for modules using the
+ * HEAP_ARRAY memory backend. The memory is a single byte[].
+ *
+ * These are all tiny, so the JIT inlines them into the generated code,
+ * and they run exactly as fast as accessing the array directly would.
+ */
+public class HeapArrayMemory {
+
+    // Wasm demands little endian
+    private static final VarHandle SHORT_HANDLE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_HANDLE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_HANDLE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle FLOAT_HANDLE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle DOUBLE_HANDLE = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // Size
+
+    public static int byteSize(byte[] mem) {
+        return mem.length;
+    }
+
+    public static int pageCount(byte[] mem) {
+        return mem.length >>> PagedMemory.PAGE_SHIFT;
+    }
+
+    // Copies everything into a new, larger array.
+    public static byte[] grow(int requested, byte[] oldMem) {
+        byte[] newMem = new byte[oldMem.length + requested * PagedMemory.PAGE_SIZE];
+        System.arraycopy(oldMem, 0, newMem, 0, oldMem.length);
+        return newMem;
+    }
+
+    // Copy len bytes from src into the memory. Used by memory.init.
+    public static void write(byte[] src, int srcPos, byte[] mem, int dest, int len) {
+        System.arraycopy(src, srcPos, mem, dest, len);
+    }
+
+    // Loads
+
+    public static byte loadB(byte[] mem, int addr) {
+        return mem[addr];
+    }
+    public static short loadS(byte[] mem, int addr) {
+        return (short) SHORT_HANDLE.get(mem, addr);
+    }
+    public static int loadI(byte[] mem, int addr) {
+        return (int) INT_HANDLE.get(mem, addr);
+    }
+    public static long loadJ(byte[] mem, int addr) {
+        return (long) LONG_HANDLE.get(mem, addr);
+    }
+    public static float loadF(byte[] mem, int addr) {
+        return (float) FLOAT_HANDLE.get(mem, addr);
+    }
+    public static double loadD(byte[] mem, int addr) {
+        return (double) DOUBLE_HANDLE.get(mem, addr);
+    }
+
+    // Stores
+
+    public static void storeB(byte[] mem, int addr, byte value) {
+        mem[addr] = value;
+    }
+    public static void storeS(byte[] mem, int addr, short value) {
+        SHORT_HANDLE.set(mem, addr, value);
+    }
+    public static void storeI(byte[] mem, int addr, int value) {
+        INT_HANDLE.set(mem, addr, value);
+    }
+    public static void storeJ(byte[] mem, int addr, long value) {
+        LONG_HANDLE.set(mem, addr, value);
+    }
+    public static void storeF(byte[] mem, int addr, float value) {
+        FLOAT_HANDLE.set(mem, addr, value);
+    }
+    public static void storeD(byte[] mem, int addr, double value) {
+        DOUBLE_HANDLE.set(mem, addr, value);
+    }
+
+}
@@ -0,0 +1,207 @@
+package io.github.toomanylimits.wasmj.runtime.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * The different ways a module's linear memory can be stored.
+ * Chosen per module, when calling WasmInstance.addWasmModule().
+ */
+public enum MemoryBackend {
+
+    /**
+     * A single byte[] holding the entire memory.
+     * Fastest to access, but large memories become one huge
+     * allocation, which needs a full copy every time it grows.
+     */
+    HEAP_ARRAY("[B", HeapArrayMemory.class),
+
+    /**
+     * A byte[][] of fixed-size pages, one per WASM page.
+     * Growing only allocates the new pages, and no single
+     * allocation is ever larger than a page.
+     */
+    PAGED("[[B", PagedMemory.class),
+
+    /**
+     * A direct ByteBuffer, living outside the GC-managed heap.
+     * Accesses are a little slower than HEAP_ARRAY, but large or
+     * numerous memories don't inflate the heap or GC pauses.
+     * The native memory is freed once the GC collects the buffer.
+     */
+    OFF_HEAP("Ljava/nio/ByteBuffer;", OffHeapMemory.class),
+
+    /**
+     * Pages like PAGED, but shared copy-on-write between memories.
+     * Instances created from the same snapshot or image share its
+     * pages, and only take a private copy of a page the first time
+     * they write to it. Stores are a little slower than PAGED, since
+     * they check whether the page is owned first.
+     */
+    COPY_ON_WRITE("Lio/github/toomanylimits/wasmj/runtime/memory/CopyOnWriteMemory;", CopyOnWriteMemory.class);
+
+    /**
+     * The jvm descriptor of the field holding the memory.
+     */
+    public final String descriptor;
+    /**
+     * The class holding the static helpers that generated code
+     * calls to access this kind of memory.
+     */
+    public final Class<?> helperClass;
+
+    MemoryBackend(String descriptor, Class<?> helperClass) {
+        this.descriptor = descriptor;
+        this.helperClass = helperClass;
+    }
+
+    /**
+     * Whether a memory which never grows can be kept in a static final field,
+     * where it stays after the instance is closed. Not for OFF_HEAP, since
+     * closing frees the native memory, and any later access must not reach it.
+     */
+    public boolean canBeFixed() {
+        return this != OFF_HEAP;
+    }
+
+    /**
+     * The size in bytes of a memory created by this backend.
+     */
+    public int byteSize(Object memory) {
+        return switch (this) {
+            case HEAP_ARRAY -> ((byte[]) memory).length;
+            case PAGED -> PagedMemory.byteSize((byte[][]) memory);
+            case OFF_HEAP -> OffHeapMemory.byteSize((ByteBuffer) memory);
+            case COPY_ON_WRITE -> CopyOnWriteMemory.byteSize((CopyOnWriteMemory) memory);
+        };
+    }
+
+    /**
+     * Make an independent copy of a memory created by this backend.
+     * For COPY_ON_WRITE, the copy shares its pages with the original
+     * until either of them writes to a page.
+     */
+    public Object copy(Object memory) {
+        return switch (this) {
+            case HEAP_ARRAY -> ((byte[]) memory).clone();
+            case PAGED -> PagedMemory.copy((byte[][]) memory);
+            case OFF_HEAP -> OffHeapMemory.copy((ByteBuffer) memory);
+            case COPY_ON_WRITE -> CopyOnWriteMemory.copy((CopyOnWriteMemory) memory);
+        };
+    }
+
+    /**
+     * Make the contents of memory equal to image, which must be the same size.
+     * Only pages which differ from the image are written to. For
+     * COPY_ON_WRITE, nothing is written: the pages are shared with the image again.
+     * Returns the number of pages which were written.
+     */
+    public int restorePages(Object memory, Object image) {
+        return switch (this) {
+            case HEAP_ARRAY -> restoreArrayPages((byte[]) memory, (byte[]) image);
+            case PAGED -> PagedMemory.restorePages((byte[][]) memory, (byte[][]) image);
+            case OFF_HEAP -> OffHeapMemory.restorePages((ByteBuffer) memory, (ByteBuffer) image);
+            case COPY_ON_WRITE -> CopyOnWriteMemory.restorePages((CopyOnWriteMemory) memory, (CopyOnWriteMemory) image);
+        };
+    }
+
+    /**
+     * Make the contents of memory equal to image, which must be the same size,
+     * by copying all of it without comparing first. Used for memories which
+     * were just created, where every page of the image that isn't zero differs.
+     * For COPY_ON_WRITE, the pages are shared with the image instead.
+     * Returns the number of pages, which were all written.
+     */
+    public int copyInto(Object memory, Object image) {
+        if (byteSize(memory) != byteSize(image))
+            throw new IllegalArgumentException("Memory and image have different sizes");
+        switch (this) {
+            case HEAP_ARRAY -> System.arraycopy((byte[]) image, 0, (byte[]) memory, 0, ((byte[]) image).length);
+            case PAGED -> {
+                byte[][] pages = (byte[][]) memory;
+                for (int i = 0; i < pages.length; i++)
+                    System.arraycopy(((byte[][]) image)[i], 0, pages[i], 0, PagedMemory.PAGE_SIZE);
+            }
+            case OFF_HEAP -> ((ByteBuffer) memory).put(0, (ByteBuffer) image, 0, ((ByteBuffer) image).capacity());
+            case COPY_ON_WRITE -> CopyOnWriteMemory.restorePages((CopyOnWriteMemory) memory, (CopyOnWriteMemory) image);
+        }
+        return byteSize(image) / PagedMemory.PAGE_SIZE;
+    }
+
+    /**
+     * Write the raw contents of a memory created by this backend.
+     */
+    public void write(Object memory, WritableByteChannel out) throws IOException {
+        switch (this) {
+            case HEAP_ARRAY -> writeFully(ByteBuffer.wrap((byte[]) memory), out);
+            case PAGED -> {
+                for (byte[] page : (byte[][]) memory)
+                    writeFully(ByteBuffer.wrap(page), out);
+            }
+            case OFF_HEAP -> writeFully(((ByteBuffer) memory).duplicate().clear(), out);
+            case COPY_ON_WRITE -> {
+                for (byte[] page : CopyOnWriteMemory.pages((CopyOnWriteMemory) memory))
+                    writeFully(ByteBuffer.wrap(page), out);
+            }
+        }
+    }
+
+    /**
+     * Create a memory for this backend holding the remaining bytes of contents,
+     * which must be a whole number of pages.
+     */
+    public Object load(ByteBuffer contents) {
+        if (contents.remaining() % PagedMemory.PAGE_SIZE != 0)
+            throw new IllegalArgumentException("Memory contents must be a whole number of pages");
+        return switch (this) {
+            case HEAP_ARRAY -> {
+                byte[] memory = new byte[contents.remaining()];
+                contents.get(contents.position(), memory);
+                yield memory;
+            }
+            case PAGED -> loadPages(contents);
+            case COPY_ON_WRITE -> CopyOnWriteMemory.of(loadPages(contents));
+            case OFF_HEAP -> {
+                ByteBuffer memory = OffHeapMemory.create(contents.remaining() / PagedMemory.PAGE_SIZE);
+                memory.put(0, contents, contents.position(), contents.remaining());
+                yield memory;
+            }
+        };
+    }
+
+    private static void writeFully(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    private static byte[][] loadPages(ByteBuffer contents) {
+        byte[][] memory = PagedMemory.create(contents.remaining() / PagedMemory.PAGE_SIZE);
+        for (int i = 0; i < memory.length; i++)
+            contents.get(contents.position() + i * PagedMemory.PAGE_SIZE, memory[i]);
+        return memory;
+    }
+
+    private static int restoreArrayPages(byte[] memory, byte[] image) {
+        if (memory.length != image.length)
+            throw new IllegalArgumentException("Memory and image have different sizes");
+        int restored = 0;
+        for (int start = 0; start < memory.length; start += PagedMemory.PAGE_SIZE) {
+            int end = start + PagedMemory.PAGE_SIZE;
+            if (Arrays.mismatch(memory, start, end, image, start, end) != -1) {
+                System.arraycopy(image, start, memory, start, PagedMemory.PAGE_SIZE);
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * The internal name of the helper class, for use in bytecode.
+     */
+    public String helperClassName() {
+        return helperClass.getName().replace('.', '/');
+    }
+
+}
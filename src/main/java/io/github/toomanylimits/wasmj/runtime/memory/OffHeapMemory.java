@@ -0,0 +1,116 @@
+package io.github.toomanylimits.wasmj.runtime.memory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Static helpers called by generated code for modules using the
+ * OFF_HEAP memory backend. The memory is a direct ByteBuffer, so its
+ * contents live outside the GC-managed heap and don't add to GC work.
+ *
+ * The native memory is freed by the buffer's cleaner once the GC finds
+ * it unreachable, never eagerly. Host code may still hold a slice of
+ * the buffer after the memory grows or the instance is closed, and
+ * freeing it early would turn a use of that slice into a JVM crash
+ * instead of a stale read.
+ */
+public class OffHeapMemory {
+
+    // Wasm demands little endian
+    private static final VarHandle SHORT_HANDLE = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_HANDLE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_HANDLE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle FLOAT_HANDLE = MethodHandles.byteBufferViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle DOUBLE_HANDLE = MethodHandles.byteBufferViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // Creation and size
+
+    public static ByteBuffer create(int pages) {
+        return ByteBuffer.allocateDirect(pages * PagedMemory.PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static int byteSize(ByteBuffer mem) {
+        return mem.capacity();
+    }
+
+    public static int pageCount(ByteBuffer mem) {
+        return mem.capacity() >>> PagedMemory.PAGE_SHIFT;
+    }
+
+    // Copies into a new, larger buffer. The old one is left for the GC.
+    public static ByteBuffer grow(int requested, ByteBuffer oldMem) {
+        ByteBuffer newMem = ByteBuffer.allocateDirect(oldMem.capacity() + requested * PagedMemory.PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        newMem.put(0, oldMem, 0, oldMem.capacity());
+        return newMem;
+    }
+
+    public static ByteBuffer copy(ByteBuffer mem) {
+        ByteBuffer result = ByteBuffer.allocateDirect(mem.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+        result.put(0, mem, 0, mem.capacity());
+        return result;
+    }
+
+    // Overwrite the pages which differ from the image, returning how many there were.
+    public static int restorePages(ByteBuffer mem, ByteBuffer image) {
+        if (mem.capacity() != image.capacity())
+            throw new IllegalArgumentException("Memory and image have different sizes");
+        int restored = 0;
+        for (int start = 0; start < mem.capacity(); start += PagedMemory.PAGE_SIZE) {
+            if (mem.slice(start, PagedMemory.PAGE_SIZE).mismatch(image.slice(start, PagedMemory.PAGE_SIZE)) != -1) {
+                mem.put(start, image, start, PagedMemory.PAGE_SIZE);
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    // Copy len bytes from src into the memory. Used by memory.init.
+    public static void write(byte[] src, int srcPos, ByteBuffer mem, int dest, int len) {
+        mem.put(dest, src, srcPos, len);
+    }
+
+    // Loads
+
+    public static byte loadB(ByteBuffer mem, int addr) {
+        return mem.get(addr);
+    }
+    public static short loadS(ByteBuffer mem, int addr) {
+        return (short) SHORT_HANDLE.get(mem, addr);
+    }
+    public static int loadI(ByteBuffer mem, int addr) {
+        return (int) INT_HANDLE.get(mem, addr);
+    }
+    public static long loadJ(ByteBuffer mem, int addr) {
+        return (long) LONG_HANDLE.get(mem, addr);
+    }
+    public static float loadF(ByteBuffer mem, int addr) {
+        return (float) FLOAT_HANDLE.get(mem, addr);
+    }
+    public static double loadD(ByteBuffer mem, int addr) {
+        return (double) DOUBLE_HANDLE.get(mem, addr);
+    }
+
+    // Stores
+
+    public static void storeB(ByteBuffer mem, int addr, byte value) {
+        mem.put(addr, value);
+    }
+    public static void storeS(ByteBuffer mem, int addr, short value) {
+        SHORT_HANDLE.set(mem, addr, value);
+    }
+    public static void storeI(ByteBuffer mem, int addr, int value) {
+        INT_HANDLE.set(mem, addr, value);
+    }
+    public static void storeJ(ByteBuffer mem, int addr, long value) {
+        LONG_HANDLE.set(mem, addr, value);
+    }
+    public static void storeF(ByteBuffer mem, int addr, float value) {
+        FLOAT_HANDLE.set(mem, addr, value);
+    }
+    public static void storeD(ByteBuffer mem, int addr, double value) {
+        DOUBLE_HANDLE.set(mem, addr, value);
+    }
+
+}
@@ -0,0 +1,170 @@
+package io.github.toomanylimits.wasmj.runtime.memory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Static helpers called by generated code for modules using the
+ * PAGED memory backend. The memory is a byte[][], where each inner
+ * array is one WASM page of 64 KiB.
+ *
+ * Accesses which fit inside a single page go straight to that page.
+ * Accesses which straddle two pages fall back to a byte-by-byte path.
+ * Out of bounds accesses throw ArrayIndexOutOfBoundsException, the same
+ * as they do for the HEAP_ARRAY backend.
+ */
+public class PagedMemory {
+
+    public static final int PAGE_SHIFT = 16;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    public static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Wasm demands little endian
+    private static final VarHandle SHORT_HANDLE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_HANDLE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_HANDLE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // Creation and size
+
+    public static byte[][] create(int pages) {
+        byte[][] mem = new byte[pages][];
+        for (int i = 0; i < pages; i++)
+            mem[i] = new byte[PAGE_SIZE];
+        return mem;
+    }
+
+    public static int byteSize(byte[][] mem) {
+        return mem.length << PAGE_SHIFT;
+    }
+
+    public static int pageCount(byte[][] mem) {
+        return mem.length;
+    }
+
+    // Only the new pages are allocated, the old ones are shared with the new page table.
+    public static byte[][] grow(int requested, byte[][] oldMem) {
+        byte[][] newMem = new byte[oldMem.length + requested][];
+        System.arraycopy(oldMem, 0, newMem, 0, oldMem.length);
+        for (int i = oldMem.length; i < newMem.length; i++)
+            newMem[i] = new byte[PAGE_SIZE];
+        return newMem;
+    }
+
+    public static byte[][] copy(byte[][] mem) {
+        byte[][] result = new byte[mem.length][];
+        for (int i = 0; i < mem.length; i++)
+            result[i] = mem[i].clone();
+        return result;
+    }
+
+    // Overwrite the pages which differ from the image, returning how many there were.
+    public static int restorePages(byte[][] mem, byte[][] image) {
+        if (mem.length != image.length)
+            throw new IllegalArgumentException("Memory and image have different sizes");
+        int restored = 0;
+        for (int i = 0; i < mem.length; i++) {
+            if (!Arrays.equals(mem[i], image[i])) {
+                System.arraycopy(image[i], 0, mem[i], 0, PAGE_SIZE);
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    // Copy len bytes from src into the memory. Used by memory.init.
+    public static void write(byte[] src, int srcPos, byte[][] mem, int dest, int len) {
+        if (srcPos < 0 || len < 0 || srcPos + len > src.length || srcPos + len < 0)
+            throw new ArrayIndexOutOfBoundsException("memory.init source out of bounds");
+        while (len > 0) {
+            byte[] page = mem[dest >>> PAGE_SHIFT];
+            int pageOffset = dest & PAGE_MASK;
+            int chunk = Math.min(len, PAGE_SIZE - pageOffset);
+            System.arraycopy(src, srcPos, page, pageOffset, chunk);
+            srcPos += chunk;
+            dest += chunk;
+            len -= chunk;
+        }
+    }
+
+    // Loads
+
+    public static byte loadB(byte[][] mem, int addr) {
+        return mem[addr >>> PAGE_SHIFT][addr & PAGE_MASK];
+    }
+    public static short loadS(byte[][] mem, int addr) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 2)
+            return (short) SHORT_HANDLE.get(mem[addr >>> PAGE_SHIFT], offset);
+        return (short) loadStraddling(mem, addr, 2);
+    }
+    public static int loadI(byte[][] mem, int addr) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4)
+            return (int) INT_HANDLE.get(mem[addr >>> PAGE_SHIFT], offset);
+        return (int) loadStraddling(mem, addr, 4);
+    }
+    public static long loadJ(byte[][] mem, int addr) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 8)
+            return (long) LONG_HANDLE.get(mem[addr >>> PAGE_SHIFT], offset);
+        return loadStraddling(mem, addr, 8);
+    }
+    public static float loadF(byte[][] mem, int addr) {
+        return Float.intBitsToFloat(loadI(mem, addr));
+    }
+    public static double loadD(byte[][] mem, int addr) {
+        return Double.longBitsToDouble(loadJ(mem, addr));
+    }
+
+    // Stores
+
+    public static void storeB(byte[][] mem, int addr, byte value) {
+        mem[addr >>> PAGE_SHIFT][addr & PAGE_MASK] = value;
+    }
+    public static void storeS(byte[][] mem, int addr, short value) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 2)
+            SHORT_HANDLE.set(mem[addr >>> PAGE_SHIFT], offset, value);
+        else
+            storeStraddling(mem, addr, value, 2);
+    }
+    public static void storeI(byte[][] mem, int addr, int value) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4)
+            INT_HANDLE.set(mem[addr >>> PAGE_SHIFT], offset, value);
+        else
+            storeStraddling(mem, addr, value, 4);
+    }
+    public static void storeJ(byte[][] mem, int addr, long value) {
+        int offset = addr & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 8)
+            LONG_HANDLE.set(mem[addr >>> PAGE_SHIFT], offset, value);
+        else
+            storeStraddling(mem, addr, value, 8);
+    }
+    public static void storeF(byte[][] mem, int addr, float value) {
+        storeI(mem, addr, Float.floatToRawIntBits(value));
+    }
+    public static void storeD(byte[][] mem, int addr, double value) {
+        storeJ(mem, addr, Double.doubleToRawLongBits(value));
+    }
+
+    // Slow paths, for accesses which cross a page boundary.
+    // Bounds are checked before anything is written, so a failed store doesn't leave a partial value behind.
+
+    private static long loadStraddling(byte[][] mem, int addr, int size) {
+        long result = 0;
+        for (int i = 0; i < size; i++)
+            result |= (loadB(mem, addr + i) & 0xFFL) << (8 * i);
+        return result;
+    }
+    private static void storeStraddling(byte[][] mem, int addr, long value, int size) {
+        if (((addr + size - 1) >>> PAGE_SHIFT) >= mem.length)
+            throw new ArrayIndexOutOfBoundsException(addr + size - 1);
+        for (int i = 0; i < size; i++)
+            storeB(mem, addr + i, (byte) (value >>> (8 * i)));
+    }
+
+}
@@ -0,0 +1,67 @@
+package io.github.toomanylimits.wasmj.runtime.reflect;
+
+import io.github.toomanylimits.wasmj.runtime.errors.JvmCodeError;
+import io.github.toomanylimits.wasmj.runtime.errors.WasmException;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Helpers called by the glue of asynchronous host functions, the ones
+ * which return a CompletableFuture.
+ */
+public final class HostFutures {
+
+    private HostFutures() {}
+
+    // How long to wait at a time before checking the limiter for an interrupt
+    private static final long INTERRUPT_CHECK_MILLIS = 10;
+
+    /**
+     * Wait for the future to complete, and return its value. The wasm code
+     * is suspended in the meantime, parking the calling thread; on a virtual
+     * thread, that frees up its carrier thread. If the future fails, its
+     * exception is thrown out of the call, just as if a synchronous host
+     * function had thrown it.
+     *
+     * The limiter is the calling module's. If it's interruptible, the wait
+     * is checked for interrupts every few milliseconds, so a future which
+     * never completes can't outlive an EpochTicker deadline or interrupt().
+     * The future is left alone when that happens, since the host owns it.
+     */
+    public static Object await(CompletableFuture<?> future, InstanceLimiter limiter) throws WasmException {
+        if (future == null)
+            throw new JvmCodeError(new NullPointerException("Asynchronous host function returned a null future"));
+        try {
+            if (!limiter.interruptible)
+                return future.get();
+            while (true) {
+                limiter.checkInterrupt();
+                try {
+                    return future.get(INTERRUPT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ignored) {
+                    // Check again, and keep waiting
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof WasmException wasmException)
+                throw wasmException;
+            if (cause instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            if (cause instanceof Error error)
+                throw error;
+            throw new JvmCodeError(cause);
+        } catch (CancellationException e) {
+            throw new JvmCodeError(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JvmCodeError(e);
+        }
+    }
+
+}
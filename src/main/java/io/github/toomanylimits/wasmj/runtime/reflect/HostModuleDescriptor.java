@@ -0,0 +1,90 @@
+package io.github.toomanylimits.wasmj.runtime.reflect;
+
+import io.github.toomanylimits.wasmj.runtime.reflect.annotations.WasmJAllow;
+import io.github.toomanylimits.wasmj.runtime.reflect.annotations.WasmJRename;
+import io.github.toomanylimits.wasmj.runtime.types.WasmCallback;
+import io.github.toomanylimits.wasmj.util.ListUtils;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The reflected methods of a java module class, which don't depend
+ * on the instance they're added to. Reflecting over a class is slow,
+ * so this is done once per class and cached, and each JavaModuleData
+ * for the class shares it.
+ * Immutable, so it can be shared between threads.
+ */
+public final class HostModuleDescriptor {
+
+    private static final ClassValue<HostModuleDescriptor> GLOBAL_INSTANCE_MODE = new ClassValue<>() {
+        @Override
+        protected HostModuleDescriptor computeValue(Class<?> type) {
+            return new HostModuleDescriptor(type, true);
+        }
+    };
+    private static final ClassValue<HostModuleDescriptor> TYPE_MODE = new ClassValue<>() {
+        @Override
+        protected HostModuleDescriptor computeValue(Class<?> type) {
+            return new HostModuleDescriptor(type, false);
+        }
+    };
+
+    /**
+     * The descriptor used by addStaticJavaModule() and addGlobalInstanceJavaModule().
+     */
+    public static HostModuleDescriptor forGlobalInstance(Class<?> moduleClass) {
+        return GLOBAL_INSTANCE_MODE.get(moduleClass);
+    }
+
+    /**
+     * The descriptor used by addTypeModule(), where the receiver is passed as the first parameter.
+     */
+    public static HostModuleDescriptor forType(Class<?> typeToReflect) {
+        return TYPE_MODE.get(typeToReflect);
+    }
+
+    /**
+     * The class which was reflected.
+     */
+    public final Class<?> moduleClass;
+    /**
+     * Whether virtual methods are called on a global instance,
+     * rather than on a receiver passed by wasm.
+     */
+    public final boolean globalInstanceMode;
+    /**
+     * The set of methods which are allowed to be called,
+     * marked as such via annotations. Unmodifiable.
+     * Keys are the (renamed / mapped) method names.
+     */
+    public final Map<String, JavaModuleData.MethodData> allowedMethods;
+    /**
+     * The name of one of the allowed non-static methods, or null if there are none.
+     * In global instance mode, these need an instance to be called on.
+     */
+    public final String instanceMethod;
+
+    private HostModuleDescriptor(Class<?> moduleClass, boolean globalInstanceMode) {
+        this.moduleClass = moduleClass;
+        this.globalInstanceMode = globalInstanceMode;
+        this.allowedMethods = Collections.unmodifiableMap(ListUtils.associateBy(ListUtils.map(ListUtils.filter(Arrays.asList(moduleClass.getMethods()),
+                method -> method.isAnnotationPresent(WasmJAllow.class)),
+                method -> {
+                    if (globalInstanceMode && (method.getReturnType() == WasmCallback.class || JavaModuleData.MethodData.awaitedType(method) == WasmCallback.class))
+                        throw new IllegalArgumentException("Method \"" + method.getName() + "\" tries to return a WasmCallback! This is not allowed; they may only be held by Java!");
+                    WasmJRename rename = method.getAnnotation(WasmJRename.class);
+                    String wasmName = rename != null ? rename.value() : method.getName();
+                    return new JavaModuleData.MethodData(method, wasmName, globalInstanceMode);
+                }),
+                JavaModuleData.MethodData::wasmName));
+        String instanceMethod = null;
+        for (JavaModuleData.MethodData methodData : allowedMethods.values())
+            if (!methodData.isStatic())
+                instanceMethod = methodData.javaName();
+        this.instanceMethod = instanceMethod;
+    }
+
+}
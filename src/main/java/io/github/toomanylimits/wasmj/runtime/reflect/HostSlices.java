@@ -0,0 +1,59 @@
+package io.github.toomanylimits.wasmj.runtime.reflect;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers called by the glue of host functions. For @WasmSlice and
+ * @WasmString parameters they turn a (pointer, length) pair into the
+ * java value. Out of bounds ranges throw ArrayIndexOutOfBoundsException,
+ * the same as a load would. For @WasmAllocated String results they
+ * encode the value as the bytes to copy into the guest's memory.
+ */
+public final class HostSlices {
+
+    private HostSlices() {}
+
+    public static ByteBuffer slice(byte[] memory, int ptr, int len) {
+        checkBounds(memory.length, ptr, len);
+        return ByteBuffer.wrap(memory, ptr, len).slice();
+    }
+
+    public static ByteBuffer slice(ByteBuffer memory, int ptr, int len) {
+        checkBounds(memory.capacity(), ptr, len);
+        return memory.slice(ptr, len);
+    }
+
+    public static String string(byte[] memory, int ptr, int len) {
+        checkBounds(memory.length, ptr, len);
+        return decode(memory, ptr, len);
+    }
+
+    public static String string(ByteBuffer memory, int ptr, int len) {
+        checkBounds(memory.capacity(), ptr, len);
+        byte[] bytes = new byte[len];
+        memory.get(ptr, bytes);
+        return decode(bytes, 0, len);
+    }
+
+    // Encode a @WasmAllocated String result
+    public static byte[] encode(String string) {
+        return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Decode UTF-8. Strings from guests are usually ASCII, which is also Latin-1,
+    // and decoding as Latin-1 builds the compact string without any checks.
+    private static String decode(byte[] bytes, int offset, int len) {
+        for (int i = offset; i < offset + len; i++)
+            if (bytes[i] < 0)
+                return new String(bytes, offset, len, StandardCharsets.UTF_8);
+        return new String(bytes, offset, len, StandardCharsets.ISO_8859_1);
+    }
+
+    // The pointer and length are unsigned in wasm, but a memory never holds 2 GiB, so anything negative is out of bounds
+    private static void checkBounds(int memorySize, int ptr, int len) {
+        if (ptr < 0 || len < 0 || ptr > memorySize - len)
+            throw new ArrayIndexOutOfBoundsException("Range of " + Integer.toUnsignedString(len) + " bytes at " + Integer.toUnsignedString(ptr) + " is out of bounds for memory of size " + memorySize);
+    }
+
+}
@@ -3,14 +3,17 @@ package io.github.toomanylimits.wasmj.runtime.reflect;
 import io.github.toomanylimits.wasmj.compiling.compiler.CompilingSimpleInstructionVisitor;
 import io.github.toomanylimits.wasmj.compiling.helpers.Names;
 import io.github.toomanylimits.wasmj.compiling.helpers.BytecodeHelper;
+import io.github.toomanylimits.wasmj.compiling.helpers.CallingHelpers;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.SimpleModule;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.ClassGenCallback;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.misc.RefFunc;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.DecRefCount;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.sandbox.IncRefCount;
 import io.github.toomanylimits.wasmj.compiling.simple_structure.intrinsics.table.TableGet;
+import io.github.toomanylimits.wasmj.compiling.simple_structure.members.SimpleFunction;
 import io.github.toomanylimits.wasmj.parsing.types.ValType;
 import io.github.toomanylimits.wasmj.runtime.reflect.annotations.*;
+import io.github.toomanylimits.wasmj.runtime.memory.MemoryBackend;
 import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
 import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
 import io.github.toomanylimits.wasmj.runtime.types.FuncRefInstance;
@@ -18,9 +21,14 @@ import io.github.toomanylimits.wasmj.runtime.types.WasmCallback;
 import io.github.toomanylimits.wasmj.util.ListUtils;
 import org.objectweb.asm.*;
 
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Information about a JavaModule that was reflected.
@@ -44,6 +52,7 @@ public class JavaModuleData<T> {
      * The set of methods which are allowed to be called,
      * marked as such via annotations.
      * Keys are the (renamed / mapped) method names.
+     * Shared with every other JavaModuleData for the same class.
      */
     public final Map<String, MethodData> allowedMethods;
 
@@ -57,19 +66,10 @@ public class JavaModuleData<T> {
         this.moduleClass = moduleClass;
         this.globalInstance = globalInstance;
         // Get the map of allowed methods
-        allowedMethods = ListUtils.associateBy(ListUtils.map(ListUtils.filter(Arrays.asList(moduleClass.getMethods()),
-                method -> method.isAnnotationPresent(WasmJAllow.class)),
-                method -> {
-                    // Get value
-                    if (method.getReturnType() == WasmCallback.class)
-                        throw new IllegalArgumentException("Method \"" + method.getName() + "\" tries to return a WasmCallback! This is not allowed; they may only be held by Java!");
-                    if (!Modifier.isStatic(method.getModifiers()) && globalInstance == null)
-                        throw new IllegalArgumentException("Method \"" + method.getName() + "\" is non-static, and allowed, but the given instance is null!");
-                    WasmJRename rename = method.getAnnotation(WasmJRename.class);
-                    String wasmName = rename != null ? rename.value() : method.getName();
-                    return new MethodData(method, wasmName, true);
-                }),
-                MethodData::wasmName);
+        HostModuleDescriptor descriptor = HostModuleDescriptor.forGlobalInstance(moduleClass);
+        if (descriptor.instanceMethod != null && globalInstance == null)
+            throw new IllegalArgumentException("Method \"" + descriptor.instanceMethod + "\" is non-static, and allowed, but the given instance is null!");
+        allowedMethods = descriptor.allowedMethods;
     }
 
     /**
@@ -80,15 +80,7 @@ public class JavaModuleData<T> {
         this.moduleClass = typeToReflect;
         this.globalInstance = null;
         // Get the map of allowed methods
-        allowedMethods = ListUtils.associateBy(ListUtils.map(ListUtils.filter(Arrays.asList(moduleClass.getMethods()),
-                method -> method.isAnnotationPresent(WasmJAllow.class)),
-                method -> {
-                    // Get value
-                    WasmJRename rename = method.getAnnotation(WasmJRename.class);
-                    String wasmName = rename != null ? rename.value() : method.getName();
-                    return new MethodData(method, wasmName, false);
-                }),
-                MethodData::wasmName);
+        allowedMethods = HostModuleDescriptor.forType(typeToReflect).allowedMethods;
     }
 
     public String className() {
@@ -96,6 +88,20 @@ public class JavaModuleData<T> {
     }
 
     public record MethodData(Method method, String wasmName, boolean globalInstanceMode) {
+        public MethodData {
+            for (Parameter param : method.getParameters()) {
+                if (param.isAnnotationPresent(WasmSlice.class) && param.getType() != ByteBuffer.class)
+                    throw new IllegalArgumentException("Method \"" + method.getName() + "\" has a @WasmSlice parameter of type " + param.getType().getSimpleName() + ", but it must be a ByteBuffer!");
+                if (param.isAnnotationPresent(WasmString.class) && param.getType() != String.class)
+                    throw new IllegalArgumentException("Method \"" + method.getName() + "\" has a @WasmString parameter of type " + param.getType().getSimpleName() + ", but it must be a String!");
+            }
+            if (method.isAnnotationPresent(WasmAllocated.class)) {
+                Class<?> result = method.getReturnType() == CompletableFuture.class ? awaitedType(method) : method.getReturnType();
+                if (result != byte[].class && result != String.class)
+                    throw new IllegalArgumentException("Method \"" + method.getName() + "\" is @WasmAllocated, but returns " + result.getSimpleName() + " instead of byte[] or String!");
+            }
+        }
+
         public boolean isStatic() {
             return Modifier.isStatic(method.getModifiers());
         }
@@ -115,18 +121,60 @@ public class JavaModuleData<T> {
         public boolean hasLimiterAccess() {
             return method.isAnnotationPresent(LimiterAccess.class);
         }
+        public boolean hasAllocatedResult() {
+            return method.isAnnotationPresent(WasmAllocated.class);
+        }
+
+        // An async method returns a CompletableFuture. Its glue waits for the
+        // future, and gives wasm the value as if the method had returned it directly.
+        public boolean isAsync() {
+            return method.getReturnType() == CompletableFuture.class;
+        }
+
+        // The type of value that wasm receives from the method.
+        public Class<?> wasmReturnType() {
+            return isAsync() ? awaitedType(method) : method.getReturnType();
+        }
+
+        // For a method returning CompletableFuture<T>, the type T, with boxes converted
+        // to their primitive. Null if the method isn't async.
+        static Class<?> awaitedType(Method method) {
+            if (method.getReturnType() != CompletableFuture.class) return null;
+            Class<?> awaited = Object.class; // Raw types and wildcards give an externref
+            if (method.getGenericReturnType() instanceof ParameterizedType parameterized) {
+                java.lang.reflect.Type arg = parameterized.getActualTypeArguments()[0];
+                if (arg instanceof Class<?> clazz) awaited = clazz;
+                else if (arg instanceof ParameterizedType p && p.getRawType() instanceof Class<?> clazz) awaited = clazz;
+            }
+            if (awaited == Integer.class) return int.class;
+            if (awaited == Long.class) return long.class;
+            if (awaited == Float.class) return float.class;
+            if (awaited == Double.class) return double.class;
+            if (awaited == Boolean.class) return boolean.class;
+            if (awaited == Void.class) return void.class;
+            return awaited;
+        }
 
         // A function needs glue if it has any reference-type parameters.
         // TODO: Take return type into consideration...?
         public boolean needsGlue() {
             if (!isStatic() && globalInstanceMode) return true;
+            if (isAsync()) return true;
+            if (hasAllocatedResult()) return true;
             if (ListUtils.any(Arrays.asList(method.getParameterTypes()), MethodData::isGluedType)) return true;
+            if (ListUtils.any(getGlueAdapters(), Objects::nonNull)) return true;
             if (!globalInstanceMode && !isStatic() && isGluedType(method.getDeclaringClass())) return true;
             return false;
         }
 
         public String glueDescriptor() {
-            return "(" + ListUtils.fold(ListUtils.map(getGlueParams(), MethodData::gluedTypeDescriptor), "", String::concat) + ")" + Type.getDescriptor(method.getReturnType());
+            StringBuilder params = new StringBuilder();
+            List<Class<?>> glueParams = getGlueParams();
+            List<Class<? extends Annotation>> adapters = getGlueAdapters();
+            for (int i = 0; i < glueParams.size(); i++)
+                params.append(adapters.get(i) != null ? "II" : gluedTypeDescriptor(glueParams.get(i))); // Adapted params are a (pointer, length) pair
+            // An allocated result is a (pointer, length) pair, returned as multiple values
+            return "(" + params + ")" + Type.getDescriptor(hasAllocatedResult() ? Object[].class : wasmReturnType());
         }
 
         public void writeGlue(SimpleModule declaringModule, ClassVisitor writer, String functionName, String javaModuleName, Set<ClassGenCallback> classGenCallbacks) {
@@ -142,9 +190,12 @@ public class JavaModuleData<T> {
             }
 
             // Count the total number of local slots
+            List<Class<? extends Annotation>> adapters = getGlueAdapters();
             int numLocals = 0;
-            for (Class<?> glueParam : getGlueParams()) {
-                if (glueParam == boolean.class) numLocals += 1;
+            for (int i = 0; i < adapters.size(); i++) {
+                Class<?> glueParam = getGlueParams().get(i);
+                if (adapters.get(i) != null) numLocals += 2;
+                else if (glueParam == boolean.class) numLocals += 1;
                 else if (glueParam == WasmCallback.class) numLocals += 3;
                 else numLocals += BytecodeHelper.wasmType(glueParam).stackSlots;
             }
@@ -152,8 +203,23 @@ public class JavaModuleData<T> {
             int paramIndex = 0;
             int localIndex = 0;
             for (Class<?> glueParam : getGlueParams()) {
+                Class<? extends Annotation> adapter = adapters.get(paramIndex);
                 // Load the param
-                if (glueParam == boolean.class) {
+                if (adapter != null) {
+                    // A (pointer, length) pair, which becomes a view of the memory or a string
+                    MemoryBackend backend = declaringModule.memory.backend();
+                    if (backend != MemoryBackend.HEAP_ARRAY && backend != MemoryBackend.OFF_HEAP)
+                        throw new UnsupportedOperationException("Module \"" + declaringModule.moduleName + "\" imports java function \"" + method.getName() + "\" with a @" + adapter.getSimpleName() + " parameter, which requires the HEAP_ARRAY or OFF_HEAP memory backend, but the module uses " + backend);
+                    declaringModule.memory.getMemory(declaringModule, visitor); // [memory]
+                    visitor.visitVarInsn(Opcodes.ILOAD, localIndex); // [memory, ptr]
+                    visitor.visitVarInsn(Opcodes.ILOAD, localIndex + 1); // [memory, ptr, len]
+                    String helperName = adapter == WasmSlice.class ? "slice" : "string";
+                    String helperDesc = "(" + backend.descriptor + "II)" + Type.getDescriptor(glueParam);
+                    visitor.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(HostSlices.class), helperName, helperDesc, false); // [value]
+                    localIndex += 2;
+                    paramIndex++;
+                    continue;
+                } else if (glueParam == boolean.class) {
                     // If boolean, ensure it's 0 or 1 before passing to the java function
                     visitor.visitVarInsn(Opcodes.ILOAD, localIndex);
                     BytecodeHelper.test(visitor, Opcodes.IFNE); // Convert to 1 or 0
@@ -222,7 +288,7 @@ public class JavaModuleData<T> {
 
                     // Do refcounting on the type if necessary, since we're calling out of WASM and into java!
                     // Here, the type *is* an instance, and it *is not* null.
-                    if (declaringModule.instance.limiter.countsMemory) {
+                    if (declaringModule.instance.limiter.countsStackRefs) {
                         CompilingSimpleInstructionVisitor compilingVisitor = new CompilingSimpleInstructionVisitor(declaringModule, visitor, numLocals, classGenCallbacks);
                         visitor.visitInsn(Opcodes.DUP);
                         compilingVisitor.visitIntrinsic(DecRefCount.INSTANCE);
@@ -240,15 +306,35 @@ public class JavaModuleData<T> {
             int opcode = isStatic() ? Opcodes.INVOKESTATIC : Opcodes.INVOKEVIRTUAL;
             visitor.visitMethodInsn(opcode, Type.getInternalName(method.getDeclaringClass()), javaName(), descriptor(), false);
 
+            // If the function is async, wait for its future, and convert the value it gives
+            Class<?> returnType = wasmReturnType();
+            if (isAsync()) {
+                visitor.visitFieldInsn(Opcodes.GETSTATIC, Names.className(declaringModule.moduleName), Names.limiterFieldName(), Type.getDescriptor(InstanceLimiter.class)); // [future, limiter]
+                visitor.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(HostFutures.class), "await", "(" + Type.getDescriptor(CompletableFuture.class) + Type.getDescriptor(InstanceLimiter.class) + ")Ljava/lang/Object;", false); // [Object]
+                if (returnType == void.class) {
+                    visitor.visitInsn(Opcodes.POP);
+                } else if (returnType == boolean.class) {
+                    visitor.visitTypeInsn(Opcodes.CHECKCAST, "java/lang/Boolean");
+                    visitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false);
+                } else if (returnType.isPrimitive()) {
+                    BytecodeHelper.unboxValue(visitor, BytecodeHelper.wasmType(returnType));
+                } else if (returnType != Object.class) {
+                    visitor.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(returnType));
+                }
+            }
+
             // Return the output of the java function
-            if (method.getReturnType() == void.class) {
+            if (hasAllocatedResult()) {
+                writeAllocatedResult(declaringModule, visitor, numLocals, classGenCallbacks);
+                visitor.visitInsn(Opcodes.ARETURN);
+            } else if (returnType == void.class) {
                 visitor.visitInsn(Opcodes.RETURN);
-            } else if (method.getReturnType() == Object[].class) {
+            } else if (returnType == Object[].class) {
                 visitor.visitInsn(Opcodes.ARETURN);
-            } else if (method.getReturnType() == boolean.class) {
+            } else if (returnType == boolean.class) {
                 visitor.visitInsn(Opcodes.IRETURN);
             } else {
-                ValType wasmType = BytecodeHelper.wasmType(method.getReturnType());
+                ValType wasmType = BytecodeHelper.wasmType(returnType);
                 visitor.visitInsn(wasmType.returnOpcode);
             }
 
@@ -257,6 +343,65 @@ public class JavaModuleData<T> {
             visitor.visitEnd();
         }
 
+        // Copy the byte[] or String result into memory allocated by the guest. Stack = [result] -> [Object[] {ptr, len}]
+        private void writeAllocatedResult(SimpleModule declaringModule, MethodVisitor visitor, int nextLocal, Set<ClassGenCallback> classGenCallbacks) {
+            // Find the allocator
+            String allocatorName = method.getAnnotation(WasmAllocated.class).value();
+            SimpleFunction allocator = null;
+            for (SimpleFunction function : declaringModule.functions)
+                if (function instanceof SimpleFunction.SameFileFunction sameFile && allocatorName.equals(sameFile.exportedAs()))
+                    allocator = function;
+            if (allocator == null)
+                throw new UnsupportedOperationException("Module \"" + declaringModule.moduleName + "\" imports java function \"" + method.getName() + "\" with a @WasmAllocated result, but doesn't export an allocator function named \"" + allocatorName + "\"");
+            List<ValType> allocatorParams = allocator.funcType().inTypes();
+            if (!allocator.funcType().outTypes().equals(List.of(ValType.I32)) || (allocatorParams.size() != 1 && allocatorParams.size() != 4) || ListUtils.any(allocatorParams, t -> t != ValType.I32))
+                throw new UnsupportedOperationException("Allocator function \"" + allocatorName + "\" of module \"" + declaringModule.moduleName + "\" should take 1 or 4 i32s and return an i32, but its type is " + allocator.funcType());
+
+            int bytesLocal = nextLocal;
+            int ptrLocal = nextLocal + 1;
+            CompilingSimpleInstructionVisitor compilingVisitor = new CompilingSimpleInstructionVisitor(declaringModule, visitor, nextLocal + 2, classGenCallbacks);
+            if (wasmReturnType() == String.class)
+                visitor.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(HostSlices.class), "encode", "(Ljava/lang/String;)[B", false); // [bytes]
+            visitor.visitVarInsn(Opcodes.ASTORE, bytesLocal); // []
+
+            Label isNull = new Label();
+            Label done = new Label();
+            visitor.visitVarInsn(Opcodes.ALOAD, bytesLocal); // [bytes]
+            visitor.visitJumpInsn(Opcodes.IFNULL, isNull); // []
+            // Allocate: cabi_realloc(0, 0, 1, len), or malloc(len)
+            if (allocatorParams.size() == 4) {
+                visitor.visitInsn(Opcodes.ICONST_0); // [oldPtr]
+                visitor.visitInsn(Opcodes.ICONST_0); // [oldPtr, oldSize]
+                visitor.visitInsn(Opcodes.ICONST_1); // [oldPtr, oldSize, align]
+            }
+            visitor.visitVarInsn(Opcodes.ALOAD, bytesLocal); // [args..., bytes]
+            visitor.visitInsn(Opcodes.ARRAYLENGTH); // [args..., len]
+            allocator.emitCall(declaringModule, visitor, compilingVisitor); // [ptr]
+            visitor.visitVarInsn(Opcodes.ISTORE, ptrLocal); // []
+            // Copy into the memory. Only get the memory now, since the allocator may have grown it.
+            MemoryBackend backend = declaringModule.memory.backend();
+            visitor.visitVarInsn(Opcodes.ALOAD, bytesLocal); // [bytes]
+            visitor.visitInsn(Opcodes.ICONST_0); // [bytes, 0]
+            declaringModule.memory.getMemory(declaringModule, visitor); // [bytes, 0, memory]
+            visitor.visitVarInsn(Opcodes.ILOAD, ptrLocal); // [bytes, 0, memory, ptr]
+            visitor.visitVarInsn(Opcodes.ALOAD, bytesLocal); // [bytes, 0, memory, ptr, bytes]
+            visitor.visitInsn(Opcodes.ARRAYLENGTH); // [bytes, 0, memory, ptr, len]
+            if (backend == MemoryBackend.HEAP_ARRAY)
+                visitor.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "arraycopy", "(Ljava/lang/Object;ILjava/lang/Object;II)V", false); // []
+            else
+                visitor.visitMethodInsn(Opcodes.INVOKESTATIC, backend.helperClassName(), "write", "([BI" + backend.descriptor + "II)V", false); // []
+            visitor.visitVarInsn(Opcodes.ILOAD, ptrLocal); // [ptr]
+            visitor.visitVarInsn(Opcodes.ALOAD, bytesLocal); // [ptr, bytes]
+            visitor.visitInsn(Opcodes.ARRAYLENGTH); // [ptr, len]
+            visitor.visitJumpInsn(Opcodes.GOTO, done);
+            // A null result is (0, 0)
+            visitor.visitLabel(isNull);
+            visitor.visitInsn(Opcodes.ICONST_0); // [ptr]
+            visitor.visitInsn(Opcodes.ICONST_0); // [ptr, len]
+            visitor.visitLabel(done);
+            CallingHelpers.wrapReturnValues(visitor, nextLocal + 2, List.of(ValType.I32, ValType.I32)); // [Object[] {ptr, len}]
+        }
+
         private List<Class<?>> getGlueParams() {
             List<Class<?>> res = new ArrayList<>(Arrays.asList(method.getParameterTypes()));
             if (!globalInstanceMode && !isStatic())
@@ -264,6 +409,19 @@ public class JavaModuleData<T> {
             return res;
         }
 
+        // The adapter annotation of each of the glue params, or null if it has none
+        private List<Class<? extends Annotation>> getGlueAdapters() {
+            List<Class<? extends Annotation>> res = new ArrayList<>();
+            for (Parameter param : method.getParameters()) {
+                if (param.isAnnotationPresent(WasmSlice.class)) res.add(WasmSlice.class);
+                else if (param.isAnnotationPresent(WasmString.class)) res.add(WasmString.class);
+                else res.add(null);
+            }
+            if (!globalInstanceMode && !isStatic())
+                res.add(0, null);
+            return res;
+        }
+
         // Returns true if the clazz is a subclass of RefCountable
         private static boolean isGluedType(Class<?> clazz) {
             return RefCountable.class.isAssignableFrom(clazz);
@@ -0,0 +1,24 @@
+package io.github.toomanylimits.wasmj.runtime.reflect.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotate a method returning byte[] or String with this. Instead of
+ * an externref, WASM receives two i32s, a pointer and a length. The
+ * result is written into memory allocated by calling the guest's
+ * allocator export, named by value(), in the module which called the
+ * method. Strings are encoded as UTF-8. A null result gives (0, 0),
+ * without calling the allocator.
+ *
+ * The allocator may either take the 4 params of cabi_realloc
+ * (old pointer, old size, alignment, new size), or just the size,
+ * like malloc. Either way, it returns the pointer.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface WasmAllocated {
+    String value() default "cabi_realloc";
+}
@@ -0,0 +1,22 @@
+package io.github.toomanylimits.wasmj.runtime.reflect.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotate a ByteBuffer parameter with this. WASM passes two i32s
+ * for it, a pointer and a length, and the method receives a
+ * ByteBuffer viewing that range of the caller's memory. Writes to
+ * the buffer go directly to the memory.
+ *
+ * The buffer is only valid until the method returns, since the
+ * memory may be replaced when it grows.
+ * Requires the HEAP_ARRAY or OFF_HEAP memory backend.
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface WasmSlice {
+
+}
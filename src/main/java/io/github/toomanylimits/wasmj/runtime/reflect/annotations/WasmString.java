@@ -0,0 +1,19 @@
+package io.github.toomanylimits.wasmj.runtime.reflect.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotate a String parameter with this. WASM passes two i32s
+ * for it, a pointer and a length, and the method receives the
+ * UTF-8 string stored in that range of the caller's memory.
+ *
+ * Requires the HEAP_ARRAY or OFF_HEAP memory backend.
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface WasmString {
+
+}
@@ -0,0 +1,199 @@
+package io.github.toomanylimits.wasmj.runtime.sandbox;
+
+import io.github.toomanylimits.wasmj.runtime.errors.TooManyInstructionsException;
+import io.github.toomanylimits.wasmj.runtime.errors.TooMuchHeapMemoryException;
+import io.github.toomanylimits.wasmj.runtime.errors.WasmException;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An InstanceLimiter which can be shared by guest code running on
+ * several threads at once.
+ *
+ * Instructions are metered against a shared pool, which starts out
+ * holding maxInstructions. Each thread takes a chunk of instructions
+ * out of the pool into its own local budget, and incInstructions() only
+ * decrements that local budget, without any atomics. The pool is only
+ * touched again once the local budget runs out. Once the pool can't
+ * cover a thread's next chunk, TooManyInstructionsException is thrown,
+ * so the global cap is never exceeded, though it may be hit a little
+ * early while other threads still hold part of a chunk.
+ *
+ * When a thread's outermost ExportedFunction.invoke() returns, or a wasm
+ * module's init finishes, what's left of its local budget goes back to
+ * the pool, and the budget stops being tracked until the thread runs
+ * guest code again. So threads which finish or stop calling into the
+ * guest don't keep instructions out of the pool, and the number of
+ * tracked budgets stays at the number of threads currently running guest
+ * code. Code which calls exports some other way should call
+ * enterExportCall() and exitExportCall() itself.
+ *
+ * With the LOCAL_FUEL metering mode, generated code takes its thread's
+ * whole local budget as fuel, and refills it from the pool when it runs out.
+ *
+ * Heap memory changes much less often, so it's tracked with a single
+ * atomic counter instead.
+ *
+ * getInstructions(), setInstructions() and setHeapMemoryUsed() are only
+ * exact when no guest code is running on this limiter.
+ */
+public class ConcurrentInstanceLimiter extends InstanceLimiter {
+
+    public static final long DEFAULT_CHUNK_SIZE = 10_000;
+
+    public final long chunkSize; // How many instructions a thread takes from the pool at once
+
+    private final AtomicLong instructionPool; // Instructions not yet handed out to any thread
+    private final Queue<Budget> budgets = new ConcurrentLinkedQueue<>(); // Every thread's local budget, to total them up
+    private final ThreadLocal<Budget> localBudget = ThreadLocal.withInitial(() -> {
+        Budget budget = new Budget();
+        budgets.add(budget);
+        return budget;
+    });
+
+    private final AtomicLong heapMemoryUsed = new AtomicLong();
+
+    private static final class Budget {
+        long remaining; // Only ever written by the owning thread, except by setInstructions()
+        int exportCallDepth; // Only used by the owning thread
+    }
+
+    public ConcurrentInstanceLimiter(long maxInstructions, long maxJvmHeapMemory) {
+        this(maxInstructions, maxJvmHeapMemory, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ConcurrentInstanceLimiter(long maxInstructions, long maxJvmHeapMemory, long chunkSize) {
+        this(maxInstructions, maxJvmHeapMemory, chunkSize, Metering.PER_BLOCK);
+    }
+
+    public ConcurrentInstanceLimiter(long maxInstructions, long maxJvmHeapMemory, long chunkSize, Metering metering) {
+        this(maxInstructions, maxJvmHeapMemory, chunkSize, metering, false);
+    }
+
+    public ConcurrentInstanceLimiter(long maxInstructions, long maxJvmHeapMemory, long chunkSize, Metering metering, boolean interruptible) {
+        super(maxInstructions, maxJvmHeapMemory, metering, interruptible);
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive, got " + chunkSize);
+        this.chunkSize = chunkSize;
+        this.instructionPool = new AtomicLong(this.maxInstructions);
+    }
+
+    @Override
+    public InstanceLimiter withSameLimits() {
+        return new ConcurrentInstanceLimiter(
+                countsInstructions ? maxInstructions : -1,
+                countsMemory ? maxJvmHeapMemory : -1,
+                chunkSize,
+                metering,
+                interruptible
+        );
+    }
+
+    // Instructions
+
+    @Override
+    public long getInstructions() {
+        long unused = instructionPool.get();
+        for (Budget budget : budgets)
+            unused += budget.remaining;
+        return maxInstructions - unused;
+    }
+
+    @Override
+    public void setInstructions(long instructions) {
+        for (Budget budget : budgets)
+            budget.remaining = 0;
+        instructionPool.set(maxInstructions - instructions);
+    }
+
+    @Override
+    public void incInstructions(long instructions) throws TooManyInstructionsException {
+        if (!countsInstructions) return;
+        Budget budget = localBudget.get();
+        long remaining = budget.remaining - instructions;
+        if (remaining < 0)
+            remaining = refill(remaining);
+        budget.remaining = remaining;
+    }
+
+    @Override
+    public long takeFuel() {
+        Budget budget = localBudget.get();
+        long fuel = budget.remaining;
+        budget.remaining = 0;
+        return fuel;
+    }
+
+    @Override
+    public void putFuel(long fuel) throws TooManyInstructionsException {
+        Budget budget = localBudget.get();
+        budget.remaining = fuel < 0 ? refill(fuel) : fuel;
+    }
+
+    @Override
+    public void enterExportCall() {
+        super.enterExportCall();
+        localBudget.get().exportCallDepth++;
+    }
+
+    @Override
+    public void exitExportCall() throws WasmException {
+        Budget budget = localBudget.get();
+        if (--budget.exportCallDepth == 0) {
+            // The thread may never run guest code again, so give back the rest of its budget
+            long remaining = budget.remaining;
+            budget.remaining = 0;
+            instructionPool.addAndGet(remaining);
+            budgets.remove(budget);
+            localBudget.remove();
+        }
+        super.exitExportCall();
+    }
+
+    // Take enough from the pool to bring a negative local budget back to >= 0,
+    // and at least a whole chunk if the pool has that much.
+    private long refill(long remaining) throws TooManyInstructionsException {
+        long needed = -remaining;
+        while (true) {
+            long available = instructionPool.get();
+            if (available < needed)
+                throw new TooManyInstructionsException(maxInstructions);
+            long taken = Math.min(available, Math.max(needed, chunkSize));
+            if (instructionPool.compareAndSet(available, available - taken))
+                return remaining + taken;
+        }
+    }
+
+    // Heap memory
+
+    @Override
+    public long getHeapMemoryUsed() {
+        return heapMemoryUsed.get();
+    }
+
+    @Override
+    public void setHeapMemoryUsed(long amount) {
+        heapMemoryUsed.set(amount);
+    }
+
+    @Override
+    public void incHeapMemoryUsed(long amount) throws TooMuchHeapMemoryException {
+        if (!countsMemory) return;
+        long used = heapMemoryUsed.updateAndGet(current -> Math.addExact(current, amount));
+        if (used > maxJvmHeapMemory) {
+            // Undo, so other threads aren't pushed over the limit by an allocation that didn't happen
+            heapMemoryUsed.addAndGet(-amount);
+            throw new TooMuchHeapMemoryException(maxJvmHeapMemory);
+        }
+    }
+
+    @Override
+    public void decHeapMemoryUsed(long amount) {
+        if (!countsMemory) return;
+        if (heapMemoryUsed.addAndGet(-amount) < 0)
+            throw new IllegalStateException("Heap memory used fell below 0? Should never happen, bug in refcounting");
+    }
+
+}
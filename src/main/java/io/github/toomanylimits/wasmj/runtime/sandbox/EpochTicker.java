@@ -0,0 +1,100 @@
+package io.github.toomanylimits.wasmj.runtime.sandbox;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A background thread which advances an epoch counter at a fixed rate,
+ * and interrupts limiters whose deadline epoch has been reached.
+ *
+ * This gives wall-clock timeouts for wasm code without counting
+ * instructions. The limiter must be interruptible, so its generated code
+ * checks for interrupts at function entry and at the start of every loop
+ * iteration. Deadlines are only as precise as the tick period.
+ *
+ * One ticker can serve any number of instances.
+ *
+ * A deadline belongs to the limiter, not to a particular call. It stays
+ * pending until it fires or is cleared, even if the instance is reset in
+ * between, so a deadline left pending by one borrower of an InstancePool
+ * still fires on the next one. Clear it before giving the instance back.
+ */
+public class EpochTicker implements AutoCloseable {
+
+    private final long periodNanos;
+    private final Thread thread;
+    private final Map<InstanceLimiter, Long> deadlines = new ConcurrentHashMap<>();
+    private volatile long epoch;
+    private volatile boolean closed;
+
+    public EpochTicker(Duration period) {
+        if (period.isNegative() || period.isZero())
+            throw new IllegalArgumentException("Tick period must be positive, got " + period);
+        this.periodNanos = period.toNanos();
+        this.thread = new Thread(this::run, "WasmJ epoch ticker");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // The number of ticks so far
+    public long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Interrupt the limiter's instance once this many ticks have passed.
+     * Clears any previous interrupt and replaces any previous deadline.
+     */
+    public void setDeadline(InstanceLimiter limiter, long ticksFromNow) {
+        if (!limiter.interruptible)
+            throw new IllegalArgumentException("Limiter isn't interruptible, so its code never checks for deadlines");
+        if (ticksFromNow < 0)
+            throw new IllegalArgumentException("Deadline can't be in the past, got " + ticksFromNow + " ticks from now");
+        limiter.clearInterrupt();
+        deadlines.put(limiter, epoch + ticksFromNow);
+    }
+
+    /**
+     * Same as above, with the deadline rounded up to a whole number of ticks.
+     */
+    public void setDeadline(InstanceLimiter limiter, Duration timeout) {
+        long nanos = timeout.toNanos();
+        setDeadline(limiter, nanos / periodNanos + (nanos % periodNanos == 0 ? 0 : 1));
+    }
+
+    // Remove the limiter's deadline, if it has one. Doesn't clear an interrupt which already happened.
+    public void clearDeadline(InstanceLimiter limiter) {
+        deadlines.remove(limiter);
+    }
+
+    private void run() {
+        long next = System.nanoTime() + periodNanos;
+        while (!closed) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    continue; // Woken up by close()
+                }
+            }
+            next += periodNanos;
+            long now = ++epoch;
+            deadlines.entrySet().removeIf(entry -> {
+                if (entry.getValue() > now)
+                    return false;
+                entry.getKey().interrupt();
+                return true;
+            });
+        }
+    }
+
+    // Stop the ticker thread. Deadlines which haven't been reached yet never will be.
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+}
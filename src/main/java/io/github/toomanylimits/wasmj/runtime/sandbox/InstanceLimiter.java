@@ -1,7 +1,11 @@
 package io.github.toomanylimits.wasmj.runtime.sandbox;
 
+import io.github.toomanylimits.wasmj.runtime.errors.DeadlineExceededException;
 import io.github.toomanylimits.wasmj.runtime.errors.TooManyInstructionsException;
 import io.github.toomanylimits.wasmj.runtime.errors.TooMuchHeapMemoryException;
+import io.github.toomanylimits.wasmj.runtime.errors.WasmException;
+
+import java.util.ArrayList;
 
 /**
  * An object that tracks the usage of JVM heap memory for a
@@ -12,27 +16,121 @@ import io.github.toomanylimits.wasmj.runtime.errors.TooMuchHeapMemoryException;
  * annotation and adding a param of type InstanceLimiter to the method
  * signature at the end. Note that this param may be null if the instance
  * has no limiter.
+ *
+ * This class isn't thread-safe. If guest code of one instance may run
+ * on several threads at once, use a ConcurrentInstanceLimiter instead.
  */
 public class InstanceLimiter {
 
     // Instruction counting variables
     public final boolean countsInstructions; // Whether this instance counts instructions at all
     public final long maxInstructions; // If it does count instructions, the maximum number of instructions before erroring
+    public final Metering metering; // How the generated code reports the instructions it executes
     private long instructionsExecuted; // The current number of instructions executed
 
     // Memory counting variables
     public final boolean countsMemory; // Whether this instance counts memory usage at all
     public final long maxJvmHeapMemory; // The maximum jvm heap memory before this errors
     private long heapMemoryUsed; // The current amount of jvm heap memory used
+    public final RefCounting refCounting; // How references to RefCountable objects are counted
+    public final boolean defersRefCounts; // Whether this counts memory, with DEFERRED ref counting
+    public final boolean countsStackRefs; // Whether this counts memory, with IMMEDIATE ref counting, so references on the wasm stack and in locals are counted
+    private final ArrayList<RefCountable> zeroCountTable = new ArrayList<>(); // With DEFERRED, objects which may have become unreachable
+    private int exportCallDepth; // With DEFERRED, the number of ExportedFunction calls currently running
+    private boolean reconciling; // Whether reconcileRefCounts() is running
+
+    // Interruption variables
+    public final boolean interruptible; // Whether the generated code checks for interrupts at function entry and loop starts
+    public volatile boolean interruptRequested; // Read directly by the generated code. Use interrupt() and clearInterrupt().
 
     // Pass -1 if you want the limiter to not track that variable.
     // Can improve performance, since the code doesn't need to increment
     // variables and make checks all the time.
     public InstanceLimiter(long maxInstructions, long maxJvmHeapMemory) {
+        this(maxInstructions, maxJvmHeapMemory, Metering.PER_BLOCK);
+    }
+
+    public InstanceLimiter(long maxInstructions, long maxJvmHeapMemory, Metering metering) {
+        this(maxInstructions, maxJvmHeapMemory, metering, false);
+    }
+
+    // If interruptible is true, the code can be stopped from another thread with interrupt(),
+    // or after a timeout with an EpochTicker. This is much cheaper than counting instructions.
+    public InstanceLimiter(long maxInstructions, long maxJvmHeapMemory, Metering metering, boolean interruptible) {
+        this(maxInstructions, maxJvmHeapMemory, metering, interruptible, RefCounting.IMMEDIATE);
+    }
+
+    public InstanceLimiter(long maxInstructions, long maxJvmHeapMemory, Metering metering, boolean interruptible, RefCounting refCounting) {
+        this.metering = metering;
+        this.refCounting = refCounting;
+        this.interruptible = interruptible;
         this.countsInstructions = (maxInstructions != -1);
         this.maxInstructions = maxInstructions == -1 ? Long.MAX_VALUE : maxInstructions;
         this.countsMemory = (maxJvmHeapMemory != -1);
         this.maxJvmHeapMemory = maxJvmHeapMemory == -1 ? Long.MAX_VALUE : maxJvmHeapMemory;
+        this.defersRefCounts = countsMemory && refCounting == RefCounting.DEFERRED;
+        this.countsStackRefs = countsMemory && refCounting == RefCounting.IMMEDIATE;
+    }
+
+    // A new limiter of the same kind, with the same maximums, and nothing counted yet.
+    public InstanceLimiter withSameLimits() {
+        return new InstanceLimiter(
+                countsInstructions ? maxInstructions : -1,
+                countsMemory ? maxJvmHeapMemory : -1,
+                metering,
+                interruptible,
+                refCounting
+        );
+    }
+
+    /**
+     * The ways generated code can count instructions. Both count the same
+     * number of instructions, they differ in how often they talk to the limiter.
+     */
+    public enum Metering {
+        /**
+         * Call incInstructions() at the start of every straight-line run of
+         * instructions. The count is exact at all times, even if the wasm code traps.
+         */
+        PER_BLOCK,
+        /**
+         * Each function keeps its remaining fuel in a local variable, which is
+         * decremented by the cost of each straight-line run without calling anything,
+         * and checked at the start of each loop iteration. Direct calls within a module
+         * pass the fuel as an argument. It's put back in the limiter before returns and
+         * before any other call, and taken again after calls.
+         * Much cheaper for tight loops and direct calls. Code which mostly calls through
+         * call_indirect, other modules or host functions syncs with the limiter on each
+         * call, and gains little over PER_BLOCK. Instructions executed since the fuel was
+         * last put back are lost from the count if the wasm code traps.
+         */
+        LOCAL_FUEL
+    }
+
+    /**
+     * The ways references to RefCountable objects are counted, when memory is
+     * counted. Objects are charged to the limiter while the guest can reach
+     * them, and dropped once it can't.
+     */
+    public enum RefCounting {
+        /**
+         * Count every reference, including ones on the wasm stack and in locals.
+         * Objects are dropped as soon as their last reference goes away, but
+         * every local access and drop of an externref calls into the object.
+         */
+        IMMEDIATE,
+        /**
+         * Only count references held in tables, globals and host objects.
+         * Objects entering the guest from Java, and objects whose count falls
+         * to zero, are noted, and checked at the next safe point: when the
+         * outermost ExportedFunction.invoke() returns. The ones with no counted
+         * references left are dropped then. Much cheaper for guests which move
+         * a lot of externrefs through locals and the stack, but objects live
+         * until the call returns, so guests getting many short-lived objects
+         * from the host in one call are slower. Code which calls exports some
+         * other way should call reconcileRefCounts() itself.
+         */
+        DEFERRED
     }
 
     // Getter and setter for the current # of instructions executed.
@@ -58,10 +156,44 @@ public class InstanceLimiter {
         }
     }
 
+    // Fuel, for the LOCAL_FUEL metering mode. Generated code takes the remaining
+    // instructions into a local, counts it down, and puts what's left back
+    // before anything else can look at the limiter.
+    public long takeFuel() {
+        return maxInstructions - instructionsExecuted;
+    }
+    public void putFuel(long fuel) throws TooManyInstructionsException {
+        instructionsExecuted = maxInstructions - fuel;
+        if (fuel < 0)
+            throw new TooManyInstructionsException(maxInstructions);
+    }
+    // Called when a loop finds its fuel has gone negative. Either errors or returns more fuel.
+    public long refuel(long fuel) throws TooManyInstructionsException {
+        putFuel(fuel);
+        return takeFuel();
+    }
+
+    // Interruption. Once interrupted, the instance's code errors at the next function
+    // entry or loop start, and keeps doing so until the interrupt is cleared.
+    public void interrupt() {
+        interruptRequested = true;
+    }
+    public void clearInterrupt() {
+        interruptRequested = false;
+    }
+    // Called by generated code when it sees interruptRequested.
+    public void checkInterrupt() throws DeadlineExceededException {
+        if (interruptRequested)
+            throw new DeadlineExceededException();
+    }
+
     // Getter and helpers for heap memory and ref counting.
     public long getHeapMemoryUsed() {
         return heapMemoryUsed;
     }
+    public void setHeapMemoryUsed(long amount) {
+        heapMemoryUsed = amount;
+    }
     public void incHeapMemoryUsed(long amount) throws TooMuchHeapMemoryException {
         if (!countsMemory) return;
         heapMemoryUsed = Math.addExact(heapMemoryUsed, amount);
@@ -75,4 +207,39 @@ public class InstanceLimiter {
             throw new IllegalStateException("Heap memory used fell below 0? Should never happen, bug in refcounting");
     }
 
+    // Deferred ref counting. RefCountable notes objects here when they may have become unreachable.
+    void deferDrop(RefCountable ref) {
+        zeroCountTable.add(ref);
+    }
+    // The number of objects waiting to be checked at the next safe point.
+    public int pendingDrops() {
+        return zeroCountTable.size();
+    }
+    // Called by ExportedFunction.invoke() around each call. The outermost one is a safe point.
+    public void enterExportCall() {
+        if (defersRefCounts)
+            exportCallDepth++;
+    }
+    public void exitExportCall() throws WasmException {
+        if (defersRefCounts && --exportCallDepth == 0)
+            reconcileRefCounts();
+    }
+    /**
+     * Drop the noted objects which have no counted references left. Only call
+     * this when no guest code of the instance is running, since the guest's
+     * stack and locals aren't counted.
+     */
+    public void reconcileRefCounts() throws WasmException {
+        if (reconciling)
+            return; // Dropping an object ran guest code which returned, the outer call picks up anything new
+        reconciling = true;
+        try {
+            // Dropping an object can release the objects it held, so keep going until there are none
+            while (!zeroCountTable.isEmpty())
+                zeroCountTable.remove(zeroCountTable.size() - 1).reconcile(this);
+        } finally {
+            reconciling = false;
+        }
+    }
+
 }
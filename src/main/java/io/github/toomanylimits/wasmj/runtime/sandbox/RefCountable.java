@@ -3,44 +3,267 @@ package io.github.toomanylimits.wasmj.runtime.sandbox;
 import io.github.toomanylimits.wasmj.runtime.errors.TooMuchHeapMemoryException;
 import io.github.toomanylimits.wasmj.runtime.errors.WasmException;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Extend this for a type that should be WASM-capable
+ *
+ * By default, the reference count is a plain int, which is only correct if
+ * every reference to the object is held by guests on a single thread. Objects
+ * which may be shared by guests on different threads, such as a cache handed
+ * to several instances, should pass true to the constructor instead. They are
+ * then counted concurrently: the total is updated atomically, and each limiter
+ * keeps its own count, so an instance's limiter is charged when it takes its
+ * first reference, and refunded when it releases its last one, no matter what
+ * other instances do. drop() runs once no instance holds a reference any more.
+ * Concurrent counting is slower, so only use it where it's needed.
+ *
+ * drop() runs with whichever limiter released the last reference, which for a
+ * concurrently counted object may not be the one its children were counted
+ * under. Such objects take references to their children with hold(), which
+ * remembers the limiter, and those are released with it before drop() runs.
+ *
+ * With a limiter using RefCounting.DEFERRED, only references from tables,
+ * globals and host objects are counted, and drop() waits for the limiter's
+ * next safe point. Concurrently counted objects don't support that mode.
  */
 public abstract class RefCountable {
 
+    private static final VarHandle REFERENCES;
+    static {
+        try {
+            REFERENCES = MethodHandles.lookup().findVarHandle(RefCountable.class, "references", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     /**
      * Tracks the number of references to this object.
      */
     private int references;
+    /**
+     * If counted concurrently, the number of references held by each limiter. Otherwise null.
+     */
+    private final ConcurrentHashMap<InstanceLimiter, Integer> holders;
+    /**
+     * With deferred counting, whether the limiter was charged for this object.
+     * Stays true while the count is 0, until the limiter's next safe point.
+     */
+    private boolean charged;
+    /**
+     * The children referenced with hold(), with the limiter each was counted under. Null while there are none.
+     */
+    private ArrayList<Held> heldChildren;
+
+    private record Held(RefCountable child, InstanceLimiter limiter) {}
+
+    protected RefCountable() {
+        this(false);
+    }
+
+    protected RefCountable(boolean concurrent) {
+        this.holders = concurrent ? new ConcurrentHashMap<>() : null;
+    }
+
+    public final boolean isConcurrent() {
+        return holders != null;
+    }
 
     // Increase the number of references to this by 1
     public void inc(InstanceLimiter limiter) throws TooMuchHeapMemoryException {
+        if (holders != null) {
+            incConcurrent(limiter);
+            return;
+        }
+        if (limiter.defersRefCounts) {
+            charge(limiter);
+            references++;
+            return;
+        }
         references++;
         if (references == 1)
             limiter.incHeapMemoryUsed(getSize());
     }
     // Decrease the number of references to this by 1
     public void dec(InstanceLimiter limiter) throws WasmException {
+        if (holders != null) {
+            decConcurrent(limiter);
+            return;
+        }
+        if (limiter.defersRefCounts) {
+            // It may still be on the guest's stack, so only check it at the next safe point
+            if (--references == 0)
+                limiter.deferDrop(this);
+            return;
+        }
         references--;
         if (references == 0) {
             limiter.decHeapMemoryUsed(getSize());
-            drop(limiter);
+            releaseHeldAndDrop(limiter);
+        }
+    }
+
+    // With deferred counting, called when the object enters the guest from Java,
+    // such as when a host function returns it. The guest only holds it on its
+    // stack, which isn't counted, so the object is checked at the next safe point.
+    public void enter(InstanceLimiter limiter) throws TooMuchHeapMemoryException {
+        if (holders != null)
+            throw deferredUnsupported();
+        if (charged)
+            return;
+        charge(limiter);
+        limiter.deferDrop(this);
+    }
+
+    private void charge(InstanceLimiter limiter) throws TooMuchHeapMemoryException {
+        if (charged)
+            return;
+        limiter.incHeapMemoryUsed(getSize());
+        charged = true;
+    }
+
+    private static UnsupportedOperationException deferredUnsupported() {
+        return new UnsupportedOperationException("Concurrently counted objects can't be used with deferred ref counting");
+    }
+
+    // Called by the limiter at a safe point, for objects noted by enter() or dec().
+    final void reconcile(InstanceLimiter limiter) throws WasmException {
+        if (references != 0 || !charged)
+            return; // Referenced again since, or already dropped
+        charged = false;
+        limiter.decHeapMemoryUsed(getSize());
+        releaseHeldAndDrop(limiter);
+    }
+
+    // The limiter's count is updated inside compute(), so its first and last
+    // reference are charged and refunded exactly once, even when racing.
+    private void incConcurrent(InstanceLimiter limiter) throws TooMuchHeapMemoryException {
+        if (limiter.defersRefCounts)
+            throw deferredUnsupported();
+        TooMuchHeapMemoryException[] error = new TooMuchHeapMemoryException[1];
+        holders.compute(limiter, (l, held) -> {
+            if (held != null)
+                return held + 1;
+            try {
+                l.incHeapMemoryUsed(getSize());
+                return 1;
+            } catch (TooMuchHeapMemoryException e) {
+                error[0] = e;
+                return null;
+            }
+        });
+        if (error[0] != null)
+            throw error[0];
+        REFERENCES.getAndAdd(this, 1);
+    }
+    private void decConcurrent(InstanceLimiter limiter) throws WasmException {
+        if (limiter.defersRefCounts)
+            throw deferredUnsupported();
+        boolean[] wasHeld = new boolean[1];
+        holders.computeIfPresent(limiter, (l, held) -> {
+            wasHeld[0] = true;
+            if (held > 1)
+                return held - 1;
+            l.decHeapMemoryUsed(getSize());
+            return null;
+        });
+        if (!wasHeld[0])
+            throw new IllegalStateException("Limiter released a reference it never held? Should never happen, bug in refcounting");
+        // The last reference anywhere drops the object, using the limiter which released it
+        if ((int) REFERENCES.getAndAdd(this, -1) == 1)
+            releaseHeldAndDrop(limiter);
+    }
+
+    /**
+     * Take a reference to a child object on behalf of this one, charged to the given
+     * limiter. The child is released with that same limiter when this object is dropped,
+     * before drop() runs, or earlier with release(). Concurrently counted objects must
+     * hold their children this way, see the class doc.
+     */
+    protected final void hold(RefCountable child, InstanceLimiter limiter) throws TooMuchHeapMemoryException {
+        child.inc(limiter);
+        synchronized (this) {
+            if (heldChildren == null)
+                heldChildren = new ArrayList<>();
+            heldChildren.add(new Held(child, limiter));
         }
     }
 
     /**
-     * Runs when this object's ref count drops to 0.
-     * This should decrement the refcounts of the object's
-     * reachable children, for instance.
+     * Release one reference taken with hold(), with the limiter it was counted under.
+     * Returns false if this object doesn't hold the child.
+     */
+    protected final boolean release(RefCountable child) throws WasmException {
+        Held found = null;
+        synchronized (this) {
+            if (heldChildren != null) {
+                for (int i = 0; i < heldChildren.size(); i++) {
+                    if (heldChildren.get(i).child == child) {
+                        found = heldChildren.remove(i);
+                        break;
+                    }
+                }
+            }
+        }
+        if (found == null)
+            return false;
+        child.dec(found.limiter);
+        return true;
+    }
+
+    // Release every held child, then run drop(). Like WasmInstance.close(), a child
+    // which fails to drop doesn't stop the others, and the first failure is thrown after.
+    private void releaseHeldAndDrop(InstanceLimiter limiter) throws WasmException {
+        ArrayList<Held> held;
+        synchronized (this) {
+            held = heldChildren;
+            heldChildren = null;
+        }
+        WasmException dropFailure = null;
+        if (held != null) {
+            for (Held h : held) {
+                try {
+                    h.child.dec(h.limiter);
+                } catch (WasmException e) {
+                    if (dropFailure == null) dropFailure = e;
+                }
+            }
+        }
+        drop(limiter);
+        if (dropFailure != null)
+            throw dropFailure;
+    }
+
+    // The current number of references. For concurrently counted
+    // objects, this is the total over all limiters.
+    public final int getReferenceCount() {
+        return (int) REFERENCES.getVolatile(this);
+    }
+
+    /**
+     * Runs when this object's ref count drops to 0, with the limiter which
+     * released the last reference. Children taken with hold() have already
+     * been released by then. Otherwise, this should decrement the refcounts
+     * of the object's reachable children, for instance.
      *
      * Example:
-     * record BinaryTree(int value, BinaryTree leftChild, BinaryTree rightChild) implements RefCountable {
-     *     public void drop(InstanceLimiter limiter) {
-     *         limiter.decrementRefCount(leftChild);
-     *         limiter.decrementRefCount(rightChild);
+     * class BinaryTree extends RefCountable {
+     *     ...
+     *     protected void drop(InstanceLimiter limiter) throws WasmException {
+     *         leftChild.dec(limiter);
+     *         rightChild.dec(limiter);
      *     }
      * }
      *
+     * That's only correct if the children were counted under the same limiter.
+     * For concurrently counted objects, the last limiter may be a different
+     * instance's, so take the children with hold() instead, and leave drop()
+     * for anything else that needs cleaning up.
+     *
      * Note that this is only necessary if `BinaryTree` exposes to WASM a
      * way to fetch the left or right child.
      * If there is no way for WASM code to get the left child or right child,
@@ -0,0 +1,93 @@
+package io.github.toomanylimits.wasmj.runtime.sandbox;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shares a fixed number of run slots between many guests, handing out
+ * instructions in fixed size slices.
+ *
+ * Each guest call started with run() gets its own thread, which waits for
+ * a slot before running the guest code. When the guest has used up its
+ * slice, its SlicedInstanceLimiter gives the slot to the longest waiting
+ * guest, and the thread blocks at the back of the queue until it's given
+ * a slot again. The guest then carries on exactly where it stopped, with
+ * nothing lost. Slots are handed out first-come-first-served, so guests
+ * take turns round-robin.
+ *
+ * By default every call runs on a new platform thread. On a JDK with
+ * virtual threads, pass their ThreadFactory, so thousands of suspended
+ * guests cost little more than their stacks.
+ */
+public class SliceScheduler {
+
+    public final int parallelism; // How many guests may run at once
+    public final long sliceSize; // How many instructions a guest runs before giving up its slot
+    private final ThreadFactory threadFactory;
+    private final Semaphore slots;
+
+    public SliceScheduler(int parallelism, long sliceSize) {
+        this(parallelism, sliceSize, runnable -> {
+            Thread thread = new Thread(runnable, "WasmJ sliced guest");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public SliceScheduler(int parallelism, long sliceSize, ThreadFactory threadFactory) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Parallelism must be positive, got " + parallelism);
+        if (sliceSize <= 0)
+            throw new IllegalArgumentException("Slice size must be positive, got " + sliceSize);
+        this.parallelism = parallelism;
+        this.sliceSize = sliceSize;
+        this.threadFactory = threadFactory;
+        this.slots = new Semaphore(parallelism, true); // Fair, so waiting guests are woken in order
+    }
+
+    /**
+     * Create a limiter whose guest code is suspended at the end of every slice,
+     * instead of erroring. maxInstructions is still a hard cap on the total,
+     * pass -1 for no cap.
+     */
+    public SlicedInstanceLimiter newLimiter(long maxInstructions, long maxJvmHeapMemory, InstanceLimiter.Metering metering) {
+        return new SlicedInstanceLimiter(this, maxInstructions, maxJvmHeapMemory, metering);
+    }
+
+    /**
+     * Run a guest call on its own thread, once a slot is free. The call should
+     * only run code of instances using the given limiter, and only one call
+     * may use a limiter at a time.
+     */
+    public <T> CompletableFuture<T> run(SlicedInstanceLimiter limiter, Callable<T> call) {
+        if (limiter.scheduler != this)
+            throw new IllegalArgumentException("Limiter belongs to a different scheduler");
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Thread thread = threadFactory.newThread(() -> {
+            slots.acquireUninterruptibly();
+            limiter.startSlice(true);
+            try {
+                result.complete(call.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            } finally {
+                limiter.scheduled = false;
+                slots.release();
+            }
+        });
+        thread.start();
+        return result;
+    }
+
+    // Called by a limiter whose slice ran out. Goes to the back of the queue,
+    // unless nobody is waiting, in which case the guest just keeps its slot.
+    void yieldSlot() {
+        if (!slots.hasQueuedThreads())
+            return;
+        slots.release();
+        slots.acquireUninterruptibly();
+    }
+
+}
@@ -0,0 +1,95 @@
+package io.github.toomanylimits.wasmj.runtime.sandbox;
+
+import io.github.toomanylimits.wasmj.runtime.errors.TooManyInstructionsException;
+
+/**
+ * An InstanceLimiter which suspends its guest at the end of every slice of
+ * instructions, instead of erroring, so a SliceScheduler can let other
+ * guests run in the meantime. Create these with SliceScheduler.newLimiter().
+ *
+ * Slices are measured with the same instruction counting hooks as the
+ * instruction limit, so a guest is only suspended at the start of a
+ * straight-line run of instructions (PER_BLOCK), or at a loop, call or
+ * return (LOCAL_FUEL). When the guest isn't running under the scheduler,
+ * for example while its instance is being set up, a used up slice is
+ * simply renewed.
+ *
+ * Like the base class, this isn't thread-safe: only one guest call
+ * may use it at a time.
+ */
+public class SlicedInstanceLimiter extends InstanceLimiter {
+
+    public final SliceScheduler scheduler;
+
+    private long sliceEnd; // Once more than this many instructions have executed, the slice is over
+    volatile boolean scheduled; // Whether the current call holds one of the scheduler's slots
+
+    SlicedInstanceLimiter(SliceScheduler scheduler, long maxInstructions, long maxJvmHeapMemory, Metering metering) {
+        // Always count instructions, even without a cap, since the slices need them
+        super(maxInstructions == -1 ? Long.MAX_VALUE : maxInstructions, maxJvmHeapMemory, metering);
+        this.scheduler = scheduler;
+        startSlice(false);
+    }
+
+    @Override
+    public InstanceLimiter withSameLimits() {
+        return new SlicedInstanceLimiter(
+                scheduler,
+                maxInstructions,
+                countsMemory ? maxJvmHeapMemory : -1,
+                metering
+        );
+    }
+
+    // Instructions
+
+    @Override
+    public void setInstructions(long instructions) {
+        super.setInstructions(instructions);
+        startSlice(scheduled);
+    }
+
+    @Override
+    public void incInstructions(long instructions) throws TooManyInstructionsException {
+        super.incInstructions(instructions); // Errors if the total cap was passed
+        if (getInstructions() > sliceEnd)
+            endSlice();
+    }
+
+    // Fuel only lasts until the end of the slice, so running out of it
+    // means either the slice or the whole budget is used up.
+    @Override
+    public long takeFuel() {
+        return fuelLimit() - getInstructions();
+    }
+
+    @Override
+    public void putFuel(long fuel) throws TooManyInstructionsException {
+        long executed = fuelLimit() - fuel;
+        super.setInstructions(executed);
+        if (fuel < 0) {
+            if (executed > maxInstructions)
+                throw new TooManyInstructionsException(maxInstructions);
+            endSlice();
+        }
+    }
+
+    private long fuelLimit() {
+        return Math.min(sliceEnd, maxInstructions);
+    }
+
+    // Give up the slot if this guest holds one, then start a new slice.
+    private void endSlice() {
+        if (scheduled)
+            scheduler.yieldSlot();
+        startSlice(scheduled);
+    }
+
+    void startSlice(boolean scheduled) {
+        this.scheduled = scheduled;
+        long executed = getInstructions();
+        // Don't overflow when there's no cap
+        this.sliceEnd = executed > Long.MAX_VALUE - scheduler.sliceSize ? Long.MAX_VALUE : executed + scheduler.sliceSize;
+    }
+
+}
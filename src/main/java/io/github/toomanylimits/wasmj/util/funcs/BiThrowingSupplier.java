@@ -0,0 +1,6 @@
+package io.github.toomanylimits.wasmj.util.funcs;
+
+@FunctionalInterface
+public interface BiThrowingSupplier<T, E1 extends Throwable, E2 extends Throwable> {
+    T get() throws E1, E2;
+}
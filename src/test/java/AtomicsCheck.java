@@ -0,0 +1,133 @@
+import io.github.toomanylimits.wasmj.parsing.module.WasmModule;
+import io.github.toomanylimits.wasmj.runtime.WasmInstance;
+import io.github.toomanylimits.wasmj.runtime.errors.DeadlineExceededException;
+import io.github.toomanylimits.wasmj.runtime.errors.WasmCodeException;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the atomic memory instructions and wait/notify on a shared memory.
+ * Each check prints what it observed, and the exit code is 1 if any failed.
+ *
+ * atomics_check.wasm has one shared page of memory, and exports:
+ * - add(addr: i32, n: i32): n times i32.atomic.rmw.add of 1
+ * - add8(addr: i32, n: i32): n times i32.atomic.rmw8.add_u of 1
+ * - cas_inc(addr: i32, n: i32): n times, an increment retried with i32.atomic.rmw.cmpxchg until it succeeds
+ * - load(addr: i32) -> i32: i32.atomic.load
+ * - wait(addr: i32, expected: i32, timeout: i64) -> i32: memory.atomic.wait32
+ * - notify(addr: i32, count: i32) -> i32: memory.atomic.notify
+ */
+public class AtomicsCheck {
+
+    private static final int THREADS = 4;
+    private static final int ITERATIONS = 100_000;
+
+    public static void main(String[] args) throws Throwable {
+        boolean ok = true;
+        ok &= check("rmw race", String.valueOf(THREADS * ITERATIONS), race("add", 0, ITERATIONS));
+        ok &= check("cmpxchg race", String.valueOf(THREADS * ITERATIONS), race("cas_inc", 0, ITERATIONS));
+        // Each thread adds to its own byte of the same word, which goes through a compare-and-set on the whole word
+        ok &= check("sub-word race", Integer.toHexString(0xC8C8C8C8), Integer.toHexString(Integer.parseInt(race("add8", 1, 200))));
+        ok &= check("wait timeout", "2", String.valueOf(call(instance(false), "wait", 0, 0, 10_000_000L)));
+        ok &= check("wait not equal", "1", String.valueOf(call(instance(false), "wait", 0, 5, -1L)));
+        ok &= check("notify wakes waiter", "woken 1, waiter got 0", notifyWaiter());
+        ok &= check("unaligned access", WasmCodeException.class.getSimpleName(), thrown(instance(false), "load", 2));
+        ok &= check("interrupted wait", DeadlineExceededException.class.getSimpleName(), interruptedWait());
+        if (!ok)
+            System.exit(1);
+    }
+
+    private static boolean check(String name, String expected, String actual) {
+        boolean same = expected.equals(actual);
+        System.out.println((same ? "OK       " : "MISMATCH ") + name + ": " + actual + (same ? "" : " (expected " + expected + ")"));
+        return same;
+    }
+
+    // Run the function on several threads at once. If addrStep is 0, they all use address 0, otherwise
+    // thread i uses address i * addrStep. Returns the int at address 0 afterwards.
+    private static String race(String function, int addrStep, int iterations) throws Throwable {
+        WasmInstance instance = instance(false);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int addr = i * addrStep;
+            Thread thread = new Thread(() -> {
+                try {
+                    call(instance, function, addr, iterations);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (failure.get() != null)
+            throw failure.get();
+        return String.valueOf(call(instance, "load", 0));
+    }
+
+    // Notify until the waiter has started waiting and was woken
+    private static String notifyWaiter() throws Throwable {
+        WasmInstance instance = instance(false);
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                result.set(call(instance, "wait", 0, 0, -1L));
+            } catch (Throwable t) {
+                result.set(t);
+            }
+        });
+        waiter.start();
+        int woken = 0;
+        while (woken == 0 && waiter.isAlive()) {
+            woken = (int) call(instance, "notify", 0, 1);
+            Thread.sleep(1);
+        }
+        waiter.join(5000);
+        return "woken " + woken + ", waiter got " + result.get();
+    }
+
+    // A wait with no timeout, stopped by interrupting the limiter
+    private static String interruptedWait() throws Throwable {
+        WasmInstance instance = instance(true);
+        Thread interrupter = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {}
+            instance.limiter.interrupt();
+        });
+        interrupter.start();
+        String result = thrown(instance, "wait", 0, 0, -1L);
+        interrupter.join();
+        return result;
+    }
+
+    private static String thrown(WasmInstance instance, String function, Object... args) {
+        try {
+            return "returned " + call(instance, function, args);
+        } catch (Throwable t) {
+            return t.getClass().getSimpleName();
+        }
+    }
+
+    private static Object call(WasmInstance instance, String function, Object... args) throws Throwable {
+        return instance.getExportedFunction("check", function).invoke(args);
+    }
+
+    private static WasmInstance instance(boolean interruptible) throws Throwable {
+        WasmInstance instance = new WasmInstance(new InstanceLimiter(-1, -1, InstanceLimiter.Metering.PER_BLOCK, interruptible));
+        try (InputStream inStream = AtomicsCheck.class.getResourceAsStream("atomics_check.wasm")) {
+            if (inStream == null)
+                throw new IllegalStateException("could not find wasm file");
+            instance.addWasmModule("check", new WasmModule(inStream));
+        }
+        return instance;
+    }
+
+}
@@ -0,0 +1,61 @@
+import io.github.toomanylimits.wasmj.parsing.module.WasmModule;
+import io.github.toomanylimits.wasmj.runtime.ExportedFunction;
+import io.github.toomanylimits.wasmj.runtime.WasmInstance;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+
+import java.io.InputStream;
+
+/**
+ * Compares the cost of instruction metering strategies.
+ * Runs each workload unmetered, with PER_BLOCK metering, with LOCAL_FUEL
+ * metering, and with only interrupt checks (for EpochTicker deadlines),
+ * and prints the time per call and the overhead over unmetered.
+ *
+ * metering_bench.wasm exports:
+ * - sum(n: i32) -> i64: a tight loop adding 0..n-1, storing the running total to memory each iteration
+ * - fib(n: i32) -> i32: naive recursive fibonacci, dominated by calls and returns
+ * - indirect_fib(n: i32) -> i32: the same fibonacci, but every recursive call goes through
+ *   call_indirect, so LOCAL_FUEL pays for putting the fuel back and taking it again each time
+ */
+public class MeteringBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 20;
+
+    public static void main(String[] args) throws Throwable {
+        run("sum", 1_000_000);
+        run("fib", 25);
+        run("indirect_fib", 25);
+    }
+
+    private static void run(String function, int arg) throws Throwable {
+        System.out.println(function + "(" + arg + "):");
+        double unmetered = measure(new InstanceLimiter(-1, -1), function, arg);
+        System.out.printf("  %-12s %10.3f ms%n", "unmetered", unmetered);
+        for (InstanceLimiter.Metering metering : InstanceLimiter.Metering.values()) {
+            double time = measure(new InstanceLimiter(Long.MAX_VALUE / 2, -1, metering), function, arg);
+            System.out.printf("  %-12s %10.3f ms  (%.2fx unmetered)%n", metering, time, time / unmetered);
+        }
+        double interruptible = measure(new InstanceLimiter(-1, -1, InstanceLimiter.Metering.PER_BLOCK, true), function, arg);
+        System.out.printf("  %-12s %10.3f ms  (%.2fx unmetered)%n", "interrupts", interruptible, interruptible / unmetered);
+    }
+
+    // Returns the average milliseconds per call, after warming up
+    private static double measure(InstanceLimiter limiter, String function, int arg) throws Throwable {
+        WasmInstance instance = new WasmInstance(limiter);
+        try (InputStream inStream = MeteringBenchmark.class.getResourceAsStream("metering_bench.wasm")) {
+            if (inStream == null)
+                throw new IllegalStateException("could not find wasm file");
+            instance.addWasmModule("bench", new WasmModule(inStream));
+        }
+        ExportedFunction exported = instance.getExportedFunction("bench", function);
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            exported.invoke(arg);
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++)
+            exported.invoke(arg);
+        long end = System.nanoTime();
+        return (end - start) / 1_000_000.0 / MEASURED_ROUNDS;
+    }
+
+}
@@ -0,0 +1,62 @@
+import io.github.toomanylimits.wasmj.parsing.module.WasmModule;
+import io.github.toomanylimits.wasmj.runtime.ExportedFunction;
+import io.github.toomanylimits.wasmj.runtime.WasmInstance;
+import io.github.toomanylimits.wasmj.runtime.reflect.WasmJImpl;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
+
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * Differential check for RefCountElision. Runs each function with the
+ * elision turned off and on, and compares what the sandbox observes:
+ * the heap memory charged by the call, the refcount of the returned
+ * object, and the instructions counted.
+ *
+ * refcount_elision.wasm imports new_counter and inc_counter from WasmJImpl,
+ * and exports:
+ * - pairs() -> externref: each elided instruction pair, in straight-line code
+ * - loop(n: i32) -> externref: the same pairs inside a loop and an if/else, overwriting locals
+ * - params() -> externref: calls a function which stores into its externref param
+ */
+public class RefCountElisionCheck {
+
+    public static void main(String[] args) throws Throwable {
+        boolean ok = true;
+        ok &= check("pairs");
+        ok &= check("loop", 10);
+        ok &= check("params");
+        if (!ok)
+            System.exit(1);
+    }
+
+    private static boolean check(String function, Object... args) throws Throwable {
+        String reference = run(false, function, args);
+        String elided = run(true, function, args);
+        boolean same = Objects.equals(reference, elided);
+        System.out.println((same ? "OK       " : "MISMATCH ") + function + ": " + reference + (same ? "" : " vs " + elided));
+        return same;
+    }
+
+    private static String run(boolean elide, String function, Object... args) throws Throwable {
+        System.setProperty("wasmj.elideRefCounts", String.valueOf(elide));
+        WasmInstance instance = new WasmInstance(new InstanceLimiter(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2));
+        instance.addStaticJavaModule("WasmJ", WasmJImpl.class);
+        try (InputStream inStream = RefCountElisionCheck.class.getResourceAsStream("refcount_elision.wasm")) {
+            if (inStream == null)
+                throw new IllegalStateException("could not find wasm file");
+            instance.addWasmModule("check", new WasmModule(inStream));
+        }
+        ExportedFunction exported = instance.getExportedFunction("check", function);
+        // The compiled code itself is charged too, and its size differs, so only look at what the call changes
+        long heapBefore = instance.limiter.getHeapMemoryUsed();
+        long instructionsBefore = instance.limiter.getInstructions();
+        Object result = exported.invoke(args);
+        long heap = instance.limiter.getHeapMemoryUsed() - heapBefore;
+        long instructions = instance.limiter.getInstructions() - instructionsBefore;
+        int refs = result instanceof RefCountable refCountable ? refCountable.getReferenceCount() : -1;
+        return "heap " + heap + ", result refs " + refs + ", instructions " + instructions;
+    }
+
+}
@@ -0,0 +1,61 @@
+import io.github.toomanylimits.wasmj.parsing.module.WasmModule;
+import io.github.toomanylimits.wasmj.runtime.ExportedFunction;
+import io.github.toomanylimits.wasmj.runtime.WasmInstance;
+import io.github.toomanylimits.wasmj.runtime.reflect.WasmJImpl;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+
+import java.io.InputStream;
+
+/**
+ * Compares the cost of the ref counting strategies, for guests which
+ * use a lot of externrefs. Runs each workload without memory counting,
+ * with IMMEDIATE ref counting, and with DEFERRED ref counting, and
+ * prints the time per call. Without counting, the JIT can often remove
+ * the host objects entirely, so the strategies are compared to each other.
+ *
+ * refcount_bench.wasm imports new_counter and inc_counter from WasmJImpl, and exports:
+ * - locals(n: i32): moves one externref between locals, and passes it to inc_counter, n times
+ * - tables(n: i32): stores an externref into a table, loads it into a global, and passes it to inc_counter, n times
+ * - alloc(n: i32): gets a new externref from new_counter, and passes it to inc_counter, n times
+ */
+public class RefCountingBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 20;
+
+    public static void main(String[] args) throws Throwable {
+        run("locals", 1_000_000);
+        run("tables", 1_000_000);
+        run("alloc", 1_000_000);
+    }
+
+    private static void run(String function, int arg) throws Throwable {
+        System.out.println(function + "(" + arg + "):");
+        double uncounted = measure(new InstanceLimiter(-1, -1), function, arg);
+        System.out.printf("  %-12s %10.3f ms%n", "uncounted", uncounted);
+        double immediate = measure(new InstanceLimiter(-1, Long.MAX_VALUE / 2, InstanceLimiter.Metering.PER_BLOCK, false, InstanceLimiter.RefCounting.IMMEDIATE), function, arg);
+        System.out.printf("  %-12s %10.3f ms%n", "IMMEDIATE", immediate);
+        double deferred = measure(new InstanceLimiter(-1, Long.MAX_VALUE / 2, InstanceLimiter.Metering.PER_BLOCK, false, InstanceLimiter.RefCounting.DEFERRED), function, arg);
+        System.out.printf("  %-12s %10.3f ms  (%.2fx IMMEDIATE)%n", "DEFERRED", deferred, deferred / immediate);
+    }
+
+    // Returns the average milliseconds per call, after warming up
+    private static double measure(InstanceLimiter limiter, String function, int arg) throws Throwable {
+        WasmInstance instance = new WasmInstance(limiter);
+        instance.addStaticJavaModule("WasmJ", WasmJImpl.class);
+        try (InputStream inStream = RefCountingBenchmark.class.getResourceAsStream("refcount_bench.wasm")) {
+            if (inStream == null)
+                throw new IllegalStateException("could not find wasm file");
+            instance.addWasmModule("bench", new WasmModule(inStream));
+        }
+        ExportedFunction exported = instance.getExportedFunction("bench", function);
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            exported.invoke(arg);
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++)
+            exported.invoke(arg);
+        long end = System.nanoTime();
+        return (end - start) / 1_000_000.0 / MEASURED_ROUNDS;
+    }
+
+}
@@ -0,0 +1,176 @@
+import io.github.toomanylimits.wasmj.compiling.simplify.Validator;
+import io.github.toomanylimits.wasmj.parsing.module.WasmModule;
+import io.github.toomanylimits.wasmj.runtime.InstancePool;
+import io.github.toomanylimits.wasmj.runtime.WasmInstance;
+import io.github.toomanylimits.wasmj.runtime.WasmSnapshot;
+import io.github.toomanylimits.wasmj.runtime.errors.WasmException;
+import io.github.toomanylimits.wasmj.runtime.memory.MemoryBackend;
+import io.github.toomanylimits.wasmj.runtime.reflect.WasmJImpl;
+import io.github.toomanylimits.wasmj.runtime.sandbox.InstanceLimiter;
+import io.github.toomanylimits.wasmj.runtime.sandbox.RefCountable;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Round-trip check for InstancePool and WasmSnapshot. Each check changes an
+ * instance after its state was captured, resets it or creates a new one from
+ * the capture, and compares the result against a freshly created instance:
+ * the limiter's counters, the memory size and contents, the globals, and
+ * which table slots hold objects. Runs with every memory backend, and with
+ * immediate and deferred ref counting.
+ *
+ * reset_check.wasm imports new_counter from WasmJImpl, has a memory of 1 page
+ * (up to 4) starting with "init", an i32 global starting at 7, an externref
+ * global and a 4 slot externref table, and exports:
+ * - setup(): puts one new counter in table[0] and the externref global
+ * - scribble(): writes address 100, grows the memory by a page and writes into it, sets the i32 global to 99
+ * - take_refs(): puts a new counter in table[1], and replaces the externref global with another
+ * - size() -> i32: memory.size
+ * - peek(addr: i32) -> i32, global() -> i32: read the state
+ * - has(slot: i32) -> i32: whether the table slot holds an object
+ * - first() -> externref: table[0]
+ */
+public class ResetCheck {
+
+    private static WasmModule module;
+
+    public static void main(String[] args) throws Throwable {
+        try (InputStream inStream = ResetCheck.class.getResourceAsStream("reset_check.wasm")) {
+            if (inStream == null)
+                throw new IllegalStateException("could not find wasm file");
+            module = new WasmModule(inStream);
+        }
+        boolean ok = true;
+        for (MemoryBackend backend : MemoryBackend.values()) {
+            for (InstanceLimiter.RefCounting refCounting : InstanceLimiter.RefCounting.values()) {
+                String name = backend + " " + refCounting;
+                ok &= checkPool(name, backend, refCounting);
+                ok &= checkSnapshot(name, backend, refCounting);
+                ok &= checkSavedSnapshot(name, backend, refCounting);
+            }
+        }
+        if (!ok)
+            System.exit(1);
+    }
+
+    // Borrow, change everything, give back, and borrow the same instance again
+    private static boolean checkPool(String name, MemoryBackend backend, InstanceLimiter.RefCounting refCounting) throws Throwable {
+        WasmInstance fresh = create(backend, refCounting, true, false);
+        String reference = fingerprint(fresh) + ", first refs " + firstRefs(fresh);
+        boolean ok = true;
+        try (InstancePool pool = new InstancePool(() -> create(backend, refCounting, true, false), 1, 1)) {
+            WasmInstance instance = pool.borrow();
+            call(instance, "scribble");
+            call(instance, "take_refs");
+            pool.giveBack(instance);
+            WasmInstance again = pool.borrow();
+            // The refcount of the counter made by setup() is the same too, so the reset neither leaked nor dropped it
+            ok &= check(name + " pool reset", reference, fingerprint(again) + ", first refs " + firstRefs(again));
+            pool.giveBack(again);
+        }
+        fresh.close();
+        return ok;
+    }
+
+    // Capture, then change the instance and grow its memory. New instances and restores go back to the capture.
+    private static boolean checkSnapshot(String name, MemoryBackend backend, InstanceLimiter.RefCounting refCounting) throws Throwable {
+        String reference = fingerprint(create(backend, refCounting, true, false));
+        WasmInstance template = create(backend, refCounting, true, true);
+        WasmSnapshot snapshot = WasmSnapshot.capture(template);
+        call(template, "scribble");
+        call(template, "take_refs");
+        boolean ok = true;
+        try (WasmInstance created = snapshot.instantiate()) {
+            ok &= check(name + " snapshot instantiate", reference, fingerprint(created));
+        }
+        snapshot.restoreInto(template);
+        ok &= check(name + " snapshot restore after grow", reference, fingerprint(template));
+        template.close();
+        return ok;
+    }
+
+    // Saved snapshots can't hold externrefs, so these instances skip setup(). One snapshot is taken
+    // before the memory grows, and restored after, the other is taken after it grew.
+    private static boolean checkSavedSnapshot(String name, MemoryBackend backend, InstanceLimiter.RefCounting refCounting) throws Throwable {
+        String reference = fingerprint(create(backend, refCounting, false, false));
+        WasmInstance grownReference = create(backend, refCounting, false, false);
+        call(grownReference, "scribble");
+        String grown = fingerprint(grownReference);
+
+        WasmInstance template = create(backend, refCounting, false, true);
+        Path before = Files.createTempFile("wasmj_reset_check", ".snapshot");
+        Path after = Files.createTempFile("wasmj_reset_check", ".snapshot");
+        boolean ok = true;
+        try {
+            WasmSnapshot.capture(template).save(before);
+            call(template, "scribble");
+            WasmSnapshot.capture(template).save(after);
+            try (WasmInstance created = WasmSnapshot.load(after, template).instantiate()) {
+                ok &= check(name + " loaded snapshot of grown memory", grown, fingerprint(created));
+            }
+            WasmSnapshot loaded = WasmSnapshot.load(before, template);
+            try (WasmInstance created = loaded.instantiate()) {
+                ok &= check(name + " loaded snapshot instantiate", reference, fingerprint(created));
+            }
+            loaded.restoreInto(template);
+            ok &= check(name + " loaded snapshot restore after grow", reference, fingerprint(template));
+        } finally {
+            Files.deleteIfExists(before);
+            Files.deleteIfExists(after);
+            template.close();
+        }
+        return ok;
+    }
+
+    private static boolean check(String name, String expected, String actual) {
+        boolean same = expected.equals(actual);
+        System.out.println((same ? "OK       " : "MISMATCH ") + name + ": " + actual + (same ? "" : " vs " + expected));
+        return same;
+    }
+
+    // The limiter's counters are read first, since reading the rest runs guest code
+    private static String fingerprint(WasmInstance instance) throws WasmException {
+        StringBuilder result = new StringBuilder()
+                .append("heap ").append(instance.limiter.getHeapMemoryUsed())
+                .append(", instructions ").append(instance.limiter.getInstructions());
+        result.append(", size ").append(call(instance, "size"))
+                .append(", memory ").append(peek(instance, 0))
+                .append(" ").append(peek(instance, 100))
+                .append(" ").append(peek(instance, 65544));
+        result.append(", global ").append(call(instance, "global")).append(", table ");
+        for (int slot = 0; slot < 4; slot++)
+            result.append(call(instance, "has", slot));
+        return result.toString();
+    }
+
+    private static int firstRefs(WasmInstance instance) throws WasmException {
+        return ((RefCountable) call(instance, "first")).getReferenceCount();
+    }
+
+    // The second page only exists after the memory grew
+    private static String peek(WasmInstance instance, int addr) {
+        try {
+            return Integer.toHexString((int) call(instance, "peek", addr));
+        } catch (WasmException e) {
+            return "trap";
+        }
+    }
+
+    private static Object call(WasmInstance instance, String function, Object... args) throws WasmException {
+        return instance.getExportedFunction("check", function).invoke(args);
+    }
+
+    private static WasmInstance create(MemoryBackend backend, InstanceLimiter.RefCounting refCounting, boolean setup, boolean retain) throws Validator.ValidationException, WasmException {
+        WasmInstance instance = new WasmInstance(new InstanceLimiter(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, InstanceLimiter.Metering.PER_BLOCK, false, refCounting));
+        if (retain)
+            instance.retainCompiledModules();
+        instance.addStaticJavaModule("WasmJ", WasmJImpl.class);
+        instance.addWasmModule("check", module, backend);
+        if (setup)
+            call(instance, "setup");
+        return instance;
+    }
+
+}